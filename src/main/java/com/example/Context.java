@@ -7,6 +7,7 @@ import com.example.descriptor.FilterMapping;
 import com.example.loader.Loader;
 import com.example.resource.AbstractContext;
 import com.example.session.Manager;
+import com.example.websocket.WebSocketContainer;
 
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletContainerInitializer;
@@ -1270,6 +1271,11 @@ public interface Context extends Container, ContextBind {
 
     void decrementInProgressAsyncCount();
 
+    /**
+     * @return 这个context的websocket端点注册表，没有启动时为null
+     */
+    WebSocketContainer getWebSocketContainer();
+
     /**
      * Remove the MIME mapping for the specified extension, if it exists;
      * otherwise, no action is taken.
@@ -82,6 +82,32 @@ public final class Globals {
      * HTTTP/2.
      */
     public static final String STREAM_ID = "org.apache.coyote.streamID";
+    /**
+     * The request attribute that is set to {@code Boolean.TRUE} if the
+     * connector can send a file directly from disk (zero copy).
+     */
+    public static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    /**
+     * The request attribute that can be used by a servlet to pass
+     * to the connector the name of the file that is to be served
+     * by sendfile. The value should be {@code java.lang.String}
+     * that is {@code File.getCanonicalPath()} of the file to be served.
+     */
+    public static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    /**
+     * The request attribute that can be used by a servlet to pass
+     * to the connector the start offset of the part of a file
+     * that is to be served by sendfile. The value should be
+     * {@code java.lang.Long}.
+     */
+    public static final String SENDFILE_FILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    /**
+     * The request attribute that can be used by a servlet to pass
+     * to the connector the end offset (not including) of the part
+     * of a file that is to be served by sendfile. The value should be
+     * {@code java.lang.Long}.
+     */
+    public static final String SENDFILE_FILE_END_ATTR = "org.apache.tomcat.sendfile.end";
     /**
      * The request attribute that is set to {@code Boolean.TRUE} if some request
      * parameters have been ignored during request parameters parsing. It can
@@ -131,6 +157,11 @@ public final class Globals {
      * The subject under which the AccessControlContext is running.
      */
     public static final String SUBJECT_ATTR = "javax.security.auth.subject";
+    /**
+     * ServletContext中context的{@link com.example.websocket.WebSocketContainer}，
+     * webapp通过它注册websocket端点
+     */
+    public static final String WEBSOCKET_CONTAINER_ATTR = "com.example.websocket.WebSocketContainer";
 
 
     // ------------------------------------------------- Session attribute names
@@ -10,5 +10,6 @@ public final class HeaderValues {
     public static final String CLOSE = HttpHeaderValues.CLOSE.toString ();
     public static final String APPLICATION_JSON = HttpHeaderValues.APPLICATION_JSON.toString ();
     public static final String APPLICATION_X_WWW_FORM_URLENCODED = HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED.toString ();
+    public static final String MULTIPART_FORM_DATA = HttpHeaderValues.MULTIPART_FORM_DATA.toString ();
 
 }
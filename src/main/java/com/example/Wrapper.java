@@ -1,6 +1,7 @@
 package com.example;
 
 
+import javax.servlet.MultipartConfigElement;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.UnavailableException;
@@ -105,6 +106,39 @@ public interface Wrapper extends Container {
     boolean isUnavailable();
 
 
+    /**
+     * Return the multi-part configuration for the associated servlet, or
+     * <code>null</code> if there is none. Taken from the servlet's
+     * {@link javax.servlet.annotation.MultipartConfig} annotation when it
+     * is loaded, unless it has been set explicitly.
+     */
+    MultipartConfigElement getMultipartConfigElement();
+
+
+    /**
+     * Set the multi-part configuration for the associated servlet.
+     *
+     * @param multipartConfig The new multi-part configuration
+     */
+    void setMultipartConfigElement(MultipartConfigElement multipartConfig);
+
+
+    /**
+     * Does the associated Servlet support async processing? Taken from
+     * <code>&lt;async-supported&gt;</code> in web.xml, or from the
+     * {@link javax.servlet.annotation.WebServlet} annotation when it is loaded.
+     */
+    boolean isAsyncSupported();
+
+
+    /**
+     * Set the async support for the associated servlet.
+     *
+     * @param asyncSupported the new value
+     */
+    void setAsyncSupported(boolean asyncSupported);
+
+
     // --------------------------------------------------------- Public Methods
 
 
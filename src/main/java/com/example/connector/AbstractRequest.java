@@ -57,6 +57,10 @@ public abstract class AbstractRequest implements Request, ServletRequest {
     //servlet规范
     protected ServletContext servletContext;
     protected DispatcherType dispatcherType;
+    /**
+     * 映射到的servlet是否支持异步，由StandardWrapperValve设置
+     */
+    protected boolean asyncSupported = false;
     protected ServletInputStream servletInputStream;
     protected Map<String, Object> attributes = new ConcurrentHashMap<> ();
 //    protected Context context;
@@ -151,7 +155,7 @@ public abstract class AbstractRequest implements Request, ServletRequest {
     public ServletInputStream createInputStream() {
         Objects.requireNonNull (inputStream);
         if (servletInputStream == null) {
-            return new HttpRequestStream (inputStream);
+            return new HttpRequestStream (inputStream, this);
         } else {
             throw new IllegalStateException ("servletInputStream exists");
         }
@@ -190,7 +194,7 @@ public abstract class AbstractRequest implements Request, ServletRequest {
 //    }
 
     /**
-     * 暂时用不到，毕竟没有池化processor
+     * processor池化后，每个请求结束时都会调用
      * <p>
      * 注意是clear，否则重新分配对象还是有损失
      */
@@ -218,7 +222,13 @@ public abstract class AbstractRequest implements Request, ServletRequest {
         secure = false;
         serverName = null;
         localPort = -1;
+        remotePort = 0;
         servletInputStream = null;
+        dispatcherType = null;
+        asyncSupported = false;
+        //processor被池化后request会被复用，不重置的话下个请求会沿用上一个请求映射到的context
+        context = null;
+        wrapper = null;
     }
 
     /**
@@ -515,14 +525,14 @@ public abstract class AbstractRequest implements Request, ServletRequest {
     }
 
     /**
-     * todo 没有实现
+     * async dispatch时是ASYNC，其他都是REQUEST
      */
     @Override
     public DispatcherType getDispatcherType() {
-        return null;
+        return dispatcherType == null ? DispatcherType.REQUEST : dispatcherType;
     }
 
-    //下面的async不打算实现
+    //async由HttpRequestImpl实现，这里都是不支持的情况
     @Override
     public AsyncContext startAsync() throws IllegalStateException {
         return null;
@@ -540,7 +550,12 @@ public abstract class AbstractRequest implements Request, ServletRequest {
 
     @Override
     public boolean isAsyncSupported() {
-        return false;
+        return asyncSupported;
+    }
+
+    @Override
+    public void setAsyncSupported(boolean asyncSupported) {
+        this.asyncSupported = asyncSupported;
     }
 
     @Override
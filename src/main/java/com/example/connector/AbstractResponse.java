@@ -6,6 +6,7 @@ import com.example.connector.http.HttpResponseStream;
 import com.example.util.StringManager;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import lombok.extern.slf4j.Slf4j;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletResponse;
@@ -22,6 +23,7 @@ import java.util.Locale;
  *
  * @date 2021/12/8 20:24
  */
+@Slf4j
 public abstract class AbstractResponse implements Response, ServletResponse {
     protected Request request;
     protected String encoding;
@@ -31,10 +33,18 @@ public abstract class AbstractResponse implements Response, ServletResponse {
     protected long contentLength;
 
     /**
-     * 似乎用不到，因为目前是byteBuf读满才发送的
+     * header是否已经发出去了，buffer写满或者servlet主动flush时会提交
+     * 提交之后就无法reset、修改header了
      */
-    @Deprecated
-    protected boolean committed;//能关闭、刷新，也可以写，允许多次调用flush；？？？
+    protected boolean committed;
+    /**
+     * 超过这个大小就提交响应，以chunk的形式发送，小于等于0表示不限制
+     */
+    protected int bufferSize;
+    /**
+     * 已经以chunk的形式发出去的body字节数，不包括当前buffer中的
+     */
+    protected int flushedCount;
 
     protected Locale locale = Locale.getDefault ();
     protected HttpConnector httpConnector;
@@ -58,12 +68,15 @@ public abstract class AbstractResponse implements Response, ServletResponse {
 
     @Override
     public int getBufferSize() {
-        return byteBuf.readableBytes ();
+        return bufferSize;
     }
 
     @Override
     public void setBufferSize(int size) {
-        //do nothing
+        if (committed || (byteBuf != null && byteBuf.isReadable ())) {
+            throw new IllegalStateException ("已经写入数据，无法修改buffer大小");
+        }
+        bufferSize = size;
     }
 
     @Override
@@ -78,7 +91,14 @@ public abstract class AbstractResponse implements Response, ServletResponse {
 
     @Override
     public int getContentCount() {
-        return byteBuf.readableBytes ();
+        return flushedCount + (byteBuf == null ? 0 : byteBuf.readableBytes ());
+    }
+
+    /**
+     * [connector使用] buffer作为一个chunk发出去之后调用
+     */
+    public void addFlushedCount(int count) {
+        flushedCount += count;
     }
 
     @Override
@@ -109,6 +129,9 @@ public abstract class AbstractResponse implements Response, ServletResponse {
      */
     @Override
     public void reset() {
+        if (committed) {
+            throw new IllegalStateException ("响应已经提交，无法reset");
+        }
         resetBuffer ();
         servletOutputStream = null;
         writer = null;
@@ -167,7 +190,7 @@ public abstract class AbstractResponse implements Response, ServletResponse {
     @Override
     public ServletOutputStream createOutputStream() throws IOException {
         if (servletOutputStream == null) {
-            servletOutputStream = new HttpResponseStream (outputStream);
+            servletOutputStream = new HttpResponseStream (outputStream, this);
         }
         return servletOutputStream;
     }
@@ -226,7 +249,7 @@ public abstract class AbstractResponse implements Response, ServletResponse {
         if (servletOutputStream != null) {
             throw new IllegalStateException ();
         }
-        servletOutputStream = new HttpResponseStream (outputStream);
+        servletOutputStream = new HttpResponseStream (outputStream, this);
         return servletOutputStream;
     }
 
@@ -235,7 +258,21 @@ public abstract class AbstractResponse implements Response, ServletResponse {
         if (writer != null) {
             throw new IllegalStateException ();
         }
-        writer = new PrintWriter (new OutputStreamWriter (outputStream));
+        //没有设置编码时使用UTF-8
+        Charset charset = StandardCharsets.UTF_8;
+        if (encoding != null) {
+            try {
+                charset = Charset.forName (encoding);
+            } catch (IllegalArgumentException e) {
+                log.warn ("不支持的编码 {}，使用UTF-8", encoding);
+            }
+        }
+        //直接编码到byteBuf，不经过逐字节的OutputStream
+        if (outputStream instanceof ByteBufOutputStream) {
+            writer = new PrintWriter (new ByteBufWriter ((ByteBufOutputStream) outputStream, charset));
+        } else {
+            writer = new PrintWriter (new OutputStreamWriter (outputStream, charset));
+        }
         return writer;
     }
 
@@ -245,20 +282,27 @@ public abstract class AbstractResponse implements Response, ServletResponse {
     }
 
     /**
-     * fixme 使用netty但是仅仅用byteBuf
-     * 刷新body buffer
-     * 因为我用的netty，所以这个方法没有意义
-     * 这个方法本来应该刷新buffer到socket stream中。。
+     * servlet用过getWriter时，把writer中还没有编码的字符写到stream里，
+     * 给需要在finishResponse之前拿到完整body的地方用
+     */
+    public void flushWriterBuffer() {
+        if (writer != null) {
+            writer.flush ();
+        }
+    }
+
+    /**
+     * 刷新body buffer，会提交响应，已经写入的body以chunk的形式发送
      *
      * @throws IOException
      */
     @Override
     public void flushBuffer() throws IOException {
-//        if (!isCommitted ()) {
-//            setCommitted (true);
-//        } else {
-//            throw new IOException ("已commit，无法再flushBuffer了");
-//        }
+        if (writer != null) {
+            writer.flush ();
+        } else if (outputStream != null) {
+            outputStream.flush ();
+        }
     }
 
     @Override
@@ -288,10 +332,12 @@ public abstract class AbstractResponse implements Response, ServletResponse {
 
     @Override
     public void recycle() {
-        resetBuffer ();
+        //buffer已经交给netty发送了，发送可能在eventloop上异步进行，所以不能clear
+        byteBuf = null;
         outputStream = null;
 
         committed = false;
+        flushedCount = 0;
         suspended = false;
         // connector is NOT reset when recycling
         contentLength = -1;
@@ -302,6 +348,7 @@ public abstract class AbstractResponse implements Response, ServletResponse {
         servletOutputStream = null;
         writer = null;
         err = false;
+        context = null;
     }
 
     @Override
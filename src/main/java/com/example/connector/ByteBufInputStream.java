@@ -28,10 +28,31 @@ public class ByteBufInputStream extends InputStream {
             throw new IOException ("stream closed");
         }
         if (byteBuf.readableBytes () > 0) {
-            return byteBuf.readByte ();
+            return byteBuf.readByte () & 0xff;
         } else return -1;
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException ("stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int n = Math.min (len, byteBuf.readableBytes ());
+        if (n == 0) {
+            return -1;
+        }
+        byteBuf.readBytes (b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return byteBuf.readableBytes ();
+    }
+
     @Override
     public void close() throws IOException {
         if (closed) {
@@ -5,6 +5,7 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 
 /**
  * 将netty的byteBuf包装为一个Stream
@@ -29,6 +30,48 @@ public class ByteBufOutputStream extends OutputStream {
             throw new IOException ("stream closed");
         }
         byteBuf.writeByte (b);
+        afterWrite ();
+    }
+
+    /**
+     * 批量写入，避免每个字节一次虚调用
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException ("stream closed");
+        }
+        byteBuf.writeBytes (b, off, len);
+        afterWrite ();
+    }
+
+    /**
+     * 由{@link ByteBufWriter}直接编码字符到byteBuf之后调用
+     */
+    public void writeChars(CharSequence chars, Charset charset) throws IOException {
+        if (closed) {
+            throw new IOException ("stream closed");
+        }
+        byteBuf.writeCharSequence (chars, charset);
+        afterWrite ();
+    }
+
+    /**
+     * 每次写入byteBuf之后调用，子类可以在buffer满了的时候把数据发出去（之后byteBuf可能被替换）
+     */
+    protected void afterWrite() throws IOException {
+
+    }
+
+    /**
+     * 写入是否不会阻塞，byteBuf可以扩容所以总是true，子类可以根据发送缓冲区判断
+     */
+    public boolean isReady() {
+        return true;
+    }
+
+    public boolean isClosed() {
+        return closed;
     }
 
     /**
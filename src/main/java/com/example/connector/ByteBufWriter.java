@@ -0,0 +1,164 @@
+package com.example.connector;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+
+/**
+ * 把字符直接编码到{@link ByteBufOutputStream}的byteBuf中，代替OutputStreamWriter逐字节写入
+ * <p>
+ * UTF-8、US-ASCII、ISO-8859-1使用netty的{@link ByteBuf#writeCharSequence}，其他编码使用复用的{@link CharsetEncoder}
+ * <p>
+ * 大的字符串分段写入，这样中途buffer满了也能及时以chunk的形式发送出去
+ *
+ * @date 2022/3/5 16:20
+ */
+public class ByteBufWriter extends Writer {
+    /**
+     * 每次最多编码的字符数
+     */
+    private static final int SLICE = 8192;
+
+    private final ByteBufOutputStream out;
+    private final Charset charset;
+    /**
+     * 为null说明使用netty的快速路径
+     */
+    private final CharsetEncoder encoder;
+    /**
+     * 上一次写入以高代理结尾时先留着，和下一次的低代理一起编码
+     */
+    private char pendingHighSurrogate = 0;
+
+    public ByteBufWriter(ByteBufOutputStream out, Charset charset) {
+        this.out = out;
+        this.charset = charset;
+        if (charset.equals (StandardCharsets.UTF_8) || charset.equals (StandardCharsets.US_ASCII) ||
+                charset.equals (StandardCharsets.ISO_8859_1)) {
+            encoder = null;
+        } else {
+            encoder = charset.newEncoder ()
+                    .onMalformedInput (CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter (CodingErrorAction.REPLACE);
+        }
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        write0 (String.valueOf ((char) c));
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off, end = off + len; i < end; i += SLICE) {
+            write0 (CharBuffer.wrap (cbuf, i, Math.min (SLICE, end - i)));
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (len <= SLICE) {
+            write0 (off == 0 && len == str.length () ? str : CharBuffer.wrap (str, off, off + len));
+            return;
+        }
+        for (int i = off, end = off + len; i < end; i += SLICE) {
+            write0 (CharBuffer.wrap (str, i, Math.min (i + SLICE, end)));
+        }
+    }
+
+    private void write0(CharSequence chars) throws IOException {
+        int len = chars.length ();
+        if (len == 0) {
+            return;
+        }
+
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate (chars.charAt (0))) {
+                encode (new String (new char[]{high, chars.charAt (0)}));
+                chars = chars.subSequence (1, len);
+                len--;
+            } else {
+                //单独的高代理，编码器会替换为?
+                encode (String.valueOf (high));
+            }
+        }
+        if (len > 0 && Character.isHighSurrogate (chars.charAt (len - 1))) {
+            pendingHighSurrogate = chars.charAt (len - 1);
+            chars = chars.subSequence (0, len - 1);
+        }
+        if (chars.length () > 0) {
+            encode (chars);
+        }
+    }
+
+    private void encode(CharSequence chars) throws IOException {
+        if (encoder == null) {
+            out.writeChars (chars, charset);
+            return;
+        }
+
+        if (out.isClosed ()) {
+            throw new IOException ("stream closed");
+        }
+        CharBuffer in = chars instanceof CharBuffer ? ((CharBuffer) chars).duplicate () : CharBuffer.wrap (chars);
+        encoder.reset ();
+        CoderResult result;
+        do {
+            result = encodeOnce (in, false);
+        } while (result.isOverflow ());
+        do {
+            result = encodeOnce (in, true);
+        } while (result.isOverflow ());
+        out.afterWrite ();
+    }
+
+    /**
+     * 编码到byteBuf的可写区域，空间不够时返回overflow，并已经扩容
+     *
+     * @param flush 是否是最后的flush
+     */
+    private CoderResult encodeOnce(CharBuffer in, boolean flush) {
+        ByteBuf buf = out.getByteBuf ();
+        int expected = (int) Math.ceil (in.remaining () * encoder.averageBytesPerChar ());
+        buf.ensureWritable (Math.max (expected, (int) Math.ceil (encoder.maxBytesPerChar ())));
+        int start = buf.writerIndex ();
+        ByteBuffer nio = buf.nioBuffer (start, buf.writableBytes ());
+        CoderResult result = flush ? encoder.flush (nio) : encoder.encode (in, nio, true);
+        buf.writerIndex (start + nio.position ());
+        if (result.isOverflow ()) {
+            buf.ensureWritable (Math.max (16, buf.writableBytes () + 1));
+        }
+        return result;
+    }
+
+    /**
+     * 会提交响应
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush ();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out.isClosed ()) {
+            return;
+        }
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            encode (String.valueOf (high));
+        }
+        out.close ();
+    }
+}
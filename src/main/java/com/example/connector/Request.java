@@ -147,6 +147,15 @@ public interface Request {
     void setWrapper(Wrapper wrapper);
 
 
+    /**
+     * Set whether the servlet this Request is mapped to supports async
+     * processing.  Called by the wrapper before the filter chain runs.
+     *
+     * @param asyncSupported the new value
+     */
+    void setAsyncSupported(boolean asyncSupported);
+
+
     // --------------------------------------------------------- Public Methods
 
 
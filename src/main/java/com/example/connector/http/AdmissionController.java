@@ -0,0 +1,250 @@
+package com.example.connector.http;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * connector级别的准入控制：同时处理的请求数有上限，超过的请求在有界队列中等待，
+ * 队列满了或者等待超时就快速拒绝（503），这样过载时已经被接收的请求延迟仍然稳定
+ * <p>
+ * 不阻塞任何线程：请求处理完调用{@link #release()}时，从队列中取下一个请求，交给它提交时指定的executor执行，
+ * 不在release的调用栈上执行，否则eventloop模式下请求会一层层嵌套下去。
+ * 有timer时入队的同时注册排队超时，一直没有请求完成（比如所有请求都卡在慢的后端上）时排队的请求也会按时被拒绝
+ *
+ * @date 2022/3/4 10:05
+ */
+public class AdmissionController {
+    /**
+     * 小于等于0表示不限制
+     */
+    private final int maxConcurrentRequests;
+    private final int maxQueuedRequests;
+    private final long queueTimeoutNanos;
+    /**
+     * 为null时只在release时检查排队超时
+     */
+    private final Timer timer;
+    private final Queue<Entry> queue = new ArrayDeque<> ();
+    private int running = 0;
+
+    private final AtomicLong admitted = new AtomicLong ();
+    private final AtomicLong queued = new AtomicLong ();
+    private final AtomicLong rejected = new AtomicLong ();
+    private final AtomicLong timedOut = new AtomicLong ();
+
+    /**
+     * @param queueTimeout 在队列中等待的最长时间，毫秒，小于等于0表示不限制
+     */
+    public AdmissionController(int maxConcurrentRequests, int maxQueuedRequests, long queueTimeout) {
+        this (maxConcurrentRequests, maxQueuedRequests, queueTimeout, null);
+    }
+
+    /**
+     * @param queueTimeout 在队列中等待的最长时间，毫秒，小于等于0表示不限制
+     * @param timer        用于排队超时，回调在timer的线程上执行reject
+     */
+    public AdmissionController(int maxConcurrentRequests, int maxQueuedRequests, long queueTimeout, Timer timer) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxQueuedRequests = Math.max (0, maxQueuedRequests);
+        this.queueTimeoutNanos = queueTimeout > 0 ? TimeUnit.MILLISECONDS.toNanos (queueTimeout) : 0;
+        this.timer = timer;
+    }
+
+    /**
+     * 排过队的task在调用release的线程上执行
+     *
+     * @see #submit(Runnable, Runnable, Executor)
+     */
+    public void submit(Runnable task, Runnable reject) {
+        submit (task, reject, null);
+    }
+
+    /**
+     * 有空位就直接执行task，否则放入队列，队列满了就执行reject
+     * task执行完后（可能在另一个线程）必须调用{@link #release()}
+     *
+     * @param executor 排过队的task交给它执行，一般是请求所在channel的eventloop；为null时在调用release的线程上执行
+     */
+    public void submit(Runnable task, Runnable reject, Executor executor) {
+        boolean run;
+        synchronized (this) {
+            if (maxConcurrentRequests <= 0 || running < maxConcurrentRequests) {
+                running++;
+                run = true;
+            } else if (queue.size () < maxQueuedRequests) {
+                Entry entry = new Entry (task, reject, executor);
+                queue.add (entry);
+                queued.incrementAndGet ();
+                if (queueTimeoutNanos > 0 && timer != null) {
+                    entry.timeout = timer.newTimeout (timeout -> expire (entry), queueTimeoutNanos, TimeUnit.NANOSECONDS);
+                }
+                return;
+            } else {
+                run = false;
+            }
+        }
+
+        if (run) {
+            admitted.incrementAndGet ();
+            task.run ();
+        } else {
+            rejected.incrementAndGet ();
+            reject.run ();
+        }
+    }
+
+    /**
+     * 一个请求处理完了，把位置让给队列中的下一个请求
+     */
+    public void release() {
+        List<Entry> expired = null;
+        Entry next = null;
+        synchronized (this) {
+            Entry entry;
+            long now = System.nanoTime ();
+            while ((entry = queue.poll ()) != null) {
+                if (queueTimeoutNanos > 0 && now - entry.enqueued > queueTimeoutNanos) {
+                    if (expired == null) {
+                        expired = new ArrayList<> ();
+                    }
+                    expired.add (entry);
+                    continue;
+                }
+                next = entry;
+                break;
+            }
+            if (next == null) {
+                running--;
+            }
+        }
+
+        if (expired != null) {
+            for (Entry entry : expired) {
+                entry.cancelTimeout ();
+                timedOut.incrementAndGet ();
+                entry.reject.run ();
+            }
+        }
+        if (next != null) {
+            next.cancelTimeout ();
+            admitted.incrementAndGet ();
+            if (next.executor == null) {
+                next.task.run ();
+                return;
+            }
+            try {
+                next.executor.execute (next.task);
+            } catch (RejectedExecutionException e) {
+                //channel的eventloop已经关闭，把位置让出去
+                admitted.decrementAndGet ();
+                rejected.incrementAndGet ();
+                release ();
+                next.reject.run ();
+            }
+        }
+    }
+
+    /**
+     * 排队超时，如果还在队列中（没有被release取走）就拒绝
+     */
+    private void expire(Entry entry) {
+        synchronized (this) {
+            if (!queue.remove (entry)) {
+                return;
+            }
+        }
+        timedOut.incrementAndGet ();
+        entry.reject.run ();
+    }
+
+    /**
+     * 关闭时拒绝所有还在排队的请求
+     */
+    public void rejectQueued() {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<> (queue);
+            queue.clear ();
+        }
+        for (Entry entry : entries) {
+            entry.cancelTimeout ();
+            rejected.incrementAndGet ();
+            entry.reject.run ();
+        }
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size ();
+    }
+
+    /**
+     * 被执行的请求总数，包括排过队的
+     */
+    public long getAdmittedCount() {
+        return admitted.get ();
+    }
+
+    /**
+     * 排过队的请求总数
+     */
+    public long getQueuedCount() {
+        return queued.get ();
+    }
+
+    /**
+     * 因为队列满了被拒绝的请求数
+     */
+    public long getRejectedCount() {
+        return rejected.get ();
+    }
+
+    /**
+     * 因为排队超时被拒绝的请求数
+     */
+    public long getTimedOutCount() {
+        return timedOut.get ();
+    }
+
+    @Override
+    public String toString() {
+        return String.format ("admitted=%d, queued=%d, rejected=%d, timedOut=%d",
+                admitted.get (), queued.get (), rejected.get (), timedOut.get ());
+    }
+
+    private static final class Entry {
+        final Runnable task;
+        final Runnable reject;
+        final Executor executor;
+        final long enqueued = System.nanoTime ();
+        /**
+         * 入队时设置，之后只会被取消
+         */
+        volatile Timeout timeout;
+
+        Entry(Runnable task, Runnable reject, Executor executor) {
+            this.task = task;
+            this.reject = reject;
+            this.executor = executor;
+        }
+
+        void cancelTimeout() {
+            Timeout t = timeout;
+            if (t != null) {
+                t.cancel ();
+            }
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package com.example.connector.http;
+
+import com.example.Context;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * servlet调用startAsync之后，请求和{@link HttpProcessor#process}的调用脱离，
+ * processor不归还到池中，直到complete（或者超时、连接断开）之后才发送响应并回收
+ * <p>
+ * 状态转换都在this上同步：
+ * <pre>
+ * STARTING --servlet返回--> STARTED --complete--> COMPLETING --> COMPLETED
+ *    |                         |
+ *    |                         +--dispatch--> DISPATCHING --servlet返回--> COMPLETING（或者再次startAsync回到STARTING）
+ *    +--complete--> COMPLETE_PENDING --servlet返回--> COMPLETING
+ *    +--dispatch--> DISPATCH_PENDING --servlet返回--> DISPATCHING
+ * </pre>
+ * servlet返回之前调用的complete、dispatch只记录下来，等servlet返回后再执行，保证同一时刻只有一个容器线程在处理这个请求。
+ * dispatch、complete、超时和读写监听器的回调都在容器线程上执行，见{@link HttpConnector#executeInContainer}
+ *
+ * @date 2022/3/7 10:20
+ */
+@Slf4j
+final class AsyncContextImpl implements AsyncContext {
+    enum State {
+        STARTING, STARTED, DISPATCH_PENDING, COMPLETE_PENDING, DISPATCHING, COMPLETING, COMPLETED
+    }
+
+    private final HttpProcessor processor;
+    private final HttpConnector connector;
+    /**
+     * processor回收后就拿不到了，所以先保存下来
+     */
+    private final ChannelHandlerContext handlerContext;
+    private final HttpRequestImpl request;
+    private final Context context;
+    private final ClassLoader classLoader;
+    private final List<ListenerHolder> listeners = new ArrayList<> ();
+    /**
+     * servlet还没返回时提交的回调，返回后再执行
+     */
+    private final List<Runnable> deferred = new ArrayList<> ();
+    private ServletRequest servletRequest;
+    private ServletResponse servletResponse;
+    private State state = State.STARTING;
+    private long timeout;
+    private Timeout timeoutTask;
+    /**
+     * 长连接上会有很多次异步请求，complete之后要从closeFuture上移除，否则会一直留到连接关闭
+     */
+    private final ChannelFutureListener closeListener = future -> onConnectionClosed ();
+    private String dispatchPath;
+    /**
+     * 设置了WriteListener，这时processor发送chunk时不能等待
+     */
+    private volatile boolean nonBlockingWrite = false;
+
+    AsyncContextImpl(HttpProcessor processor, HttpRequestImpl request, ServletRequest servletRequest,
+                     ServletResponse servletResponse) {
+        this.processor = processor;
+        this.connector = processor.getConnector ();
+        this.handlerContext = processor.getHandlerContext ();
+        this.request = request;
+        this.servletRequest = servletRequest;
+        this.servletResponse = servletResponse;
+        this.context = request.getContext ();
+        this.classLoader = Thread.currentThread ().getContextClassLoader ();
+        this.timeout = connector.getAsyncTimeout ();
+        if (context != null) {
+            //context关闭时会等待异步请求完成
+            context.incrementInProgressAsyncCount ();
+        }
+        Channel channel = handlerContext == null ? null : handlerContext.channel ();
+        if (channel != null) {
+            channel.closeFuture ().addListener (closeListener);
+        }
+    }
+
+    /**
+     * [Package Private] 在一次async dispatch中再次调用startAsync
+     */
+    synchronized void restart(ServletRequest servletRequest, ServletResponse servletResponse) {
+        if (state != State.DISPATCHING) {
+            throw new IllegalStateException ("startAsync只能在dispatch中调用, state=" + state);
+        }
+        this.servletRequest = servletRequest;
+        this.servletResponse = servletResponse;
+        this.state = State.STARTING;
+        this.timeout = connector.getAsyncTimeout ();
+        //监听器需要在onStartAsync中重新注册
+        List<ListenerHolder> old = new ArrayList<> (listeners);
+        listeners.clear ();
+        for (ListenerHolder holder : old) {
+            try {
+                holder.listener.onStartAsync (holder.event (this));
+            } catch (IOException | RuntimeException e) {
+                log.warn ("AsyncListener.onStartAsync出错", e);
+            }
+        }
+    }
+
+    /**
+     * [Package Private] servlet返回到{@link HttpProcessor}之后调用
+     *
+     * @return 请求是否还处于异步模式，false时由调用者立即结束请求
+     */
+    boolean afterDispatch() {
+        List<Runnable> tasks;
+        synchronized (this) {
+            switch (state) {
+                case STARTING:
+                    state = State.STARTED;
+                    scheduleTimeout ();
+                    tasks = new ArrayList<> (deferred);
+                    deferred.clear ();
+                    break;
+                case DISPATCH_PENDING:
+                    state = State.DISPATCHING;
+                    execute0 (this::doDispatch);
+                    return true;
+                case COMPLETE_PENDING:
+                case DISPATCHING:
+                    state = State.COMPLETING;
+                    return false;
+                default:
+                    return false;
+            }
+        }
+        for (Runnable task : tasks) {
+            execute0 (task);
+        }
+        return true;
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        return servletRequest;
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        return servletResponse;
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+        return servletRequest == request && servletResponse == request.getResponse ();
+    }
+
+    @Override
+    public void dispatch() {
+        String path = request.getDecodedRequestURI ();
+        String contextPath = request.getContextPath ();
+        if (contextPath != null && path.startsWith (contextPath)) {
+            path = path.substring (contextPath.length ());
+        }
+        String query = request.getQueryString ();
+        dispatch (query == null ? path : path + "?" + query);
+    }
+
+    @Override
+    public void dispatch(String path) {
+        dispatch (null, path);
+    }
+
+    /**
+     * 由engine重新映射，所以context参数只用来拼出完整的uri
+     */
+    @Override
+    public synchronized void dispatch(ServletContext servletContext, String path) {
+        if (path == null || !path.startsWith ("/")) {
+            throw new IllegalArgumentException ("dispatch的path必须以/开头: " + path);
+        }
+        String contextPath = servletContext != null ? servletContext.getContextPath () : request.getContextPath ();
+        dispatchPath = (contextPath == null ? "" : contextPath) + path;
+        switch (state) {
+            case STARTING:
+                state = State.DISPATCH_PENDING;
+                break;
+            case STARTED:
+                state = State.DISPATCHING;
+                cancelTimeout ();
+                execute0 (this::doDispatch);
+                break;
+            default:
+                throw new IllegalStateException ("不能dispatch, state=" + state);
+        }
+    }
+
+    @Override
+    public synchronized void complete() {
+        switch (state) {
+            case STARTING:
+                state = State.COMPLETE_PENDING;
+                break;
+            case STARTED:
+                state = State.COMPLETING;
+                cancelTimeout ();
+                execute0 (processor::finish);
+                break;
+            case COMPLETE_PENDING:
+            case COMPLETING:
+            case COMPLETED:
+                //重复调用没有影响
+                break;
+            default:
+                throw new IllegalStateException ("不能complete, state=" + state);
+        }
+    }
+
+    /**
+     * 在容器线程上执行，绑定webapp的类加载器
+     */
+    @Override
+    public void start(Runnable run) {
+        connector.executeInContainer (handlerContext, () -> bindAndRun (run));
+    }
+
+    @Override
+    public void addListener(AsyncListener listener) {
+        addListener (listener, servletRequest, servletResponse);
+    }
+
+    @Override
+    public synchronized void addListener(AsyncListener listener, ServletRequest servletRequest,
+                                         ServletResponse servletResponse) {
+        if (state != State.STARTING && state != State.DISPATCH_PENDING && state != State.COMPLETE_PENDING) {
+            throw new IllegalStateException ("只能在startAsync所在的dispatch中添加监听器");
+        }
+        listeners.add (new ListenerHolder (listener, servletRequest, servletResponse));
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> clazz) throws ServletException {
+        try {
+            return clazz.getDeclaredConstructor ().newInstance ();
+        } catch (InvocationTargetException e) {
+            throw new ServletException ("无法创建 " + clazz.getName (), e.getCause ());
+        } catch (ReflectiveOperationException e) {
+            throw new ServletException ("无法创建 " + clazz.getName (), e);
+        }
+    }
+
+    @Override
+    public synchronized void setTimeout(long timeout) {
+        if (state != State.STARTING) {
+            throw new IllegalStateException ("只能在startAsync所在的dispatch中设置超时");
+        }
+        this.timeout = timeout;
+    }
+
+    @Override
+    public synchronized long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * [Package Private] 请求已经被startAsync并且还没有结束
+     */
+    synchronized boolean isAsyncStarted() {
+        return state == State.STARTING || state == State.STARTED ||
+                state == State.DISPATCH_PENDING || state == State.COMPLETE_PENDING;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * [Package Private] 读写监听器的回调：servlet还没返回时先存起来，请求结束后丢弃
+     */
+    void execute(Runnable task) {
+        synchronized (this) {
+            if (state == State.COMPLETING || state == State.COMPLETED) {
+                return;
+            }
+            if (state != State.STARTED) {
+                deferred.add (task);
+                return;
+            }
+        }
+        execute0 (task);
+    }
+
+    ChannelHandlerContext getHandlerContext() {
+        return handlerContext;
+    }
+
+    boolean isNonBlockingWrite() {
+        return nonBlockingWrite;
+    }
+
+    void setNonBlockingWrite(boolean nonBlockingWrite) {
+        this.nonBlockingWrite = nonBlockingWrite;
+    }
+
+    /**
+     * [Package Private] 响应发出之后、processor回收之前由{@link HttpProcessor#finish}调用
+     */
+    void fireOnComplete() {
+        List<ListenerHolder> snapshot;
+        synchronized (this) {
+            if (state == State.COMPLETED) {
+                return;
+            }
+            state = State.COMPLETED;
+            cancelTimeout ();
+            deferred.clear ();
+            snapshot = new ArrayList<> (listeners);
+        }
+        if (handlerContext != null) {
+            handlerContext.channel ().closeFuture ().removeListener (closeListener);
+        }
+        try {
+            for (ListenerHolder holder : snapshot) {
+                bindAndRun (() -> {
+                    try {
+                        holder.listener.onComplete (holder.event (this));
+                    } catch (IOException | RuntimeException e) {
+                        log.warn ("AsyncListener.onComplete出错", e);
+                    }
+                });
+            }
+        } finally {
+            if (context != null) {
+                context.decrementInProgressAsyncCount ();
+            }
+        }
+    }
+
+    private void execute0(Runnable task) {
+        connector.executeInContainer (handlerContext, () -> bindAndRun (task));
+    }
+
+    private void doDispatch() {
+        try {
+            request.prepareAsyncDispatch (dispatchPath);
+            processor.invokeContainer ();
+        } catch (RuntimeException e) {
+            log.error ("async dispatch {} 失败", dispatchPath, e);
+            fireOnError (e);
+        }
+        if (!afterDispatch ()) {
+            processor.finish ();
+        }
+    }
+
+    private void scheduleTimeout() {
+        Timer timer = connector.getAsyncTimer ();
+        if (timeout > 0 && timer != null) {
+            timeoutTask = timer.newTimeout (t -> execute0 (this::onTimeout), timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelTimeout() {
+        if (timeoutTask != null) {
+            timeoutTask.cancel ();
+            timeoutTask = null;
+        }
+    }
+
+    /**
+     * 先通知监听器，监听器没有complete或者dispatch的话回复500并结束
+     */
+    private void onTimeout() {
+        List<ListenerHolder> snapshot;
+        synchronized (this) {
+            if (state != State.STARTED) {
+                return;
+            }
+            timeoutTask = null;
+            snapshot = new ArrayList<> (listeners);
+        }
+        log.debug ("请求 {} 异步处理超时, timeout={}", request.getDecodedRequestURI (), timeout);
+        for (ListenerHolder holder : snapshot) {
+            try {
+                holder.listener.onTimeout (holder.event (this));
+            } catch (IOException | RuntimeException e) {
+                log.warn ("AsyncListener.onTimeout出错", e);
+            }
+        }
+        synchronized (this) {
+            if (state != State.STARTED) {
+                return;
+            }
+            HttpServletResponse response = (HttpServletResponse) request.getResponse ();
+            if (response != null && !response.isCommitted ()) {
+                response.reset ();
+                response.setStatus (HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            state = State.COMPLETING;
+        }
+        processor.finish ();
+    }
+
+    /**
+     * 客户端在complete之前断开了连接
+     */
+    private void onConnectionClosed() {
+        synchronized (this) {
+            if (state != State.STARTED) {
+                return;
+            }
+        }
+        execute0 (() -> {
+            fireOnError (new IOException ("连接已关闭"));
+            synchronized (this) {
+                if (state != State.STARTED) {
+                    return;
+                }
+                state = State.COMPLETING;
+                cancelTimeout ();
+            }
+            processor.finish ();
+        });
+    }
+
+    private void fireOnError(Throwable cause) {
+        List<ListenerHolder> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<> (listeners);
+        }
+        for (ListenerHolder holder : snapshot) {
+            try {
+                holder.listener.onError (new AsyncEvent (this, holder.request, holder.response, cause));
+            } catch (IOException | RuntimeException e) {
+                log.warn ("AsyncListener.onError出错", e);
+            }
+        }
+    }
+
+    /**
+     * 回调的是webapp的类，绑定startAsync时的类加载器
+     */
+    private void bindAndRun(Runnable r) {
+        Thread thread = Thread.currentThread ();
+        ClassLoader old = thread.getContextClassLoader ();
+        if (classLoader != null) {
+            thread.setContextClassLoader (classLoader);
+        }
+        try {
+            r.run ();
+        } catch (RuntimeException e) {
+            log.error ("异步任务出错", e);
+        } finally {
+            thread.setContextClassLoader (old);
+        }
+    }
+
+    private static final class ListenerHolder {
+        private final AsyncListener listener;
+        private final ServletRequest request;
+        private final ServletResponse response;
+
+        ListenerHolder(AsyncListener listener, ServletRequest request, ServletResponse response) {
+            this.listener = listener;
+            this.request = request;
+            this.response = response;
+        }
+
+        AsyncEvent event(AsyncContext asyncContext) {
+            return new AsyncEvent (asyncContext, request, response);
+        }
+    }
+}
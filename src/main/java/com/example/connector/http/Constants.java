@@ -8,8 +8,137 @@ import java.util.Locale;
  * @date 2021/12/8 19:52
  */
 public final class Constants {
-    public static final int MAX_BODY_LENGTH = 65536;//超过就会忽略
+    public static final int MAX_BODY_LENGTH = 65536;//聚合模式下body和表单body的默认上限
     //    public static final int WRITE_BUFFER_SIZE = 1024;//即写body的时候，会持续写
     public static final SimpleDateFormat DATE_TIME_FORMATTER =
             new SimpleDateFormat ("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+
+    /**
+     * servlet直接在netty的io线程上执行，慢servlet会阻塞这个eventloop上的所有连接
+     */
+    public static final String EXECUTOR_EVENT_LOOP = "eventloop";
+    /**
+     * servlet在固定大小的worker线程池中执行
+     */
+    public static final String EXECUTOR_FIXED = "fixed";
+    /**
+     * 每个请求一个虚拟线程，jdk不支持时退化为每个请求一个普通线程
+     */
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+    public static final int DEFAULT_MAX_THREADS = 200;
+    /**
+     * jdk nio，所有平台都可用
+     */
+    public static final String TRANSPORT_NIO = "nio";
+    /**
+     * linux原生epoll，不可用时退化为nio
+     */
+    public static final String TRANSPORT_EPOLL = "epoll";
+    /**
+     * 只支持http/1.x
+     */
+    public static final String PROTOCOL_HTTP_1_1 = "http/1.1";
+    /**
+     * 明文http/2，支持Upgrade: h2c和prior knowledge，不升级的客户端仍然使用http/1.1
+     */
+    public static final String PROTOCOL_H2C = "h2c";
+    /**
+     * TLS上的http/2，通过ALPN协商，不支持h2的客户端仍然使用http/1.1，需要开启sslEnabled
+     */
+    public static final String PROTOCOL_H2 = "h2";
+    /**
+     * websocket消息（合并分片后）的最大长度
+     */
+    public static final int DEFAULT_MAX_WEBSOCKET_MESSAGE_SIZE = 65536;
+    public static final String DEFAULT_KEYSTORE_TYPE = "PKCS12";
+    public static final String DEFAULT_SSL_PROTOCOLS = "TLSv1.2,TLSv1.3";
+    /**
+     * 服务端缓存的TLS session个数，用于session id方式的恢复
+     */
+    public static final long DEFAULT_SSL_SESSION_CACHE_SIZE = 20480;
+    /**
+     * TLS session的有效期，秒
+     */
+    public static final long DEFAULT_SSL_SESSION_TIMEOUT = 3600;
+    /**
+     * jdk13+的无状态session ticket开关，jvm级别
+     */
+    public static final String SESSION_TICKET_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+    public static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+    /**
+     * 连接空闲多久后关闭，毫秒
+     */
+    public static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 20000;
+    /**
+     * 一个连接上最多处理多少个请求，小于等于0表示不限制
+     */
+    public static final int DEFAULT_MAX_KEEP_ALIVE_REQUESTS = 100;
+    /**
+     * 接收请求时客户端多久不发数据就关闭，毫秒
+     */
+    public static final int DEFAULT_READ_TIMEOUT = 20000;
+    /**
+     * 响应多久写不出去就关闭，毫秒
+     */
+    public static final int DEFAULT_WRITE_TIMEOUT = 60000;
+    /**
+     * 不压缩
+     */
+    public static final String COMPRESSION_OFF = "off";
+    /**
+     * 压缩compressibleMimeType中且不小于compressionMinSize的响应
+     */
+    public static final String COMPRESSION_ON = "on";
+    /**
+     * 只要客户端支持就压缩
+     */
+    public static final String COMPRESSION_FORCE = "force";
+    public static final int DEFAULT_COMPRESSION_MIN_SIZE = 2048;
+    public static final String DEFAULT_COMPRESSIBLE_MIME_TYPE = "text/html,text/xml,text/plain,text/css," +
+            "text/javascript,application/javascript,application/json,application/xml";
+    public static final int DEFAULT_MAX_QUEUED_REQUESTS = 100;
+    public static final long DEFAULT_QUEUE_TIMEOUT = 10000;
+    public static final int DEFAULT_RETRY_AFTER = 1;
+    /**
+     * 关闭时等待正在处理的请求完成的最长时间，毫秒
+     */
+    public static final long DEFAULT_DRAIN_TIMEOUT = 10000;
+    /**
+     * startAsync之后没有complete或者dispatch的超时时间，毫秒
+     */
+    public static final long DEFAULT_ASYNC_TIMEOUT = 30000;
+    /**
+     * 异步超时定时器的精度，毫秒
+     */
+    public static final long ASYNC_TIMER_TICK = 100;
+    /**
+     * unix domain socket上没有客户端ip，由前面的代理放在这个header中
+     */
+    public static final String DEFAULT_REMOTE_IP_HEADER = "X-Forwarded-For";
+    public static final String ALLOCATOR_POOLED = "pooled";
+    public static final String ALLOCATOR_UNPOOLED = "unpooled";
+    /**
+     * 会影响（但是不是决定）全连接队列accept大小
+     */
+    public static final int DEFAULT_BACKLOG = 128;
+    /**
+     * 空闲processor池的上限
+     */
+    public static final int DEFAULT_MAX_PROCESSORS = 200;
+    /**
+     * 流式body在内存中缓存的上限，超过就暂停读socket
+     */
+    public static final int DEFAULT_REQUEST_BODY_BUFFER_SIZE = 65536;
+    /**
+     * 等待下一个body chunk的最长时间，毫秒
+     */
+    public static final long DEFAULT_UPLOAD_TIMEOUT = 60000;
+    /**
+     * 响应body超过这个大小就提交header，以chunk的形式发送
+     */
+    public static final int DEFAULT_RESPONSE_BUFFER_SIZE = 8192;
+    /**
+     * 不能零拷贝发送文件时（TLS、压缩），每次从文件读取的大小
+     */
+    public static final int SENDFILE_CHUNK_SIZE = 65536;
 }
@@ -0,0 +1,67 @@
+package com.example.connector.http;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 流式模式下没有{@link HttpObjectAggregator}，由这个handler代替它做两件事：
+ * <p>
+ * 1. 客户端带了Expect: 100-continue时回复100，客户端收到后才发送body
+ * 2. Content-Length超过maxPostSize时回复413并关闭连接，不再接收body
+ * <p>
+ * 没有Content-Length的chunked请求在这里不做限制
+ *
+ * @date 2022/3/8 10:30
+ */
+final class ExpectContinueHandler extends HttpServerExpectContinueHandler {
+    private final long maxPostSize;
+    /**
+     * 被拒绝的请求后面的HttpContent直接丢弃
+     */
+    private boolean discarding = false;
+
+    ExpectContinueHandler(long maxPostSize) {
+        this.maxPostSize = maxPostSize;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest && tooLarge ((HttpRequest) msg)) {
+            //父类拒绝之后不关闭连接，但解码器还在等body，之后的请求没法正确解析，所以这里自己发送并关闭
+            HttpResponse response = rejectResponse ((HttpRequest) msg);
+            discarding = !(msg instanceof LastHttpContent);
+            ReferenceCountUtil.release (msg);
+            ctx.writeAndFlush (response).addListener (ChannelFutureListener.CLOSE);
+            return;
+        }
+        if (discarding && msg instanceof HttpContent) {
+            discarding = !(msg instanceof LastHttpContent);
+            ReferenceCountUtil.release (msg);
+            return;
+        }
+        super.channelRead (ctx, msg);
+    }
+
+    @Override
+    protected HttpResponse acceptMessage(HttpRequest request) {
+        return tooLarge (request) ? null : super.acceptMessage (request);
+    }
+
+    @Override
+    protected HttpResponse rejectResponse(HttpRequest request) {
+        if (!tooLarge (request)) {
+            return super.rejectResponse (request);
+        }
+        FullHttpResponse response = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1,
+                HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+        HttpUtil.setContentLength (response, 0);
+        response.headers ().set (HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        return response;
+    }
+
+    private boolean tooLarge(HttpRequest request) {
+        return HttpUtil.getContentLength (request, -1L) > maxPostSize;
+    }
+}
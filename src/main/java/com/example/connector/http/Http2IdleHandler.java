@@ -0,0 +1,39 @@
+package com.example.connector.http;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * http/2连接的空闲超时，放在frame codec之前，代替升级后被移除的{@link KeepAliveHandler}
+ * <p>
+ * 连接上超过keepAliveTimeout没有任何读写，并且没有活跃的stream时关闭连接，
+ * 关闭会经过{@link Http2FrameCodec}，由它先发送GOAWAY。还有stream在处理的话不关闭，等下一次空闲再检查
+ *
+ * @date 2022/3/8 14:20
+ */
+@Slf4j
+final class Http2IdleHandler extends IdleStateHandler {
+
+    Http2IdleHandler(long keepAliveTimeout) {
+        super (0, 0, keepAliveTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) {
+        if (evt.state () != IdleState.ALL_IDLE) {
+            return;
+        }
+        Http2FrameCodec codec = ctx.pipeline ().get (Http2FrameCodec.class);
+        if (codec != null && codec.connection ().numActiveStreams () > 0) {
+            return;
+        }
+        log.debug ("关闭空闲的http/2连接 {}", ctx.channel ());
+        ctx.channel ().close ();
+    }
+}
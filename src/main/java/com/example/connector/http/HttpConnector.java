@@ -2,22 +2,66 @@ package com.example.connector.http;
 
 import com.example.Container;
 import com.example.Service;
+import com.example.connector.ByteBufInputStream;
 import com.example.connector.Connector;
 import com.example.connector.Request;
 import com.example.connector.Response;
 import com.example.life.*;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolConfig;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.codec.http2.*;
+import io.netty.handler.ssl.*;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.AsciiString;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import io.netty.util.concurrent.ThreadPerTaskExecutor;
 import lombok.extern.slf4j.Slf4j;
 
+import javax.net.ssl.KeyManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @date 2021/12/8 19:55
@@ -25,13 +69,211 @@ import java.util.List;
 @Slf4j
 public class HttpConnector extends LifecycleBase implements Connector {
     private static final String info = "com.example.connector.http.HttpConnector：一个 http connector";
-    private final List<HttpProcessor> runningProcessors = new ArrayList<> ();
+    /**
+     * 非阻塞写时，channel重新可写后要执行的回调，只执行一次
+     */
+    static final AttributeKey<Runnable> WRITABLE_CALLBACK = AttributeKey.valueOf ("writableCallback");
+    /**
+     * 正在处理请求的processor，处理完后会被移除
+     */
+    private final Set<HttpProcessor> runningProcessors = ConcurrentHashMap.newKeySet ();
+    /**
+     * 空闲的processor，有界；processor可能在eventloop上分配而在worker上归还，所以用无锁队列而不是ThreadLocal
+     */
+    private final Queue<HttpProcessor> idleProcessors = new ConcurrentLinkedQueue<> ();
+    private final AtomicInteger idleCount = new AtomicInteger ();
+    private final AtomicLong createdProcessors = new AtomicLong ();
+    private final AtomicLong reusedProcessors = new AtomicLong ();
+    private final AtomicLong discardedProcessors = new AtomicLong ();
+    /**
+     * 按原因统计的关闭的连接数
+     */
+    private final Map<KeepAliveHandler.CloseReason, AtomicLong> closedConnections =
+            new EnumMap<> (KeepAliveHandler.CloseReason.class);
+
+    {
+        for (KeepAliveHandler.CloseReason reason : KeepAliveHandler.CloseReason.values ()) {
+            closedConnections.put (reason, new AtomicLong ());
+        }
+    }
+    /**
+     * 空闲池的最大容量，超过的processor会被丢弃
+     */
+    private int maxProcessors = Constants.DEFAULT_MAX_PROCESSORS;
+    /**
+     * 是否流式接收请求body，只在非eventloop模式下生效
+     */
+    private boolean streamRequestBody = true;
+    /**
+     * 是否允许servlet把静态文件直接交给connector发送（FileRegion，零拷贝）
+     */
+    private boolean useSendfile = true;
+    /**
+     * 聚合模式下body的上限，以及x-www-form-urlencoded body的上限
+     */
+    private int maxPostSize = Constants.MAX_BODY_LENGTH;
+    private int requestBodyBufferSize = Constants.DEFAULT_REQUEST_BODY_BUFFER_SIZE;
+    private long uploadTimeout = Constants.DEFAULT_UPLOAD_TIMEOUT;
+    private int bufferSize = Constants.DEFAULT_RESPONSE_BUFFER_SIZE;
     private int port = 8080;
     private Container container;
     private String scheme = "http";
     private boolean secure = false;
-    private NioEventLoopGroup group;
+    /**
+     * 开启后每个连接先经过SslHandler，使用jdk的TLS实现
+     */
+    private boolean sslEnabled = false;
+    /**
+     * 相对路径时相对于catalina.base
+     */
+    private String keystoreFile;
+    private String keystorePass;
+    private String keystoreType = Constants.DEFAULT_KEYSTORE_TYPE;
+    /**
+     * 私钥的密码，为空时和keystorePass相同
+     */
+    private String keyPass;
+    /**
+     * 逗号分隔，如TLSv1.2,TLSv1.3
+     */
+    private String sslProtocols = Constants.DEFAULT_SSL_PROTOCOLS;
+    /**
+     * 逗号分隔，为空时使用jdk的默认值，h2下使用http/2允许的cipher
+     */
+    private String ciphers;
+    private long sessionCacheSize = Constants.DEFAULT_SSL_SESSION_CACHE_SIZE;
+    private long sessionTimeout = Constants.DEFAULT_SSL_SESSION_TIMEOUT;
+    /**
+     * 是否开启无状态的session ticket（jdk13+），为null时使用jvm的默认值。
+     * 对应jvm级别的jdk.tls.server.enableSessionTicketExtension，只在jvm中第一次使用TLS之前设置才生效
+     */
+    private Boolean sessionTickets;
+    private SslContext sslContext;
+    /**
+     * 负责accept的线程组
+     */
+    private EventLoopGroup bossGroup;
+    /**
+     * 负责连接读写的线程组
+     */
+    private EventLoopGroup group;
+    /**
+     * 监听的server channel，开启reusePort时有多个
+     */
+    private final List<Channel> serverChannels = new ArrayList<> ();
+    /**
+     * io方式，见{@link Constants#TRANSPORT_NIO}
+     */
+    private String transport = Constants.TRANSPORT_NIO;
+    /**
+     * 不为空时监听这个unix domain socket而不是tcp端口，给同一台机器上的nginx/envoy等代理用，
+     * 省掉tcp协议栈的开销。只在epoll下支持
+     */
+    private String unixSocketPath;
+    /**
+     * unix domain socket上的对端是本机的代理，客户端地址从这个header中取
+     */
+    private String remoteIpHeader = Constants.DEFAULT_REMOTE_IP_HEADER;
+    private int bossThreads = 1;
+    /**
+     * 0表示使用netty的默认值，即cpu核数*2
+     */
+    private int workerThreads = 0;
+    private int backlog = Constants.DEFAULT_BACKLOG;
+    private boolean tcpNoDelay = true;
+    /**
+     * 是否开启SO_REUSEPORT，开启后会有acceptorCount个channel绑定同一个端口，由内核分配连接，只在epoll下生效
+     */
+    private boolean reusePort = false;
+    private int acceptorCount = 1;
+    /**
+     * ByteBuf分配器，见{@link Constants#ALLOCATOR_POOLED}
+     */
+    private String allocator = Constants.ALLOCATOR_POOLED;
+    /**
+     * 应用层协议，见{@link Constants#PROTOCOL_H2C}
+     */
+    private String protocol = Constants.PROTOCOL_HTTP_1_1;
+    /**
+     * http/2下每个连接同时处理的stream上限
+     */
+    private int maxConcurrentStreams = Constants.DEFAULT_MAX_CONCURRENT_STREAMS;
+    private int maxWebSocketMessageSize = Constants.DEFAULT_MAX_WEBSOCKET_MESSAGE_SIZE;
+    /**
+     * AsyncContext的默认超时，小于等于0表示不超时
+     */
+    private long asyncTimeout = Constants.DEFAULT_ASYNC_TIMEOUT;
+    /**
+     * 所有AsyncContext共用的超时定时器
+     */
+    private volatile Timer asyncTimer;
+    /**
+     * 以下超时都是毫秒，0表示不检查
+     */
+    private int keepAliveTimeout = Constants.DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private int readTimeout = Constants.DEFAULT_READ_TIMEOUT;
+    private int writeTimeout = Constants.DEFAULT_WRITE_TIMEOUT;
+    private int maxKeepAliveRequests = Constants.DEFAULT_MAX_KEEP_ALIVE_REQUESTS;
+    /**
+     * 响应压缩，见{@link Constants#COMPRESSION_ON}
+     */
+    private String compression = Constants.COMPRESSION_OFF;
+    private int compressionMinSize = Constants.DEFAULT_COMPRESSION_MIN_SIZE;
+    /**
+     * 逗号分隔的mime类型
+     */
+    private String compressibleMimeType = Constants.DEFAULT_COMPRESSIBLE_MIME_TYPE;
+    private Set<String> compressibleMimeTypes;
+    /**
+     * 同时处理的请求数上限，小于等于0表示不限制
+     */
+    private int maxConcurrentRequests = 0;
+    /**
+     * 超过上限时排队的请求数上限，队列满了直接回复503
+     */
+    private int maxQueuedRequests = Constants.DEFAULT_MAX_QUEUED_REQUESTS;
+    /**
+     * 排队的最长时间，毫秒
+     */
+    private long queueTimeout = Constants.DEFAULT_QUEUE_TIMEOUT;
+    /**
+     * 503响应的Retry-After，秒
+     */
+    private int retryAfter = Constants.DEFAULT_RETRY_AFTER;
+    /**
+     * 没有限制时为null
+     */
+    private volatile AdmissionController admission;
+    /**
+     * 关闭时等待正在处理的请求完成的最长时间，毫秒，小于等于0表示不等待
+     */
+    private long drainTimeout = Constants.DEFAULT_DRAIN_TIMEOUT;
+    /**
+     * 关闭中，不再接受新请求，新到达的请求回复503并关闭连接
+     */
+    private volatile boolean draining = false;
+    /**
+     * 正在处理（已经交给processor）的请求数
+     */
+    private final AtomicInteger activeRequests = new AtomicInteger ();
+    /**
+     * 所有打开的连接，关闭时用来通知空闲的连接关闭
+     */
+    private ChannelGroup channels;
+    private ByteBufAllocator byteBufAllocator = PooledByteBufAllocator.DEFAULT;
     private Service service;//为了使server.xml解析正确执行
+    /**
+     * servlet的执行方式，见{@link Constants#EXECUTOR_FIXED}等
+     */
+    private String executor = Constants.EXECUTOR_FIXED;
+    /**
+     * fixed模式下worker线程数
+     */
+    private int maxThreads = Constants.DEFAULT_MAX_THREADS;
+    /**
+     * eventloop模式下为null
+     */
+    private ExecutorService workerExecutor;
 
     public Service getService() {
         return service;
@@ -61,62 +303,919 @@ public class HttpConnector extends LifecycleBase implements Connector {
         this.container = container;
     }
 
+    public String getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(String executor) {
+        this.executor = executor;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public boolean getStreamRequestBody() {
+        return streamRequestBody;
+    }
+
+    public void setStreamRequestBody(boolean streamRequestBody) {
+        this.streamRequestBody = streamRequestBody;
+    }
+
+    public boolean getUseSendfile() {
+        return useSendfile;
+    }
+
+    public void setUseSendfile(boolean useSendfile) {
+        this.useSendfile = useSendfile;
+    }
+
+    public int getMaxPostSize() {
+        return maxPostSize;
+    }
+
+    public void setMaxPostSize(int maxPostSize) {
+        this.maxPostSize = maxPostSize;
+    }
+
+    public int getRequestBodyBufferSize() {
+        return requestBodyBufferSize;
+    }
+
+    public void setRequestBodyBufferSize(int requestBodyBufferSize) {
+        this.requestBodyBufferSize = requestBodyBufferSize;
+    }
+
+    public long getUploadTimeout() {
+        return uploadTimeout;
+    }
+
+    public void setUploadTimeout(long uploadTimeout) {
+        this.uploadTimeout = uploadTimeout;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getMaxProcessors() {
+        return maxProcessors;
+    }
+
+    public void setMaxProcessors(int maxProcessors) {
+        this.maxProcessors = maxProcessors;
+    }
+
+    public long getCreatedProcessors() {
+        return createdProcessors.get ();
+    }
+
+    public long getReusedProcessors() {
+        return reusedProcessors.get ();
+    }
+
+    public long getDiscardedProcessors() {
+        return discardedProcessors.get ();
+    }
+
+    public int getIdleProcessors() {
+        return idleCount.get ();
+    }
+
+    public int getRunningProcessors() {
+        return runningProcessors.size ();
+    }
+
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public String getUnixSocketPath() {
+        return unixSocketPath;
+    }
+
+    public void setUnixSocketPath(String unixSocketPath) {
+        this.unixSocketPath = unixSocketPath;
+    }
+
+    public boolean isUnixSocket() {
+        return unixSocketPath != null && !unixSocketPath.trim ().isEmpty ();
+    }
+
+    public String getRemoteIpHeader() {
+        return remoteIpHeader;
+    }
+
+    public void setRemoteIpHeader(String remoteIpHeader) {
+        this.remoteIpHeader = remoteIpHeader;
+    }
+
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    public void setBossThreads(int bossThreads) {
+        this.bossThreads = bossThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    public boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean getReusePort() {
+        return reusePort;
+    }
+
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public int getAcceptorCount() {
+        return acceptorCount;
+    }
+
+    public void setAcceptorCount(int acceptorCount) {
+        this.acceptorCount = acceptorCount;
+    }
+
+    public String getAllocator() {
+        return allocator;
+    }
+
+    public void setAllocator(String allocator) {
+        this.allocator = allocator;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    public int getMaxKeepAliveRequests() {
+        return maxKeepAliveRequests;
+    }
+
+    public void setMaxKeepAliveRequests(int maxKeepAliveRequests) {
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionMinSize() {
+        return compressionMinSize;
+    }
+
+    public void setCompressionMinSize(int compressionMinSize) {
+        this.compressionMinSize = compressionMinSize;
+    }
+
+    public String getCompressibleMimeType() {
+        return compressibleMimeType;
+    }
+
+    public void setCompressibleMimeType(String compressibleMimeType) {
+        this.compressibleMimeType = compressibleMimeType;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    public int getMaxQueuedRequests() {
+        return maxQueuedRequests;
+    }
+
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+    }
+
+    public long getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    public void setQueueTimeout(long queueTimeout) {
+        this.queueTimeout = queueTimeout;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * 准入控制的统计，没有限制时返回null
+     */
+    public AdmissionController getAdmissionController() {
+        return admission;
+    }
+
+    /**
+     * 因为某个原因关闭的连接数
+     */
+    public long getClosedConnections(KeepAliveHandler.CloseReason reason) {
+        return closedConnections.get (reason).get ();
+    }
+
+    void connectionClosed(KeepAliveHandler.CloseReason reason) {
+        closedConnections.get (reason).incrementAndGet ();
+    }
+
+    /**
+     * processor分配响应buffer时使用
+     */
+    public ByteBufAllocator getByteBufAllocator() {
+        return byteBufAllocator;
+    }
+
+    /**
+     * 执行servlet的线程池，eventloop模式下返回null
+     */
+    public ExecutorService getWorkerExecutor() {
+        return workerExecutor;
+    }
+
     /**
      * 同步的，启动后会阻塞住
      */
     public synchronized void start() throws LifecycleException {
         super.start ();
 
+        workerExecutor = createWorkerExecutor ();
+        //servlet会阻塞读body，所以流式模式不能在eventloop上执行
+        final boolean streaming = streamRequestBody && workerExecutor != null;
+        if (streamRequestBody && !streaming) {
+            log.warn ("{} eventloop模式下不支持流式body，使用HttpObjectAggregator", this);
+        }
+
+        byteBufAllocator = createAllocator ();
+        final boolean unixSocket = isUnixSocket ();
+        if (unixSocket && !Epoll.isAvailable ()) {
+            throw new LifecycleException ("unix domain socket需要epoll: " + Epoll.unavailabilityCause ());
+        }
+        boolean epoll = unixSocket || useEpoll ();
+        //reusePort时每个acceptor一个boss线程
+        int acceptors = epoll && reusePort && !unixSocket ? Math.max (1, acceptorCount) : 1;
+        if (reusePort && (!epoll || unixSocket)) {
+            log.warn ("{} SO_REUSEPORT只在epoll下支持，忽略", this);
+        }
+        int bosses = Math.max (bossThreads, acceptors);
+        final boolean http2 = isHttp2 ();
+        sslContext = sslEnabled ? createSslContext (http2) : null;
+        if (sslEnabled && "http".equalsIgnoreCase (scheme)) {
+            //request.isSecure、getScheme要和实际的连接一致
+            scheme = "https";
+            secure = true;
+        }
+        initCompression ();
+        draining = false;
+        asyncTimer = new HashedWheelTimer (new DefaultThreadFactory ("http-async-" + port),
+                Constants.ASYNC_TIMER_TICK, TimeUnit.MILLISECONDS);
+        //排队超时和异步超时共用一个timer
+        admission = maxConcurrentRequests > 0 ?
+                new AdmissionController (maxConcurrentRequests, maxQueuedRequests, queueTimeout, asyncTimer) : null;
+        channels = new DefaultChannelGroup ("http-" + port, GlobalEventExecutor.INSTANCE);
+
         ServerBootstrap b = new ServerBootstrap ();
-        group = new NioEventLoopGroup ();
-        b.group (group)
-                .channel (NioServerSocketChannel.class)
-                .childHandler (new ChannelInitializer<SocketChannel> () {
+        if (epoll) {
+            bossGroup = new EpollEventLoopGroup (bosses, new DefaultThreadFactory ("http-boss-" + port));
+            group = new EpollEventLoopGroup (workerThreads, new DefaultThreadFactory ("http-io-" + port));
+            b.channel (unixSocket ? EpollServerDomainSocketChannel.class : EpollServerSocketChannel.class);
+            if (acceptors > 1) {
+                b.option (EpollChannelOption.SO_REUSEPORT, Boolean.TRUE);
+            }
+        } else {
+            bossGroup = new NioEventLoopGroup (bosses, new DefaultThreadFactory ("http-boss-" + port));
+            group = new NioEventLoopGroup (workerThreads, new DefaultThreadFactory ("http-io-" + port));
+            b.channel (NioServerSocketChannel.class);
+        }
+        b.group (bossGroup, group)
+                .childHandler (new ChannelInitializer<Channel> () {
                     @Override
-                    public void initChannel(SocketChannel ch) {
-                        ch.pipeline () //内部是分类型有序的！
-                                .addLast ("decoder", new HttpRequestDecoder ())
-                                .addLast ("encoder", new HttpResponseEncoder ())
-                                .addLast ("aggregator", new HttpObjectAggregator (Constants.MAX_BODY_LENGTH))
-//                                代表聚合的消息内容长度不超过512kb。
-//                                这样可以接收到完整的报文，包括body
-//                                HttpObjectAggregato也是一个ChannelHandler
-                                .addLast ("handler", new HttpHandler ());
+                    public void initChannel(Channel ch) {
+                        //关闭后自动从group中移除
+                        channels.add (ch);
+                        ChannelPipeline pipeline = ch.pipeline (); //内部是分类型有序的！
+                        if (sslContext != null) {
+                            pipeline.addLast ("ssl", sslContext.newHandler (ch.alloc ()));
+                        }
+                        if (sslContext != null && http2) {
+                            //握手完成后根据ALPN的结果再安装http/1.1或者http/2的编解码
+                            pipeline.addLast ("alpn", new AlpnHandler (streaming));
+                        } else if (http2) {
+                            //升级成功前（或者客户端不升级）仍然按http/1.1处理
+                            pipeline.addLast ("h2c", createH2cUpgradeHandler (streaming));
+                        } else {
+                            pipeline.addLast ("decoder", new HttpRequestDecoder ())
+                                    .addLast ("encoder", new HttpResponseEncoder ());
+                        }
+                        pipeline.addLast ("idle", KeepAliveHandler.newIdleStateHandler (HttpConnector.this))
+                                .addLast ("keepAlive", new KeepAliveHandler (HttpConnector.this));
+                        initHttpPipeline (pipeline, streaming);
                     }
                 })
                 //会影响（但是不是决定）全连接队列accept大小
-                .option (ChannelOption.SO_BACKLOG, 128) // determining the number of connections queued
-                .childOption (ChannelOption.SO_KEEPALIVE, Boolean.TRUE);
+                .option (ChannelOption.SO_BACKLOG, backlog) // determining the number of connections queued
+                .option (ChannelOption.ALLOCATOR, byteBufAllocator)
+                .childOption (ChannelOption.ALLOCATOR, byteBufAllocator);
+        //domain socket不支持tcp的选项
+        if (!unixSocket) {
+            b.childOption (ChannelOption.SO_KEEPALIVE, Boolean.TRUE)
+                    .childOption (ChannelOption.TCP_NODELAY, tcpNoDelay);
+        }
+        SocketAddress address = unixSocket ? new DomainSocketAddress (unixSocketPath) : new InetSocketAddress (port);
         try {
-            //等待端口绑定
-            b.bind (port).sync ();
+            if (unixSocket) {
+                //上次没有正常关闭时会留下socket文件，导致bind失败
+                deleteSocketFile ();
+            }
+            //等待端口绑定，reusePort时多个channel绑定同一个端口，内核负责把连接分散到各个acceptor
+            for (int i = 0; i < acceptors; i++) {
+                serverChannels.add (b.bind (address).sync ().channel ());
+            }
             //异步启动
         } catch (InterruptedException e) {
             log.error (this + " err shutdown", e);
         }
-        log.info (this + " 启动完成");
+        log.info ("{} 启动完成, transport={}, acceptors={}, protocol={}, ssl={}", this, epoll ? Constants.TRANSPORT_EPOLL :
+                Constants.TRANSPORT_NIO, acceptors, protocol, sslEnabled);
+    }
+
+    private void deleteSocketFile() {
+        try {
+            Files.deleteIfExists (Paths.get (unixSocketPath));
+        } catch (IOException e) {
+            log.warn ("{} 无法删除socket文件 {}", this, unixSocketPath, e);
+        }
     }
 
     @Override
     public String toString() {
-        return String.format ("Connector[%s-%s]", scheme, port);
+        return String.format ("Connector[%s-%s]", scheme, isUnixSocket () ? "unix:" + unixSocketPath : port);
     }
 
+    /**
+     * 先排空再关闭：
+     * 1. 关闭监听，不再接受新连接
+     * 2. 空闲的连接直接关闭，http/2连接发送GOAWAY；之后到达的请求回复503和Connection: close
+     * 3. 等待正在处理的请求完成，最多drainTimeout
+     * 4. 关闭线程池
+     */
     @Override
     public synchronized void stop() throws LifecycleException {
         super.stop ();
 
-        //关闭线程池
+        //先关闭监听，再关闭线程池
+        for (Channel channel : serverChannels) {
+            channel.close ().awaitUninterruptibly ();
+        }
+        serverChannels.clear ();
+        if (isUnixSocket ()) {
+            deleteSocketFile ();
+        }
+        draining = true;
+        if (admission != null) {
+            admission.rejectQueued ();
+        }
+        drain ();
+        if (asyncTimer != null) {
+            asyncTimer.stop ();
+            asyncTimer = null;
+        }
+        bossGroup.shutdownGracefully ();
         group.shutdownGracefully ();
+        if (workerExecutor != null) {
+            workerExecutor.shutdown ();
+            try {
+                if (!workerExecutor.awaitTermination (5, TimeUnit.SECONDS)) {
+                    workerExecutor.shutdownNow ();
+                }
+            } catch (InterruptedException e) {
+                workerExecutor.shutdownNow ();
+            }
+            workerExecutor = null;
+        }
 
         //关闭所有子组件;因为是组合关系
         //copy一份，防止被processor组件修改
         final List<HttpProcessor> processors = new ArrayList<> (runningProcessors);
-        for (HttpProcessor runningProcessor : processors) {
-            runningProcessor.stop ();
+        HttpProcessor idle;
+        while ((idle = idleProcessors.poll ()) != null) {
+            idleCount.decrementAndGet ();
+            processors.add (idle);
+        }
+        for (HttpProcessor processor : processors) {
+            if (processor.isRunning ()) {
+                processor.stop ();
+            }
+        }
+        runningProcessors.clear ();
+
+        log.info ("{} shutdown, processors created={}, reused={}, discarded={}, closed connections={}, admission={}",
+                this, createdProcessors.get (), reusedProcessors.get (), discardedProcessors.get (), closedConnections,
+                admission);
+    }
+
+    /**
+     * 通知所有连接进入关闭流程，然后等待正在处理的请求完成
+     */
+    private void drain() {
+        log.info ("{} 开始排空, 连接数={}, 正在处理的请求数={}", this, channels.size (), activeRequests.get ());
+        for (Channel channel : channels) {
+            if (channel.pipeline ().get (Http2FrameCodec.class) != null) {
+                //http/2: 告诉客户端不要再开新的stream，已有的stream继续处理
+                channel.writeAndFlush (new DefaultHttp2GoAwayFrame (Http2Error.NO_ERROR));
+            } else {
+                channel.pipeline ().fireUserEventTriggered (KeepAliveHandler.DRAIN_EVENT);
+            }
+        }
+
+        long limit = System.currentTimeMillis () + drainTimeout;
+        while (activeRequests.get () > 0 && System.currentTimeMillis () < limit) {
+            try {
+                Thread.sleep (50);
+            } catch (InterruptedException e) {
+                Thread.currentThread ().interrupt ();
+                break;
+            }
+        }
+        if (activeRequests.get () > 0) {
+            log.warn ("{} 排空超时, 还有{}个请求没有完成", this, activeRequests.get ());
+        } else {
+            log.info ("{} 排空完成", this);
+        }
+        channels.close ().awaitUninterruptibly (1, TimeUnit.SECONDS);
+    }
+
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public void setDrainTimeout(long drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * 是否正在关闭，此时处理完的响应都会带上Connection: close
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public int getActiveRequests() {
+        return activeRequests.get ();
+    }
+
+    /**
+     * http编解码之后的部分，http/1.1的连接和http/2的每个stream共用
+     */
+    private void initHttpPipeline(ChannelPipeline pipeline, boolean streaming) {
+        HttpResponseCompressor compressor = newCompressor ();
+        if (compressor != null) {
+            pipeline.addLast ("compressor", compressor);
+        }
+        if (!streaming) {
+            //代表聚合的消息内容长度不超过maxPostSize。
+            //这样可以接收到完整的报文，包括body
+            pipeline.addLast ("aggregator", new HttpObjectAggregator (maxPostSize));
+        } else {
+            //没有aggregator，由它回复100-continue并按Content-Length限制maxPostSize
+            pipeline.addLast ("expectContinue", new ExpectContinueHandler (maxPostSize));
+        }
+        //发送文件时，需要分块读取的情况（比如TLS）用ChunkedNioFile
+        pipeline.addLast ("chunkedWriter", new ChunkedWriteHandler ());
+        pipeline.addLast ("handler", new HttpHandler ());
+    }
+
+    /**
+     * [Package Private] 在eventloop上把http/1.1连接切换为websocket：
+     * 去掉http的handler，安装{@link WebSocketServerProtocolHandler}，再把握手请求交给它，
+     * 它会回复101并把http编解码器换成websocket的
+     */
+    void upgradeToWebSocket(Channel channel, FullHttpRequest handshake, WebSocketFrameHandler frameHandler) {
+        ChannelPipeline pipeline = channel.pipeline ();
+        ChannelHandlerContext last = pipeline.context ("handler");
+        if (last == null || !channel.isActive ()) {
+            handshake.release ();
+            frameHandler.abort ();
+            return;
+        }
+        //websocket连接可以长时间空闲，不再由KeepAliveHandler管理
+        for (String name : new String[]{"idle", "keepAlive", "compressor", "aggregator", "expectContinue", "chunkedWriter"}) {
+            if (pipeline.get (name) != null) {
+                pipeline.remove (name);
+            }
+        }
+        WebSocketServerProtocolConfig config = WebSocketServerProtocolConfig.newBuilder ()
+                .websocketPath (handshake.uri ())
+                .checkStartsWith (false)
+                .handleCloseFrames (false)
+                .maxFramePayloadLength (maxWebSocketMessageSize)
+                .build ();
+        //握手handler会被插到wsProtocol之前，即handler之后
+        pipeline.addAfter ("handler", "wsProtocol", new WebSocketServerProtocolHandler (config))
+                .addAfter ("wsProtocol", "wsAggregator", new WebSocketFrameAggregator (maxWebSocketMessageSize))
+                .addAfter ("wsAggregator", "wsFrame", frameHandler);
+        last.fireChannelRead (handshake);
+        pipeline.remove ("handler");
+    }
+
+    /**
+     * 同时支持两种方式进入http/2：
+     * 1. http/1.1请求带Upgrade: h2c，升级后这个请求作为stream 1处理
+     * 2. 客户端直接发送http/2的connection preface（prior knowledge）
+     * <p>
+     * 每个stream是一个子channel，转换成HttpObject后交给和http/1.1一样的HttpHandler，
+     * 所以servlet看到的仍然是普通的http请求
+     */
+    private ChannelHandler createH2cUpgradeHandler(boolean streaming) {
+        HttpServerCodec sourceCodec = new HttpServerCodec ();
+        HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler (sourceCodec, protocol -> {
+            if (AsciiString.contentEquals (Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+                return new Http2ServerUpgradeCodec (createHttp2FrameCodec (), createHttp2MultiplexHandler (streaming));
+            }
+            return null;
+        }, maxPostSize);
+        ChannelHandler priorKnowledge = new ChannelInboundHandlerAdapter () {
+            @Override
+            public void handlerAdded(ChannelHandlerContext ctx) {
+                installHttp2 (ctx, streaming);
+                ctx.pipeline ().remove (this);
+            }
+        };
+        return new CleartextHttp2ServerUpgradeHandler (sourceCodec, upgradeHandler, priorKnowledge);
+    }
+
+    /**
+     * 从keystore加载证书，使用jdk的TLS实现。
+     * session缓存用于session id方式的恢复，回访的客户端不需要完整握手
+     */
+    private SslContext createSslContext(boolean http2) throws LifecycleException {
+        if (keystoreFile == null || keystorePass == null) {
+            throw new LifecycleException (this + " 开启了sslEnabled，但是没有配置keystoreFile、keystorePass");
+        }
+        if (sessionTickets != null && System.getProperty (Constants.SESSION_TICKET_PROPERTY) == null) {
+            System.setProperty (Constants.SESSION_TICKET_PROPERTY, sessionTickets.toString ());
+        }
+        File file = new File (keystoreFile);
+        String base = System.getProperty ("catalina.base");
+        if (!file.isAbsolute () && base != null) {
+            file = new File (base, keystoreFile);
+        }
+        try {
+            KeyStore keyStore = KeyStore.getInstance (keystoreType);
+            try (InputStream in = new FileInputStream (file)) {
+                keyStore.load (in, keystorePass.toCharArray ());
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance (KeyManagerFactory.getDefaultAlgorithm ());
+            kmf.init (keyStore, (keyPass == null ? keystorePass : keyPass).toCharArray ());
+
+            SslContextBuilder builder = SslContextBuilder.forServer (kmf)
+                    .sslProvider (SslProvider.JDK)
+                    .sessionCacheSize (sessionCacheSize)
+                    .sessionTimeout (sessionTimeout);
+            if (sslProtocols != null && !sslProtocols.trim ().isEmpty ()) {
+                builder.protocols (splitList (sslProtocols));
+            }
+            if (ciphers != null && !ciphers.trim ().isEmpty ()) {
+                builder.ciphers (splitList (ciphers));
+            } else if (http2) {
+                //http/2禁止了一部分cipher，见RFC 7540 9.2.2
+                builder.ciphers (Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE);
+            }
+            if (http2) {
+                builder.applicationProtocolConfig (new ApplicationProtocolConfig (
+                        ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1));
+            }
+            return builder.build ();
+        } catch (IOException | GeneralSecurityException e) {
+            throw new LifecycleException (this + " 加载keystore " + file + " 失败", e);
+        }
+    }
+
+    private static List<String> splitList(String value) {
+        List<String> list = new ArrayList<> ();
+        for (String s : value.split (",")) {
+            if (!s.trim ().isEmpty ()) {
+                list.add (s.trim ());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * TLS握手完成后根据ALPN的结果安装编解码，客户端不支持ALPN时按http/1.1处理
+     */
+    private class AlpnHandler extends ApplicationProtocolNegotiationHandler {
+        private final boolean streaming;
+
+        AlpnHandler(boolean streaming) {
+            super (ApplicationProtocolNames.HTTP_1_1);
+            this.streaming = streaming;
+        }
+
+        @Override
+        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+            ChannelPipeline pipeline = ctx.pipeline ();
+            if (ApplicationProtocolNames.HTTP_2.equals (protocol)) {
+                installHttp2 (ctx, streaming);
+            } else if (ApplicationProtocolNames.HTTP_1_1.equals (protocol)) {
+                pipeline.addAfter (ctx.name (), "decoder", new HttpRequestDecoder ())
+                        .addAfter ("decoder", "encoder", new HttpResponseEncoder ());
+            } else {
+                throw new IllegalStateException ("不支持的协议 " + protocol);
+            }
+        }
+    }
+
+    /**
+     * 在ctx之后（紧跟ssl）安装http/2的frame codec，并移除为http/1.1准备的handler。
+     * 这些handler如果留在frame codec之前，会直接收到原始字节，
+     * 其中的IdleStateHandler看不到stream上的请求，keepAliveTimeout一到就会关闭还在处理stream的连接
+     */
+    private void installHttp2(ChannelHandlerContext ctx, boolean streaming) {
+        ChannelPipeline pipeline = ctx.pipeline ();
+        pipeline.addAfter (ctx.name (), "h2Codec", createHttp2FrameCodec ())
+                .addAfter ("h2Codec", "h2Multiplex", createHttp2MultiplexHandler (streaming));
+        switchToHttp2Handlers (pipeline);
+    }
+
+    /**
+     * [Package Private] frame codec装好之后调用。每个stream的请求在子channel里处理，
+     * 连接上的idle、keepAlive和http/1.1的handler都不再需要，
+     * 连接的空闲改由frame codec之前的{@link Http2IdleHandler}检查，没有stream时才关闭
+     */
+    void switchToHttp2Handlers(ChannelPipeline pipeline) {
+        for (String name : new String[]{"idle", "keepAlive", "compressor", "aggregator", "expectContinue", "chunkedWriter", "handler"}) {
+            if (pipeline.get (name) != null) {
+                pipeline.remove (name);
+            }
+        }
+        ChannelHandlerContext codec = pipeline.context (Http2FrameCodec.class);
+        if (keepAliveTimeout > 0 && codec != null && pipeline.get ("h2Idle") == null) {
+            pipeline.addBefore (codec.name (), "h2Idle", new Http2IdleHandler (keepAliveTimeout));
+        }
+    }
+
+    private Http2FrameCodec createHttp2FrameCodec() {
+        return Http2FrameCodecBuilder.forServer ()
+                .initialSettings (Http2Settings.defaultSettings ().maxConcurrentStreams (maxConcurrentStreams))
+                .build ();
+    }
+
+    private Http2MultiplexHandler createHttp2MultiplexHandler(boolean streaming) {
+        return new Http2MultiplexHandler (new ChannelInitializer<Channel> () {
+            @Override
+            protected void initChannel(Channel ch) {
+                ChannelPipeline pipeline = ch.pipeline ();
+                pipeline.addLast ("codec", new Http2StreamFrameToHttpObjectCodec (true));
+                initHttpPipeline (pipeline, streaming);
+            }
+        });
+    }
+
+    /**
+     * 解析压缩的配置，off时compressibleMimeTypes为null
+     */
+    private void initCompression() throws LifecycleException {
+        String mode = compression == null ? Constants.COMPRESSION_OFF : compression.trim ().toLowerCase ();
+        switch (mode) {
+            case Constants.COMPRESSION_OFF:
+                compressibleMimeTypes = null;
+                return;
+            case Constants.COMPRESSION_ON:
+            case Constants.COMPRESSION_FORCE:
+                Set<String> types = new HashSet<> ();
+                if (compressibleMimeType != null) {
+                    for (String type : compressibleMimeType.split (",")) {
+                        if (!type.trim ().isEmpty ()) {
+                            types.add (type.trim ().toLowerCase ());
+                        }
+                    }
+                }
+                compressibleMimeTypes = types;
+                return;
+            default:
+                throw new LifecycleException ("未知的compression " + compression);
+        }
+    }
+
+    /**
+     * 压缩handler是有状态的，每个连接（http/2下每个stream）一个
+     */
+    private HttpResponseCompressor newCompressor() {
+        if (compressibleMimeTypes == null) {
+            return null;
+        }
+        boolean force = Constants.COMPRESSION_FORCE.equalsIgnoreCase (compression.trim ());
+        return new HttpResponseCompressor (force, compressionMinSize, compressibleMimeTypes);
+    }
+
+    /**
+     * 开启TLS时h2和h2c都通过ALPN协商
+     */
+    private boolean isHttp2() throws LifecycleException {
+        String mode = protocol == null ? Constants.PROTOCOL_HTTP_1_1 : protocol.trim ().toLowerCase ();
+        switch (mode) {
+            case Constants.PROTOCOL_HTTP_1_1:
+                return false;
+            case Constants.PROTOCOL_H2C:
+                return true;
+            case Constants.PROTOCOL_H2:
+                if (!sslEnabled) {
+                    throw new LifecycleException ("protocol h2需要开启sslEnabled");
+                }
+                return true;
+            default:
+                throw new LifecycleException ("未知的protocol " + protocol);
+        }
+    }
+
+    /**
+     * 配置了epoll并且本机支持时才使用epoll
+     */
+    private boolean useEpoll() throws LifecycleException {
+        String mode = transport == null ? Constants.TRANSPORT_NIO : transport.trim ().toLowerCase ();
+        switch (mode) {
+            case Constants.TRANSPORT_NIO:
+                return false;
+            case Constants.TRANSPORT_EPOLL:
+                if (Epoll.isAvailable ()) {
+                    return true;
+                }
+                log.warn ("{} epoll不可用，退化为nio: {}", this, Epoll.unavailabilityCause ().toString ());
+                return false;
+            default:
+                throw new LifecycleException ("未知的transport类型 " + transport);
+        }
+    }
+
+    private ByteBufAllocator createAllocator() throws LifecycleException {
+        String mode = allocator == null ? Constants.ALLOCATOR_POOLED : allocator.trim ().toLowerCase ();
+        switch (mode) {
+            case Constants.ALLOCATOR_POOLED:
+                return PooledByteBufAllocator.DEFAULT;
+            case Constants.ALLOCATOR_UNPOOLED:
+                return UnpooledByteBufAllocator.DEFAULT;
+            default:
+                throw new LifecycleException ("未知的allocator类型 " + allocator);
         }
+    }
 
-        log.info ("{} shutdown", this);
+    /**
+     * 根据executor属性创建worker线程池
+     * 虚拟线程需要jdk21+，这里用反射调用，不支持时退化为每个请求一个线程
+     */
+    private ExecutorService createWorkerExecutor() throws LifecycleException {
+        String mode = executor == null ? Constants.EXECUTOR_FIXED : executor.trim ().toLowerCase ();
+        switch (mode) {
+            case Constants.EXECUTOR_EVENT_LOOP:
+                return null;
+            case Constants.EXECUTOR_FIXED:
+                ThreadPoolExecutor pool = new ThreadPoolExecutor (maxThreads, maxThreads,
+                        60, TimeUnit.SECONDS, new LinkedBlockingQueue<> (),
+                        new DefaultThreadFactory ("http-exec-" + port));
+                pool.allowCoreThreadTimeOut (true);
+                return pool;
+            case Constants.EXECUTOR_VIRTUAL:
+                try {
+                    Method method = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+                    return (ExecutorService) method.invoke (null);
+                } catch (ReflectiveOperationException e) {
+                    log.warn ("{} 当前jdk不支持虚拟线程，退化为每个请求一个线程", this);
+                    return Executors.newCachedThreadPool (new DefaultThreadFactory ("http-exec-" + port));
+                }
+            default:
+                throw new LifecycleException ("未知的executor类型 " + executor);
+        }
+    }
+
+    /**
+     * 从空闲池中取出一个processor，没有就新建一个
+     */
+    HttpProcessor createProcessor() {
+        HttpProcessor processor = idleProcessors.poll ();
+        if (processor != null) {
+            idleCount.decrementAndGet ();
+            reusedProcessors.incrementAndGet ();
+        } else {
+            processor = new HttpProcessor (this);
+            try {
+                processor.start ();
+            } catch (LifecycleException e) {
+                e.printStackTrace ();
+            }
+            createdProcessors.incrementAndGet ();
+        }
+        runningProcessors.add (processor);
+        return processor;
+    }
+
+    /**
+     * 处理完请求后归还processor，池满了就丢弃
+     * 此时processor已经recycle过request和response了
+     */
+    void recycleProcessor(HttpProcessor processor) {
+        runningProcessors.remove (processor);
+        if (isRunning ()) {
+            if (idleCount.incrementAndGet () <= maxProcessors) {
+                idleProcessors.offer (processor);
+                return;
+            }
+            idleCount.decrementAndGet ();
+        }
+
+        discardedProcessors.incrementAndGet ();
+        try {
+            if (processor.isRunning ()) {
+                processor.stop ();
+            }
+        } catch (LifecycleException e) {
+            e.printStackTrace ();
+        }
     }
 
     public void removeProcessor(HttpProcessor processor) {
@@ -157,6 +1256,138 @@ public class HttpConnector extends LifecycleBase implements Connector {
         this.secure = secure;
     }
 
+    public int getMaxWebSocketMessageSize() {
+        return maxWebSocketMessageSize;
+    }
+
+    public void setMaxWebSocketMessageSize(int maxWebSocketMessageSize) {
+        this.maxWebSocketMessageSize = maxWebSocketMessageSize;
+    }
+
+    public long getAsyncTimeout() {
+        return asyncTimeout;
+    }
+
+    public void setAsyncTimeout(long asyncTimeout) {
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    /**
+     * [Package Private] 没有启动时为null
+     */
+    Timer getAsyncTimer() {
+        return asyncTimer;
+    }
+
+    /**
+     * [Package Private] 在容器线程上执行，和servlet的线程模型一致：有worker线程池时交给它，否则在channel的eventloop上执行
+     * 用于AsyncContext的dispatch、complete、超时以及读写监听器的回调
+     */
+    void executeInContainer(ChannelHandlerContext ctx, Runnable task) {
+        ExecutorService worker = workerExecutor;
+        if (worker != null) {
+            try {
+                worker.execute (task);
+                return;
+            } catch (RejectedExecutionException e) {
+                //关闭过程中线程池已经不接任务了，只能在eventloop上完成
+                log.warn ("{} worker线程池拒绝了异步任务", this);
+            }
+        }
+        if (ctx == null) {
+            task.run ();
+        } else {
+            ctx.executor ().execute (task);
+        }
+    }
+
+    public boolean isSslEnabled() {
+        return sslEnabled;
+    }
+
+    public void setSslEnabled(boolean sslEnabled) {
+        this.sslEnabled = sslEnabled;
+    }
+
+    public String getKeystoreFile() {
+        return keystoreFile;
+    }
+
+    public void setKeystoreFile(String keystoreFile) {
+        this.keystoreFile = keystoreFile;
+    }
+
+    public String getKeystorePass() {
+        return keystorePass;
+    }
+
+    public void setKeystorePass(String keystorePass) {
+        this.keystorePass = keystorePass;
+    }
+
+    public String getKeystoreType() {
+        return keystoreType;
+    }
+
+    public void setKeystoreType(String keystoreType) {
+        this.keystoreType = keystoreType;
+    }
+
+    public String getKeyPass() {
+        return keyPass;
+    }
+
+    public void setKeyPass(String keyPass) {
+        this.keyPass = keyPass;
+    }
+
+    public String getSslProtocols() {
+        return sslProtocols;
+    }
+
+    public void setSslProtocols(String sslProtocols) {
+        this.sslProtocols = sslProtocols;
+    }
+
+    public String getCiphers() {
+        return ciphers;
+    }
+
+    public void setCiphers(String ciphers) {
+        this.ciphers = ciphers;
+    }
+
+    public long getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    public void setSessionCacheSize(long sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+    }
+
+    public long getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    public void setSessionTimeout(long sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    public Boolean getSessionTickets() {
+        return sessionTickets;
+    }
+
+    public void setSessionTickets(Boolean sessionTickets) {
+        this.sessionTickets = sessionTickets;
+    }
+
+    /**
+     * [Package Private] 没有开启TLS时为null
+     */
+    SslContext getSslContext() {
+        return sslContext;
+    }
+
     @Override
     public Request createRequest() {
         return new HttpRequestImpl (this);
@@ -167,23 +1398,195 @@ public class HttpConnector extends LifecycleBase implements Connector {
         return new HttpResponseImpl (this);
     }
 
-    private class HttpHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+    /**
+     * 每个channel一个，聚合模式下收到FullHttpRequest，
+     * 流式模式下收到HttpRequest和若干HttpContent，HttpContent会被转交给{@link HttpContentInputStream}
+     */
+    private class HttpHandler extends SimpleChannelInboundHandler<HttpObject> {
         private final AsciiString contentType = HttpHeaderValues.TEXT_PLAIN;
+        /**
+         * 流式模式下当前正在接收body的请求
+         */
+        private HttpContentInputStream currentBody;
+        /**
+         * http/1.1连接上pipelining的响应排序，http/2的stream上为null
+         */
+        private ResponseSequencer sequencer;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            if (!(ctx.channel () instanceof Http2StreamChannel)) {
+                sequencer = new ResponseSequencer (ctx);
+            }
+        }
 
         @Override
-        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest msg) {
-            //交给processor处理,直接同步执行即可
-            //仅仅处理一次http请求
-            //fixme 先不池化
-            HttpProcessor processor = new HttpProcessor (HttpConnector.this);
-            //先启动
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+            if (msg.decoderResult ().isFailure ()) {
+                log.error ("http报文解析失败", msg.decoderResult ().cause ());
+                sendErrorAndClose (ctx, HttpResponseStatus.BAD_REQUEST, nextSlot (), currentBody);
+                return;
+            }
+
+            if (msg instanceof FullHttpRequest) {
+                FullHttpRequest request = (FullHttpRequest) msg;
+                dispatch (ctx, request, new ByteBufInputStream (request.content ()), nextSlot ());
+                return;
+            }
+
+            if (msg instanceof HttpRequest) {
+                //servlet在worker中执行，可以在body到达前就开始处理
+                currentBody = new HttpContentInputStream (ctx.channel (), requestBodyBufferSize, uploadTimeout);
+                dispatch (ctx, (HttpRequest) msg, currentBody, nextSlot ());
+            }
+
+            if (msg instanceof HttpContent && currentBody != null) {
+                currentBody.offer (((HttpContent) msg).content ().retain ());
+                if (msg instanceof LastHttpContent) {
+                    currentBody.finish ();
+                    currentBody = null;
+                }
+            }
+        }
+
+        /**
+         * 请求到达的顺序，响应按这个顺序发送
+         */
+        private ResponseSequencer.Slot nextSlot() {
+            return sequencer == null ? null : sequencer.slot (sequencer.register ());
+        }
+
+        /**
+         * 经过准入控制后交给processor处理
+         */
+        private void dispatch(ChannelHandlerContext ctx, HttpRequest msg, InputStream body,
+                              ResponseSequencer.Slot slot) {
+            if (draining) {
+                sendErrorAndClose (ctx, HttpResponseStatus.SERVICE_UNAVAILABLE, slot, body);
+                return;
+            }
+
+            AdmissionController controller = admission;
+            if (controller == null) {
+                execute (ctx, msg, body, slot, null);
+                return;
+            }
+
+            //排队期间channelRead0已经返回，msg会被release，所以先retain
+            //排过队的请求回到这个channel的eventloop上执行，而不是在前一个请求的release的调用栈上
+            ReferenceCountUtil.retain (msg);
+            controller.submit (() -> {
+                try {
+                    execute (ctx, msg, body, slot, controller);
+                } finally {
+                    ReferenceCountUtil.release (msg);
+                }
+            }, () -> {
+                ReferenceCountUtil.release (msg);
+                //可能在别的请求的worker线程上被拒绝，回到这个channel的eventloop上发送
+                ctx.executor ().execute (() -> sendErrorAndClose (ctx, HttpResponseStatus.SERVICE_UNAVAILABLE, slot, body));
+            }, ctx.executor ());
+        }
+
+        /**
+         * 交给processor处理，仅仅处理一次http请求，处理完后归还到池中
+         * eventloop模式下在这个channel的eventloop上执行，否则交给worker线程池
+         *
+         * @param controller 不为null时，处理完需要释放准入的名额
+         */
+        private void execute(ChannelHandlerContext ctx, HttpRequest msg, InputStream body,
+                             ResponseSequencer.Slot slot, AdmissionController controller) {
+            HttpProcessor processor = createProcessor ();
+            activeRequests.incrementAndGet ();
+            //这个方法返回后msg可能会被release，所以交给别的线程前必须retain
+            //响应由ctx.writeAndFlush写回，netty会把它投递到这个channel的eventloop上执行
+            ReferenceCountUtil.retain (msg);
+            //请求结束时执行，调用了startAsync的话要等到complete之后，可能是另一个线程
+            AtomicBoolean done = new AtomicBoolean ();
+            Runnable cleanup = () -> {
+                if (!done.compareAndSet (false, true)) {
+                    return;
+                }
+                activeRequests.decrementAndGet ();
+                ReferenceCountUtil.release (msg);
+                recycleProcessor (processor);
+                if (controller != null) {
+                    controller.release ();
+                }
+            };
+            Runnable task = () -> {
+                try {
+                    processor.process (msg, body, ctx, slot, cleanup);
+                } catch (Throwable e) {
+                    log.error ("{} 处理请求失败", HttpConnector.this, e);
+                    cleanup.run ();
+                    //响应可能只发了一半，之后的响应也没法按顺序发送了
+                    ctx.close ();
+                }
+            };
+
+            ExecutorService worker = workerExecutor;
+            if (worker == null) {
+                //eventloop模式，在这个channel的eventloop上同步执行即可
+                if (ctx.executor ().inEventLoop ()) {
+                    task.run ();
+                } else {
+                    ctx.executor ().execute (task);
+                }
+                return;
+            }
+
             try {
-                processor.start ();
-            } catch (LifecycleException e) {
-                e.printStackTrace ();
+                worker.execute (task);
+            } catch (RejectedExecutionException e) {
+                cleanup.run ();
+                log.error ("{} worker线程池拒绝了请求", HttpConnector.this, e);
+                ctx.executor ().execute (() -> sendErrorAndClose (ctx, HttpResponseStatus.SERVICE_UNAVAILABLE, slot, body));
+            }
+        }
+
+        /**
+         * 503时带上Retry-After，告诉客户端多久之后重试
+         * 总是带上Connection: close，客户端不会在这个连接上再发请求
+         * 在之前的响应都发出去之后才发送
+         *
+         * @param body 被拒绝的请求自己的body，可以为null。排队期间当前接收的可能已经是后面的请求了，
+         *             所以不能关闭{@link #currentBody}
+         */
+        private void sendErrorAndClose(ChannelHandlerContext ctx, HttpResponseStatus status,
+                                       ResponseSequencer.Slot slot, InputStream body) {
+            if (body != null) {
+                try {
+                    body.close ();
+                } catch (IOException e) {
+                    log.warn ("关闭请求body失败", e);
+                }
+                //还在接收这个请求的body，之后到达的HttpContent不再转交
+                if (body == currentBody) {
+                    currentBody = null;
+                }
+            }
+            FullHttpResponse response = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1, status);
+            HttpUtil.setContentLength (response, 0);
+            response.headers ().set (HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            if (status.equals (HttpResponseStatus.SERVICE_UNAVAILABLE) && retryAfter > 0) {
+                response.headers ().set (HttpHeaderNames.RETRY_AFTER, retryAfter);
             }
-            runningProcessors.add (processor);
-            processor.process (msg, ctx);
+            ChannelFuture future = slot != null ? slot.writeAndFlush (response) : ctx.writeAndFlush (response);
+            future.addListener (ChannelFutureListener.CLOSE);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            //唤醒还在等待body的servlet
+            if (currentBody != null) {
+                currentBody.abort (new IOException ("连接已关闭"));
+                currentBody = null;
+            }
+            if (sequencer != null) {
+                sequencer.close ();
+            }
+            super.channelInactive (ctx);
         }
 
         @Override
@@ -192,6 +1595,20 @@ public class HttpConnector extends LifecycleBase implements Connector {
             ctx.flush ();
         }
 
+        /**
+         * 发送缓冲区降到低水位以下，通知等待的{@link javax.servlet.WriteListener}
+         */
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel ().isWritable ()) {
+                Runnable callback = ctx.channel ().attr (WRITABLE_CALLBACK).getAndSet (null);
+                if (callback != null) {
+                    callback.run ();
+                }
+            }
+            super.channelWritabilityChanged (ctx);
+        }
+
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
             log.error ("netty连接异常", cause);
@@ -0,0 +1,225 @@
+package com.example.connector.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 流式的请求body，取代HttpObjectAggregator + {@link com.example.connector.ByteBufInputStream}
+ * <p>
+ * eventloop线程通过{@link #offer(ByteBuf)}放入HttpContent的chunk，worker线程中的servlet阻塞读取。
+ * 缓存的字节数超过highWaterMark时关闭channel的autoRead，被读到lowWaterMark以下时再打开，
+ * 这样上传大文件时内存是恒定的
+ * <p>
+ * 因为servlet会阻塞读，所以只能在worker线程中使用，不能用于eventloop模式
+ *
+ * @date 2022/3/2 15:20
+ */
+public class HttpContentInputStream extends InputStream {
+    private final Channel channel;
+    private final int highWaterMark;
+    private final int lowWaterMark;
+    private final long readTimeout;
+    private final Queue<ByteBuf> chunks = new ArrayDeque<> ();
+    private int bufferedBytes = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+    /**
+     * 是否因为背压关闭了autoRead
+     */
+    private boolean suspended = false;
+    private IOException error;
+    /**
+     * 非阻塞读时，有数据可读（或者结束、出错）时执行一次
+     */
+    private Runnable dataListener;
+
+    /**
+     * @param readTimeout 等待下一个chunk的最长时间，毫秒，小于等于0表示不限制
+     */
+    public HttpContentInputStream(Channel channel, int highWaterMark, long readTimeout) {
+        this.channel = channel;
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = highWaterMark / 2;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * 在eventloop中调用，content必须已经retain过了，所有权转移给这个stream
+     */
+    public synchronized void offer(ByteBuf content) {
+        if (closed || error != null || !content.isReadable ()) {
+            content.release ();
+            return;
+        }
+
+        chunks.add (content);
+        bufferedBytes += content.readableBytes ();
+        if (bufferedBytes >= highWaterMark && !suspended) {
+            suspended = true;
+            channel.config ().setAutoRead (false);
+        }
+        notifyAll ();
+        fireDataListener ();
+    }
+
+    /**
+     * 收到LastHttpContent
+     */
+    public synchronized void finish() {
+        finished = true;
+        notifyAll ();
+        fireDataListener ();
+    }
+
+    /**
+     * 连接断开等情况
+     */
+    public synchronized void abort(IOException cause) {
+        if (!finished) {
+            error = cause;
+        }
+        notifyAll ();
+        fireDataListener ();
+    }
+
+    /**
+     * 可以不阻塞地读时执行callback，现在就可以的话立即执行；只执行一次，callback中不要阻塞
+     */
+    public synchronized void onReady(Runnable callback) {
+        if (isReady ()) {
+            callback.run ();
+        } else {
+            dataListener = callback;
+        }
+    }
+
+    private void fireDataListener() {
+        Runnable callback = dataListener;
+        if (callback != null) {
+            dataListener = null;
+            callback.run ();
+        }
+    }
+
+    public synchronized boolean isFinished() {
+        return finished && chunks.isEmpty ();
+    }
+
+    /**
+     * 是否可以不阻塞地读
+     */
+    public synchronized boolean isReady() {
+        return !chunks.isEmpty () || finished || error != null;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        ByteBuf head = awaitChunk ();
+        if (head == null) {
+            return -1;
+        }
+        int b = head.readByte () & 0xff;
+        consumed (head, 1);
+        return b;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuf head = awaitChunk ();
+        if (head == null) {
+            return -1;
+        }
+        int n = Math.min (len, head.readableBytes ());
+        head.readBytes (b, off, n);
+        consumed (head, n);
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return bufferedBytes;
+    }
+
+    /**
+     * 剩下还没到达的body会被丢弃，并恢复autoRead，保证下一个请求能被读到
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ByteBuf chunk;
+        while ((chunk = chunks.poll ()) != null) {
+            chunk.release ();
+        }
+        bufferedBytes = 0;
+        resume ();
+        notifyAll ();
+    }
+
+    private ByteBuf awaitChunk() throws IOException {
+        if (closed) {
+            throw new IOException ("stream closed");
+        }
+
+        long deadline = readTimeout > 0 ? System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (readTimeout) : 0;
+        while (chunks.isEmpty ()) {
+            if (error != null) {
+                throw error;
+            }
+            if (finished) {
+                return null;
+            }
+            try {
+                if (readTimeout > 0) {
+                    long left = TimeUnit.NANOSECONDS.toMillis (deadline - System.nanoTime ());
+                    if (left <= 0) {
+                        throw new IOException ("读取请求body超时");
+                    }
+                    wait (left);
+                } else {
+                    wait ();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread ().interrupt ();
+                throw new IOException ("读取请求body被中断", e);
+            }
+            if (closed) {
+                throw new IOException ("stream closed");
+            }
+        }
+        return chunks.peek ();
+    }
+
+    private void consumed(ByteBuf head, int n) {
+        bufferedBytes -= n;
+        if (!head.isReadable ()) {
+            chunks.poll ();
+            head.release ();
+        }
+        if (bufferedBytes <= lowWaterMark) {
+            resume ();
+        }
+    }
+
+    private void resume() {
+        if (!suspended) {
+            return;
+        }
+        suspended = false;
+        channel.eventLoop ().execute (() -> {
+            channel.config ().setAutoRead (true);
+            channel.read ();
+        });
+    }
+}
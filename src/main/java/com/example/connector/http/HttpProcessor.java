@@ -5,29 +5,42 @@ import com.example.connector.ByteBufInputStream;
 import com.example.connector.ByteBufOutputStream;
 import com.example.life.LifecycleBase;
 import com.example.util.RequestUtil;
-import com.example.util.StringParser;
+import com.example.websocket.WebSocketUpgradeHandler;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.unix.DomainSocketAddress;
 import io.netty.handler.codec.http.*;
-import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
-import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
-import io.netty.handler.codec.http.multipart.InterfaceHttpData;
-import io.netty.handler.codec.http.multipart.MemoryAttribute;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedNioFile;
 import lombok.extern.slf4j.Slf4j;
 
+import javax.net.ssl.SSLSession;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpUpgradeHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.time.LocalDateTime;
 import java.util.*;
 
 import static com.example.Globals.SERVER_INFO;
 import static com.example.HeaderValues.APPLICATION_JSON;
-import static com.example.HeaderValues.APPLICATION_X_WWW_FORM_URLENCODED;
 import static com.example.connector.http.Constants.DATE_TIME_FORMATTER;
 import static com.google.common.net.HttpHeaders.*;
 
@@ -48,19 +61,38 @@ public final class HttpProcessor extends LifecycleBase {
         //默认数据类型是text/plain，而不是json。。
         defaultHeaders.put (CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN.toString ());
         defaultHeaders.put (SERVER, SERVER_INFO);
-        defaultHeaders.put (CONNECTION, KEEP_ALIVE);
+        //Connection由KeepAliveHandler根据请求和连接的状态决定
     }
 
-    private final StringParser parser = new StringParser ();
     private final HttpConnector connector;
     private final int port;
     private HttpRequestImpl request;
     private HttpResponseImpl response;
-    private FullHttpRequest fullHttpRequest;
+    /**
+     * 聚合模式下是FullHttpRequest，流式模式下只有请求行和header，body在{@link #body}中
+     */
+    private HttpRequest httpRequest;
     private FullHttpResponse fullHttpResponse;
     private ChannelHandlerContext handlerContext;
-    private ByteBuf reqBuf;
+    /**
+     * http/1.1连接上按请求顺序写响应，http/2的stream上为null，直接写handlerContext
+     */
+    private ResponseSequencer.Slot slot;
+    private InputStream body;
     private ByteBuf respBuf;
+    private ResponseOutputStream responseStream;
+    /**
+     * HTTP/1.0不支持chunked，没有Content-Length时只能用关闭连接来表示body结束
+     */
+    private boolean closeAfterResponse;
+    /**
+     * servlet已经执行完，正在关闭流
+     */
+    private boolean finishing;
+    /**
+     * 请求结束（响应发出、processor回收）之后执行，由connector用来归还processor等资源
+     */
+    private Runnable onComplete;
 
     public HttpProcessor(HttpConnector httpConnector) {
         this.connector = httpConnector;
@@ -70,20 +102,52 @@ public final class HttpProcessor extends LifecycleBase {
     }
 
     /**
-     * 处理一个http报文，并给出响应
-     * connection的close netty会自动处理
+     * 处理一个聚合好的http报文，并给出响应
      */
     public void process(FullHttpRequest r, ChannelHandlerContext handlerContext) {
-        log.info ("处理请求 {}", r);
+        process (r, new ByteBufInputStream (r.content ()), handlerContext);
+    }
+
+    /**
+     * 处理一个http报文，并给出响应
+     * connection的关闭由{@link KeepAliveHandler}处理
+     *
+     * @param body 请求body，流式模式下是{@link HttpContentInputStream}，body可能还没有完全到达
+     */
+    public void process(HttpRequest r, InputStream body, ChannelHandlerContext handlerContext) {
+        process (r, body, handlerContext, null);
+    }
+
+    /**
+     * 处理一个http报文，servlet调用了startAsync的话，这个方法返回时请求还没有结束，
+     * 之后由{@link AsyncContextImpl}在complete或者超时的时候调用{@link #finish()}
+     *
+     * @param onComplete 请求结束、processor回收之后执行，可以为null
+     */
+    public void process(HttpRequest r, InputStream body, ChannelHandlerContext handlerContext, Runnable onComplete) {
+        process (r, body, handlerContext, null, onComplete);
+    }
+
+    /**
+     * @param slot 这个请求在连接上的顺序，响应通过它写出；为null时直接写handlerContext
+     */
+    void process(HttpRequest r, InputStream body, ChannelHandlerContext handlerContext,
+                 ResponseSequencer.Slot slot, Runnable onComplete) {
+        log.debug ("处理请求 {}", r);
         boolean ok = true;
 
-        prepareProcess (r, handlerContext);
+        this.slot = slot;
+        this.onComplete = onComplete;
+        prepareProcess (r, body, handlerContext);
 
         try {
             parseConnection ();
             parseRequest ();
 
             prepareResponse ();
+            if (connector.getUseSendfile ()) {
+                request.setAttribute (Globals.SENDFILE_SUPPORTED_ATTR, Boolean.TRUE);
+            }
         } catch (Exception e) {
             //事实上netty已经解析过了，所以不会出现这种情况
             e.printStackTrace ();
@@ -92,18 +156,59 @@ public final class HttpProcessor extends LifecycleBase {
         }
 
         if (ok) {
+            invokeContainer ();
+        }
 
-            try {
-                //container.invoke
-                connector.getContainerInternal ().invoke (request, response);
-            } catch (Exception e) {
-                e.printStackTrace ();
-                response.sendError (HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        AsyncContextImpl asyncContext = request.getAsyncContextInternal ();
+        if (asyncContext != null && asyncContext.afterDispatch ()) {
+            //异步模式，processor还不能回收
+            log.debug ("请求 {} 进入异步模式", request.getDecodedRequestURI ());
+            return;
+        }
+        finish ();
+    }
+
+    /**
+     * [Package Private] 交给container处理，async dispatch时会再次调用
+     */
+    void invokeContainer() {
+        try {
+            //container.invoke
+            connector.getContainerInternal ().invoke (request, response);
+        } catch (Exception e) {
+            e.printStackTrace ();
+            response.sendError (HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * [Package Private] 结束请求：发送响应（或者切换为websocket），然后回收processor
+     * 同步请求在{@link #process}中调用，异步请求在complete之后由容器线程调用
+     */
+    void finish() {
+        Runnable done = onComplete;
+        AsyncContextImpl asyncContext = request.getAsyncContextInternal ();
+        try {
+            HttpUpgradeHandler upgradeHandler = request.getUpgradeHandler ();
+            if (upgradeHandler == null || !upgrade (upgradeHandler)) {
+                sendResponse ();
+            }
+            if (asyncContext != null) {
+                asyncContext.fireOnComplete ();
+            }
+        } finally {
+            recycle ();
+            if (done != null) {
+                done.run ();
             }
         }
+    }
 
+    private void sendResponse() {
         //先关闭流，这样缓冲区的byte都会完全写入byteBuf fixme
         //即用户不一定会flush，这样close的时候会自动flush
+        //close引起的flush不提交响应，剩下的body在doSend中一次性发送
+        finishing = true;
         try {
             response.finishResponse ();
         } catch (Throwable e) {
@@ -116,17 +221,73 @@ public final class HttpProcessor extends LifecycleBase {
 //            log.error ("request process.invoke ", e);
         }
 
+        //servlet可能根本没读body，流式模式下必须关闭，丢弃剩下的body并恢复autoRead
+        if (body instanceof HttpContentInputStream) {
+            ((HttpContentInputStream) body).close ();
+        }
+
         doSend ();
+    }
+
+    public HttpConnector getConnector() {
+        return connector;
+    }
 
-        recycle ();
+    /**
+     * [Package Private] 请求结束、processor回收后为null
+     */
+    ChannelHandlerContext getHandlerContext() {
+        return handlerContext;
     }
 
-    private void prepareProcess(FullHttpRequest r, ChannelHandlerContext handlerContext) {
-        this.fullHttpRequest = r;
+    /**
+     * servlet调用了upgrade，把连接交给websocket，servlet写的响应都丢弃，101由netty的握手回复。
+     * 之后的帧都在eventloop上处理，不再占用worker线程
+     *
+     * @return 是否已经切换，false时按普通请求发送servlet设置的响应
+     */
+    private boolean upgrade(HttpUpgradeHandler upgradeHandler) {
+        Channel channel = handlerContext == null ? null : handlerContext.channel ();
+        if (response.isError () || response.isCommitted () ||
+                !(upgradeHandler instanceof WebSocketUpgradeHandler) ||
+                ((WebSocketUpgradeHandler) upgradeHandler).getEndpoint () == null) {
+            upgradeHandler.destroy ();
+            return false;
+        }
+        if (channel == null || channel instanceof Http2StreamChannel) {
+            //http/2上的websocket（RFC 8441）不支持
+            upgradeHandler.destroy ();
+            response.reset ();
+            response.setStatus (HttpServletResponse.SC_NOT_IMPLEMENTED);
+            return false;
+        }
+
+        FullHttpRequest handshake = new DefaultFullHttpRequest (httpRequest.protocolVersion (), httpRequest.method (),
+                httpRequest.uri (), Unpooled.EMPTY_BUFFER, httpRequest.headers ().copy (), EmptyHttpHeaders.INSTANCE);
+        WebSocketFrameHandler frameHandler = new WebSocketFrameHandler ((WebSocketUpgradeHandler) upgradeHandler,
+                request.getRequestURI (), request.getQueryString (), request.getUserPrincipal ());
+        try {
+            request.finishRequest ();
+        } catch (Throwable e) {
+//            log.error ("request process.invoke ", e);
+        }
+        if (body instanceof HttpContentInputStream) {
+            ((HttpContentInputStream) body).close ();
+        }
+        //servlet写的内容不发送，buffer留给下一个请求
+        respBuf.clear ();
+        channel.eventLoop ().execute (() -> connector.upgradeToWebSocket (channel, handshake, frameHandler));
+        log.debug ("请求 {} 升级为websocket", request.getDecodedRequestURI ());
+        return true;
+    }
+
+    private void prepareProcess(HttpRequest r, InputStream body, ChannelHandlerContext handlerContext) {
+        this.httpRequest = r;
         this.handlerContext = handlerContext;
-        this.reqBuf = fullHttpRequest.content ();
+        this.body = body;
+        request.setProcessor (this);
         if (this.respBuf == null) {
-            respBuf = PooledByteBufAllocator.DEFAULT.buffer ();
+            respBuf = allocator ().buffer ();
         }
 //        if (request == null) {
 //            request = new HttpRequestImpl (connector);
@@ -139,39 +300,17 @@ public final class HttpProcessor extends LifecycleBase {
      * Content-Type为 x-www-form-urlencoded的body
      * locale（根据accept）
      */
-    private void parseRequest() throws UnsupportedEncodingException {
-        for (Map.Entry<String, String> header : fullHttpRequest.headers ()) {
-            String key = header.getKey ();
-            String value = header.getValue ();
-            request.addHeader (key, value);
-
-
-            if (key.equalsIgnoreCase (CONTENT_LENGTH)) {
-                request.setContentLength (Integer.parseInt (value));
-            } else if (key.equalsIgnoreCase (CONTENT_TYPE)) {
-                request.setContentType (value);
-
-                if (value.equalsIgnoreCase (APPLICATION_X_WWW_FORM_URLENCODED)) {
-                    //解析body
-                    Map<String, String> requestParams = getRequestParams (fullHttpRequest);
-                    requestParams.forEach ((k, v) -> request.addParameter (k, new String[]{v}));
-                    //清除body
-                    reqBuf.clear ();
-                }
-            } else if (key.equalsIgnoreCase (ACCEPT_LANGUAGE)) {
-                parseAcceptLanguage (value);
-            } else if (key.equalsIgnoreCase (COOKIE)) {
-                //cookie
-                List<Cookie> cookies = RequestUtil.parseCookieHeader (value);
-                for (Cookie cookie : cookies) {
-                    //解析session
-                    parseSessionFromCookie (cookie);
-                    request.addCookie (cookie);
-                }
-            }
+    private void parseRequest() throws IOException {
+        //header不再复制，cookie、locale、参数等在servlet第一次访问时才从netty的header中解析
+        HttpHeaders headers = httpRequest.headers ();
+        request.setHttpHeaders (headers);
+        String contentLength = headers.get (CONTENT_LENGTH);
+        if (contentLength != null) {
+            request.setContentLength (Integer.parseInt (contentLength));
         }
+        request.setContentType (headers.get (CONTENT_TYPE));
 
-        String uri = fullHttpRequest.uri ();
+        String uri = httpRequest.uri ();
         int index;
         if ((index = uri.indexOf ('?')) >= 0) {
             request.setQueryString (uri.substring (index + 1));
@@ -182,12 +321,7 @@ public final class HttpProcessor extends LifecycleBase {
 
         parseSessionFromURL (uri);
 
-        //提取query param
-        Map<String, String[]> map = new HashMap<> ();
-        RequestUtil.parseParameters (map, request.getQueryString (), "utf-8");
-        request.setParameterMap (map);
-
-        log.trace ("装填headers后为 {}", request.headers);
+        log.trace ("装填headers后为 {}", headers);
     }
 
     private void parseSessionFromURL(String uri) {
@@ -209,156 +343,23 @@ public final class HttpProcessor extends LifecycleBase {
         }
     }
 
-    /**
-     * 由cookie获得session
-     */
-    private void parseSessionFromCookie(Cookie cookie) {
-        if (cookie.getName ().equals
-                (Globals.SESSION_COOKIE_NAME)) {
-
-            if (!request.isRequestedSessionIdFromCookie ()) {
-                //如果有多个session id的话（因为cookie一个key可以多个value），就保留第一个
-                request.setRequestedSessionId (cookie.getValue ());
-                request.setRequestedSessionCookie (true);
-                request.setRequestedSessionURL (false);
-                log.debug ("Requested cookie session id is " + request.getRequestedSessionId ());
-            }
-        }
-    }
-
-    /**
-     * 复杂的地方在于要处理权重
-     * 但是似乎还没有用到这个字段
-     * TODO
-     */
-    private void parseAcceptLanguage(String value) {
-
-        // Store the accumulated languages that have been requested in
-        // a local collection, sorted by the quality value (so we can
-        // add Locales in descending order).  The values will be ArrayLists
-        // containing the corresponding Locales to be added
-        TreeMap<Double, ArrayList<Locale>> locales = new TreeMap<> ();
-
-        // Preprocess the value to remove all whitespace
-        int white = value.indexOf (' ');
-        if (white < 0)
-            white = value.indexOf ('\t');
-        if (white >= 0) {
-            StringBuilder sb = new StringBuilder ();
-            int len = value.length ();
-            for (int i = 0; i < len; i++) {
-                char ch = value.charAt (i);
-                if ((ch != ' ') && (ch != '\t'))
-                    sb.append (ch);
-            }
-            value = sb.toString ();
-        }
-
-        // Process each comma-delimited language specification
-        parser.setString (value);        // ASSERT: parser is available to us
-        int length = parser.getLength ();
-        while (true) {
-
-            // Extract the next comma-delimited entry
-            int start = parser.getIndex ();
-            if (start >= length)
-                break;
-            int end = parser.findChar (',');
-            String entry = parser.extract (start, end).trim ();
-            parser.advance ();   // For the following entry
-
-            // Extract the quality factor for this entry
-            double quality = 1.0;
-            int semi = entry.indexOf (";q=");
-            if (semi >= 0) {
-                try {
-                    quality = Double.parseDouble (entry.substring (semi + 3));
-                } catch (NumberFormatException e) {
-                    quality = 0.0;
-                }
-                entry = entry.substring (0, semi);
-            }
-
-            // Skip entries we are not going to keep track of
-            if (quality < 0.00005)
-                continue;       // Zero (or effectively zero) quality factors
-            if ("*".equals (entry))
-                continue;
-
-            // Extract the language and country for this entry
-            String language = null;
-            String country = null;
-            String variant = null;
-            int dash = entry.indexOf ('-');
-            if (dash < 0) {
-                language = entry;
-                country = "";
-                variant = "";
-            } else {
-                language = entry.substring (0, dash);
-                country = entry.substring (dash + 1);
-                int vDash = country.indexOf ('-');
-                if (vDash > 0) {
-                    String cTemp = country.substring (0, vDash);
-                    variant = country.substring (vDash + 1);
-                    country = cTemp;
-                } else {
-                    variant = "";
-                }
-            }
-
-            // Add a new Locale to the list of Locales for this quality level
-            Locale locale = new Locale (language, country, variant);
-            Double key = -quality;  // Reverse the order
-            ArrayList<Locale> values = locales.computeIfAbsent (key, k -> new ArrayList<> ());
-            values.add (locale);
-        }
-
-        // Process the quality values in highest->lowest order (due to
-        // negating the Double value when creating the key)
-        for (double key : locales.keySet ()) {
-            ArrayList<Locale> list = locales.get (key);
-            for (Locale locale : list) {
-                request.addLocale (locale);
-            }
-        }
-
-    }
-
-    /**
-     * 如果是Content-Type为 x-www-form-urlencoded的body
-     * 应该这么解析
-     */
-    private Map<String, String> getRequestParams(FullHttpRequest request) {
-        HttpPostRequestDecoder decoder = new HttpPostRequestDecoder (new DefaultHttpDataFactory (false), request);
-        List<InterfaceHttpData> httpPostData = decoder.getBodyHttpDatas ();
-        Map<String, String> params = new HashMap<> ();
-
-        for (InterfaceHttpData data : httpPostData) {
-            if (data.getHttpDataType () == InterfaceHttpData.HttpDataType.Attribute) {
-                MemoryAttribute attribute = (MemoryAttribute) data;
-                params.put (attribute.getName (), attribute.getValue ());
-            }
-        }
-        return params;
-    }
-
     /**
      * 给req装填连接信息
      */
     private void parseConnection() {
-        request.setProtocol (fullHttpRequest.protocolVersion ().protocolName ());
+        request.setProtocol (httpRequest.protocolVersion ().protocolName ());
         request.setServerPort (port);
-        request.setMethod (fullHttpRequest.method ().name ());
+        request.setMethod (httpRequest.method ().name ());
         request.setSecure (connector.getSecure ());
         request.setScheme (connector.getScheme ());
 
-        InetSocketAddress inetSocketAddress = Optional
+        SocketAddress socketAddress = Optional
                 .ofNullable (handlerContext)
                 .map (ChannelHandlerContext::channel)
-                .map (x -> (InetSocketAddress) x.remoteAddress ())
+                .map (Channel::remoteAddress)
                 .orElse (null);
-        if (inetSocketAddress != null) {
+        if (socketAddress instanceof InetSocketAddress) {
+            InetSocketAddress inetSocketAddress = (InetSocketAddress) socketAddress;
 
             //会dns域名解析，所以可能是域名，也可能是ip
             //因为http基于tcp基于ip，无法确定域名，只有ip
@@ -369,23 +370,76 @@ public final class HttpProcessor extends LifecycleBase {
 
             request.setRemoteAddress (inetSocketAddress.getHostString ());//不会dns
             request.setInet (inetSocketAddress.getAddress ());
+        } else if (socketAddress instanceof DomainSocketAddress) {
+            parseProxiedAddress ();
         }
 
 
+        //http/2的stream，请求是从帧转换过来的
+        Channel channel = handlerContext == null ? null : handlerContext.channel ();
+        if (channel instanceof Http2StreamChannel) {
+            request.setProtocol ("HTTP/2.0");
+            request.setAttribute (Globals.STREAM_ID, String.valueOf (((Http2StreamChannel) channel).stream ().id ()));
+            request.setAttribute (Globals.CONNECTION_ID, channel.parent ().id ().asShortText ());
+        }
+        parseSsl (channel);
+
         request.setResponse (response);//其实并没有用到。。
         request.setConnector (connector);
-        request.setStream (new ByteBufInputStream (reqBuf));
+        request.setStream (body);
 
         log.trace ("装填请求后为 {}", request);
     }
 
+    /**
+     * TLS连接的信息，http/2的stream要从父channel中找SslHandler
+     */
+    private void parseSsl(Channel channel) {
+        if (channel == null) {
+            return;
+        }
+        Channel connection = channel instanceof Http2StreamChannel ? channel.parent () : channel;
+        ChannelPipeline pipeline = connection.pipeline ();
+        SslHandler sslHandler = pipeline == null ? null : pipeline.get (SslHandler.class);
+        if (sslHandler == null) {
+            return;
+        }
+        SSLSession session = sslHandler.engine ().getSession ();
+        request.setAttribute (Globals.CIPHER_SUITE_ATTR, session.getCipherSuite ());
+        request.setAttribute (Globals.SSL_SESSION_ID_ATTR, ByteBufUtil.hexDump (session.getId ()));
+    }
+
+    /**
+     * unix domain socket的对端是本机的代理，没有客户端的ip，从代理设置的header中取；
+     * serverName和本机的代理通过tcp连过来时一样，是localhost
+     */
+    private void parseProxiedAddress() {
+        request.setServerName ("localhost");
+        String remote = null;
+        String header = connector.getRemoteIpHeader ();
+        if (header != null && !header.isEmpty ()) {
+            String value = httpRequest.headers ().get (header);
+            if (value != null) {
+                //多级代理时逗号分隔，只信任最后一个，即直接相连的代理追加的
+                remote = value.substring (value.lastIndexOf (',') + 1).trim ();
+            }
+        }
+        if (remote == null || remote.isEmpty ()) {
+            remote = "127.0.0.1";
+        }
+        request.setRemoteHost (remote);
+        request.setRemoteAddress (remote);
+    }
+
     /**
      * 给响应添加默认头
      */
     private void prepareResponse() {
-        response.setStream (new ByteBufOutputStream (respBuf));
+        responseStream = new ResponseOutputStream (respBuf);
+        response.setStream (responseStream);
         response.setRequest (request);
         response.setByteBuf (respBuf);
+        response.setBufferSize (connector.getBufferSize ());
 
 
         log.trace ("prepareResponse后为 {}", request);
@@ -393,8 +447,10 @@ public final class HttpProcessor extends LifecycleBase {
 
     /**
      * 默认的header
+     *
+     * @param full 是否是一次性发送的完整响应，是的话才能计算Content-Length
      */
-    private void setDefaultHeaders() {
+    private void setDefaultHeaders(boolean full) {
         for (Map.Entry<String, String> e : defaultHeaders.entrySet ()) {
             if (response.getHeaders (e.getKey ()) == null) {
                 response.setHeader (e.getKey (), e.getValue ());
@@ -405,19 +461,206 @@ public final class HttpProcessor extends LifecycleBase {
             response.setHeader (DATE, DATE_TIME_FORMATTER.format (new Date (System.currentTimeMillis ())));
         }
 
-        if (response.getHeaders (CONTENT_LENGTH) == null) {
+        if (full && response.getHeaders (CONTENT_LENGTH) == null) {
             response.setHeader (CONTENT_LENGTH, String.valueOf (respBuf.readableBytes ()));
         }
 
     }
 
     private void doSend() {
-        setDefaultHeaders ();
+        String sendfile = (String) request.getAttribute (Globals.SENDFILE_FILENAME_ATTR);
+        if (sendfile != null && !response.isCommitted () && !response.isError ()) {
+            try {
+                sendFile (sendfile);
+                return;
+            } catch (IOException e) {
+                //文件在servlet检查之后被删除等情况，header还没发，直接回复500
+                log.warn ("sendfile {} 失败", sendfile, e);
+                response.reset ();
+                response.setStatus (HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        }
+
+        if (response.isCommitted ()) {
+            //header已经随第一个chunk发出去了，剩下的body作为最后一个chunk
+            ByteBuf last = respBuf;
+            respBuf = null;
+            ChannelFuture future = writeChunk (new DefaultLastHttpContent (last));
+            if (closeAfterResponse && future != null) {
+                future.addListener (ChannelFutureListener.CLOSE);
+            }
+            log.debug ("请求 {} {} 发送最后一个chunk, status={}", request.getMethod (), request.getDecodedRequestURI (),
+                    response.getStatus ());
+            return;
+        }
 
         fullHttpResponse = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1,
                 HttpResponseStatus.valueOf (response.getStatus ()),
                 respBuf);
         HttpHeaders respHeaders = fullHttpResponse.headers ();
+        fillHeaders (respHeaders, true);
+
+        //respBuf交给netty了，写完后netty会release，所以processor不能再复用它
+        //在worker线程中调用时，netty会把写操作投递到channel的eventloop上
+        respBuf = null;
+        writeAndFlush (fullHttpResponse);
+
+        if (log.isDebugEnabled ()) {
+            log.debug ("请求 {} {} 发送响应, status={}", request.getMethod (), request.getDecodedRequestURI (),
+                    response.getStatus ());
+            log.debug ("响应headers:");
+            respHeaders.forEach (x -> log.debug ("header: {} -> {}", x.getKey (), x.getValue ()));
+        }
+    }
+
+    /**
+     * 由connector发送servlet指定的文件（{@link Globals#SENDFILE_FILENAME_ATTR}）
+     * 普通连接使用{@link DefaultFileRegion}，由内核直接从page cache拷贝到socket；
+     * 需要在用户态处理字节的情况（TLS、压缩）用{@link ChunkedNioFile}分块读取
+     */
+    private void sendFile(String filename) throws IOException {
+        Long start = (Long) request.getAttribute (Globals.SENDFILE_FILE_START_ATTR);
+        Long end = (Long) request.getAttribute (Globals.SENDFILE_FILE_END_ATTR);
+        RandomAccessFile file = new RandomAccessFile (filename, "r");
+        long offset;
+        long length;
+        try {
+            offset = start == null ? 0 : start;
+            length = (end == null ? file.length () : end) - offset;
+        } catch (IOException e) {
+            file.close ();
+            throw e;
+        }
+
+        HttpResponse head = new DefaultHttpResponse (HttpVersion.HTTP_1_1,
+                HttpResponseStatus.valueOf (response.getStatus ()));
+        fillHeaders (head.headers (), false);
+        HttpUtil.setContentLength (head, length);
+        response.setCommitted (true);
+
+        //sendfile时servlet不应该再写body，丢弃
+        respBuf.release ();
+        respBuf = null;
+
+        write (head);
+        ChannelFuture future;
+        if (needChunkedFile (head)) {
+            //HttpChunkedInput结束时自己会产生LastHttpContent
+            future = writeAndFlush (new HttpChunkedInput (new ChunkedNioFile (file.getChannel (),
+                    offset, length, Constants.SENDFILE_CHUNK_SIZE)));
+        } else {
+            write (new DefaultFileRegion (file.getChannel (), offset, length));
+            future = writeAndFlush (LastHttpContent.EMPTY_LAST_CONTENT);
+        }
+        if (future == null) {
+            file.close ();
+        }
+
+        log.debug ("请求 {} {} sendfile {}, {} bytes", request.getMethod (), request.getDecodedRequestURI (),
+                filename, length);
+    }
+
+    /**
+     * FileRegion会绕过pipeline中对字节的处理，所以有SslHandler或者需要压缩时不能使用，
+     * 客户端不接受压缩时compressor不会处理，仍然可以用FileRegion
+     * http/2的stream只能发送DATA帧，也不能使用
+     */
+    private boolean needChunkedFile(HttpResponse head) {
+        ChannelPipeline pipeline = handlerContext.pipeline ();
+        Channel channel = handlerContext.channel ();
+        if (pipeline == null) {
+            return false;
+        }
+        HttpResponseCompressor compressor = pipeline.get (HttpResponseCompressor.class);
+        return pipeline.get (SslHandler.class) != null ||
+                (compressor != null &&
+                        compressor.willCompress (head, httpRequest.headers ().get (HttpHeaderNames.ACCEPT_ENCODING))) ||
+                channel instanceof Http2StreamChannel;
+    }
+
+    /**
+     * 提交响应，即先发送状态行和header，之后的body以chunk的形式发送
+     * 如果servlet没有设置Content-Length，就使用Transfer-Encoding: chunked
+     */
+    private void commitResponse() {
+        HttpResponse head = new DefaultHttpResponse (HttpVersion.HTTP_1_1,
+                HttpResponseStatus.valueOf (response.getStatus ()));
+        fillHeaders (head.headers (), false);
+        if (!HttpUtil.isContentLengthSet (head)) {
+            if (httpRequest.protocolVersion ().equals (HttpVersion.HTTP_1_0)) {
+                head.setProtocolVersion (HttpVersion.HTTP_1_0);
+                head.headers ().set (HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                closeAfterResponse = true;
+            } else {
+                HttpUtil.setTransferEncodingChunked (head, true);
+            }
+        }
+
+        response.setCommitted (true);
+        write (head);
+        log.debug ("请求 {} {} 提交响应, status={}", request.getMethod (), request.getDecodedRequestURI (),
+                response.getStatus ());
+    }
+
+    /**
+     * buffer写满或者servlet主动flush时调用
+     * 第一次调用会先提交header，然后把当前buffer作为一个chunk发出去，并换一个新的buffer
+     */
+    private void flushResponse() {
+        if (handlerContext == null) {
+            return;
+        }
+        if (!response.isCommitted ()) {
+            commitResponse ();
+        }
+
+        if (respBuf.isReadable ()) {
+            ByteBuf chunk = respBuf;
+            respBuf = allocator ().buffer ();
+            responseStream.setByteBuf (respBuf);
+            response.setByteBuf (respBuf);
+            response.addFlushedCount (chunk.readableBytes ());
+            writeChunk (new DefaultHttpContent (chunk));
+        } else if (slot != null) {
+            slot.flush ();
+        } else {
+            handlerContext.flush ();
+        }
+    }
+
+    private ChannelFuture write(Object msg) {
+        return slot != null ? slot.write (msg) : handlerContext.write (msg);
+    }
+
+    private ChannelFuture writeAndFlush(Object msg) {
+        return slot != null ? slot.writeAndFlush (msg) : handlerContext.writeAndFlush (msg);
+    }
+
+    /**
+     * 写一个chunk，如果channel的发送缓冲区满了，或者前面pipelining的响应还没发完、chunk只能排队，
+     * worker线程就等待写完，避免响应在内存中无限堆积
+     * eventloop线程不能等待，否则会死锁；设置了WriteListener时也不等待，由servlet通过isReady自己控制，
+     * 这两种情况下排队的数据由{@link ResponseSequencer}限制
+     */
+    private ChannelFuture writeChunk(HttpContent chunk) {
+        ChannelFuture future = writeAndFlush (chunk);
+        Channel channel = handlerContext.channel ();
+        AsyncContextImpl asyncContext = request.getAsyncContextInternal ();
+        boolean nonBlocking = asyncContext != null && asyncContext.isNonBlockingWrite ();
+        boolean held = slot != null && slot.isHeld ();
+        if (future != null && channel != null && (held || !channel.isWritable ()) && !nonBlocking &&
+                !channel.eventLoop ().inEventLoop ()) {
+            future.awaitUninterruptibly ();
+        }
+        return future;
+    }
+
+    /**
+     * 把response中的header、cookie填充到netty的header中
+     */
+    private void fillHeaders(HttpHeaders respHeaders, boolean full) {
+        setDefaultHeaders (full);
+
         for (String headerName : response.getHeaderNames ()) {
             String[] headerValues = response.getHeaderValues (headerName);
 
@@ -435,13 +678,6 @@ public final class HttpProcessor extends LifecycleBase {
         }
 
         parseCookieToHeader (respHeaders);
-
-        handlerContext.writeAndFlush (fullHttpResponse);
-
-        log.info ("请求 {} {} 发送响应, status={}", request.getMethod (), request.getDecodedRequestURI (),
-                response.getStatus ());
-        log.debug ("响应headers:");
-        respHeaders.forEach (x -> log.debug ("header: {} -> {}", x.getKey (), x.getValue ()));
     }
 
     /**
@@ -485,9 +721,76 @@ public final class HttpProcessor extends LifecycleBase {
         log.trace ("添加cookie header {}", builder);
     }
 
+    /**
+     * processor会被connector池化复用，所以这里要清除本次请求的所有引用
+     */
     private void recycle() {
         request.recycle ();
         response.recycle ();
+        httpRequest = null;
+        fullHttpResponse = null;
+        handlerContext = null;
+        body = null;
+        responseStream = null;
+        closeAfterResponse = false;
+        finishing = false;
+        onComplete = null;
+        slot = null;
+    }
+
+    /**
+     * 响应body的流，写满bufferSize或者servlet主动flush的时候，提交header并发送一个chunk
+     */
+    private final class ResponseOutputStream extends ByteBufOutputStream {
+
+        ResponseOutputStream(ByteBuf byteBuf) {
+            super (byteBuf);
+        }
+
+        void setByteBuf(ByteBuf byteBuf) {
+            this.byteBuf = byteBuf;
+        }
+
+        /**
+         * buffer满了就提交响应，以chunk的形式发送出去
+         */
+        @Override
+        protected void afterWrite() {
+            int size = response.getBufferSize ();
+            if (size > 0 && byteBuf.readableBytes () >= size) {
+                flushResponse ();
+            }
+        }
+
+        /**
+         * channel的发送缓冲区没满
+         */
+        @Override
+        public boolean isReady() {
+            Channel channel = handlerContext == null ? null : handlerContext.channel ();
+            return channel == null || channel.isWritable ();
+        }
+
+        /**
+         * servlet主动flush，提交响应
+         */
+        @Override
+        public void flush() throws IOException {
+            if (closed) {
+                throw new IOException ("stream closed");
+            }
+            if (!finishing) {
+                flushResponse ();
+            }
+        }
+    }
+
+    /**
+     * 使用connector配置的分配器
+     */
+    private ByteBufAllocator allocator() {
+        ByteBufAllocator allocator = connector.getByteBufAllocator ();
+        return allocator != null ? allocator : PooledByteBufAllocator.DEFAULT;
     }
 
     private String checkLocalhost(InetAddress address) {
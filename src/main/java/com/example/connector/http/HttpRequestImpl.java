@@ -9,19 +9,32 @@ import com.example.session.Session;
 import com.example.session.StandardSession;
 import com.example.session.StandardSessionFacade;
 import com.example.util.RequestUtil;
+import com.example.util.StringParser;
+import com.example.websocket.WebSocketUpgradeHandler;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
-import javax.servlet.ServletException;
+import javax.servlet.*;
 import javax.servlet.http.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.Principal;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
+import static com.example.HeaderValues.APPLICATION_X_WWW_FORM_URLENCODED;
+import static com.example.HeaderValues.MULTIPART_FORM_DATA;
 import static com.example.connector.http.Constants.*;
 
 
@@ -38,8 +51,41 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
             new SimpleDateFormat ("EEE MMMM d HH:mm:ss yyyy", Locale.US)
     };
     protected final Connector connector;
+    /**
+     * netty解析好的header，不复制，servlet访问时直接从中查找
+     */
+    protected HttpHeaders httpHeaders;
+    /**
+     * 通过{@link #addHeader(String, String)}额外添加的header
+     */
     protected Map<String, List<String>> headers = new ConcurrentHashMap<> ();
     protected Map<String, Cookie> cookies = new ConcurrentHashMap<> ();
+    /**
+     * cookie、locale、参数在第一次访问时才解析，解析后缓存到请求结束
+     */
+    protected boolean cookiesParsed = false;
+    protected boolean localesParsed = false;
+    protected boolean parametersParsed = false;
+    /**
+     * multipart请求的part，第一次getParts或者getParameter时解析
+     */
+    protected List<PartImpl> parts;
+    /**
+     * 解析part失败的异常，之后每次getParts都抛出
+     */
+    protected Exception partsParseException;
+    /**
+     * servlet调用了upgrade，servlet返回后由{@link HttpProcessor}切换协议
+     */
+    protected HttpUpgradeHandler upgradeHandler;
+    /**
+     * 处理这个请求的processor，startAsync时需要
+     */
+    protected HttpProcessor processor;
+    /**
+     * 第一次startAsync时创建，之后的async dispatch中复用
+     */
+    protected AsyncContextImpl asyncContext;
     protected String method;
     /**
      * query
@@ -82,8 +128,17 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
     public void recycle() {
         super.recycle ();
         inet = null;
+        httpHeaders = null;
         headers.clear ();
         cookies.clear ();
+        cookiesParsed = false;
+        localesParsed = false;
+        parametersParsed = false;
+        parts = null;
+        partsParseException = null;
+        upgradeHandler = null;
+        processor = null;
+        asyncContext = null;
         method = null;
         queryString = null;
         contextPath = null;
@@ -115,11 +170,19 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
         this.inet = inet;
     }
 
+    /**
+     * [Package Private] 设置netty解析好的header
+     */
+    void setHttpHeaders(HttpHeaders httpHeaders) {
+        this.httpHeaders = httpHeaders;
+    }
+
     /**
      * 会覆盖
      */
     @Override
     public void addCookie(Cookie cookie) {
+        parseCookies ();
         cookies.put (cookie.getName (), cookie);
     }
 
@@ -143,6 +206,7 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
 
     @Override
     public void addLocale(Locale locale) {
+        parseLocales ();
         synchronized (locales) {
             locales.add (locale);
         }
@@ -153,29 +217,369 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
      */
     @Override
     public void addParameter(String name, String[] values) {
+        parseParameters ();
         parameterMap.put (name, values);
     }
 
     @Override
     public void clearCookies() {
+        cookiesParsed = true;
         cookies.clear ();
     }
 
     @Override
     public void clearHeaders() {
+        httpHeaders = null;
         headers.clear ();
     }
 
     @Override
     public void clearLocales() {
+        localesParsed = true;
         locales.clear ();
     }
 
     @Override
     public void clearParameters() {
+        parametersParsed = true;
         parameterMap.clear ();
     }
 
+    /**
+     * 解析Cookie header，同时从cookie中获得session id
+     */
+    protected void parseCookies() {
+        if (cookiesParsed) {
+            return;
+        }
+        cookiesParsed = true;
+        if (httpHeaders == null) {
+            return;
+        }
+
+        for (String value : httpHeaders.getAll (HttpHeaderNames.COOKIE)) {
+            for (Cookie cookie : RequestUtil.parseCookieHeader (value)) {
+                parseSessionFromCookie (cookie);
+                cookies.put (cookie.getName (), cookie);
+            }
+        }
+    }
+
+    /**
+     * 由cookie获得session，url中的id优先于cookie中的
+     * cookie是延迟解析的，这时url中的id已经设置好了，不要覆盖
+     */
+    private void parseSessionFromCookie(Cookie cookie) {
+        if (cookie.getName ().equals
+                (Globals.SESSION_COOKIE_NAME)) {
+
+            if (!requestedSessionCookie) {
+                requestedSessionCookie = true;
+                if (!requestedSessionURL) {
+                    //如果有多个session id的话（因为cookie一个key可以多个value），就保留第一个
+                    requestedSessionId = cookie.getValue ();
+                    log.debug ("Requested cookie session id is " + requestedSessionId);
+                }
+            }
+        }
+    }
+
+    protected void parseLocales() {
+        if (localesParsed) {
+            return;
+        }
+        localesParsed = true;
+        if (httpHeaders == null) {
+            return;
+        }
+
+        StringParser parser = null;
+        for (String value : httpHeaders.getAll (HttpHeaderNames.ACCEPT_LANGUAGE)) {
+            if (parser == null) {
+                parser = new StringParser ();
+            }
+            parseAcceptLanguage (value, parser);
+        }
+    }
+
+
+    /**
+     * 复杂的地方在于要处理权重
+     * 但是似乎还没有用到这个字段
+     * TODO
+     */
+    private void parseAcceptLanguage(String value, StringParser parser) {
+
+        // Store the accumulated languages that have been requested in
+        // a local collection, sorted by the quality value (so we can
+        // add Locales in descending order).  The values will be ArrayLists
+        // containing the corresponding Locales to be added
+        TreeMap<Double, ArrayList<Locale>> locales = new TreeMap<> ();
+
+        // Preprocess the value to remove all whitespace
+        int white = value.indexOf (' ');
+        if (white < 0)
+            white = value.indexOf ('\t');
+        if (white >= 0) {
+            StringBuilder sb = new StringBuilder ();
+            int len = value.length ();
+            for (int i = 0; i < len; i++) {
+                char ch = value.charAt (i);
+                if ((ch != ' ') && (ch != '\t'))
+                    sb.append (ch);
+            }
+            value = sb.toString ();
+        }
+
+        // Process each comma-delimited language specification
+        parser.setString (value);
+        int length = parser.getLength ();
+        while (true) {
+
+            // Extract the next comma-delimited entry
+            int start = parser.getIndex ();
+            if (start >= length)
+                break;
+            int end = parser.findChar (',');
+            String entry = parser.extract (start, end).trim ();
+            parser.advance ();   // For the following entry
+
+            // Extract the quality factor for this entry
+            double quality = 1.0;
+            int semi = entry.indexOf (";q=");
+            if (semi >= 0) {
+                try {
+                    quality = Double.parseDouble (entry.substring (semi + 3));
+                } catch (NumberFormatException e) {
+                    quality = 0.0;
+                }
+                entry = entry.substring (0, semi);
+            }
+
+            // Skip entries we are not going to keep track of
+            if (quality < 0.00005)
+                continue;       // Zero (or effectively zero) quality factors
+            if ("*".equals (entry))
+                continue;
+
+            // Extract the language and country for this entry
+            String language = null;
+            String country = null;
+            String variant = null;
+            int dash = entry.indexOf ('-');
+            if (dash < 0) {
+                language = entry;
+                country = "";
+                variant = "";
+            } else {
+                language = entry.substring (0, dash);
+                country = entry.substring (dash + 1);
+                int vDash = country.indexOf ('-');
+                if (vDash > 0) {
+                    String cTemp = country.substring (0, vDash);
+                    variant = country.substring (vDash + 1);
+                    country = cTemp;
+                } else {
+                    variant = "";
+                }
+            }
+
+            // Add a new Locale to the list of Locales for this quality level
+            Locale locale = new Locale (language, country, variant);
+            Double key = -quality;  // Reverse the order
+            ArrayList<Locale> values = locales.computeIfAbsent (key, k -> new ArrayList<> ());
+            values.add (locale);
+        }
+
+        // Process the quality values in highest->lowest order (due to
+        // negating the Double value when creating the key)
+        for (double key : locales.keySet ()) {
+            ArrayList<Locale> list = locales.get (key);
+            for (Locale locale : list) {
+                this.locales.add (locale);
+            }
+        }
+
+    }
+
+    /**
+     * 解析query string，如果是x-www-form-urlencoded的body，就读出整个body一起解析
+     * 读body会消费掉body，所以先调用了getInputStream的话就不会再解析body了
+     */
+    protected void parseParameters() {
+        if (parametersParsed) {
+            return;
+        }
+        parametersParsed = true;
+
+        try {
+            RequestUtil.parseParameters (parameterMap, queryString, "utf-8");
+            //可能带有charset等参数
+            if (contentType != null && servletInputStream == null && reader == null && inputStream != null &&
+                    contentType.toLowerCase (Locale.ROOT).startsWith (APPLICATION_X_WWW_FORM_URLENCODED)) {
+                RequestUtil.parseParameters (parameterMap, readFormBody (), "utf-8");
+            }
+        } catch (IOException e) {
+            log.warn ("解析请求参数失败 {}", e.getMessage ());
+            setAttribute (Globals.PARAMETER_PARSE_FAILED_ATTR, Boolean.TRUE);
+        }
+
+        //multipart中的普通字段也是参数，但只在servlet允许上传时才解析
+        if (isMultipart ()) {
+            parseParts (false);
+            if (partsParseException != null) {
+                setAttribute (Globals.PARAMETER_PARSE_FAILED_ATTR, Boolean.TRUE);
+            }
+        }
+    }
+
+    private boolean isMultipart() {
+        return contentType != null &&
+                contentType.toLowerCase (Locale.ROOT).startsWith (MULTIPART_FORM_DATA);
+    }
+
+    /**
+     * 流式解析multipart body，大的part写入临时文件，普通的表单字段同时加入参数
+     *
+     * @param explicit 是否由getParts调用，没有multipart配置时getParts要抛出异常，getParameter则忽略
+     */
+    private void parseParts(boolean explicit) {
+        if (parts != null || partsParseException != null) {
+            return;
+        }
+
+        MultipartConfigElement config = getWrapper () == null ? null : getWrapper ().getMultipartConfigElement ();
+        if (config == null) {
+            if (getContext () != null && getContext ().getAllowCasualMultipartParsing ()) {
+                int maxPostSize = getConnector () == null ? -1 : getConnector ().getMaxPostSize ();
+                config = new MultipartConfigElement (null, maxPostSize, maxPostSize, maxPostSize);
+            } else if (explicit) {
+                partsParseException = new IllegalStateException ("由于没有提供multi-part配置，无法处理parts");
+                return;
+            } else {
+                return;
+            }
+        }
+
+        String boundary = MultipartParser.getBoundary (contentType);
+        if (!isMultipart () || boundary == null) {
+            partsParseException = new ServletException ("请求不是multipart/form-data");
+            return;
+        }
+        if (servletInputStream != null || reader != null || inputStream == null) {
+            partsParseException = new IllegalStateException ("请求body已经被读取");
+            return;
+        }
+
+        Charset charset = StandardCharsets.UTF_8;
+        if (getCharacterEncoding () != null) {
+            try {
+                charset = Charset.forName (getCharacterEncoding ());
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+
+        try {
+            parts = new MultipartParser (inputStream, boundary, charset, getPartLocation (config),
+                    config.getMaxFileSize (), config.getMaxRequestSize (), config.getFileSizeThreshold ()).parse ();
+            for (PartImpl part : parts) {
+                if (part.getSubmittedFileName () == null) {
+                    String[] value = {part.getString (charset)};
+                    parameterMap.merge (part.getName (), value, (a, b) -> {
+                        String[] merged = Arrays.copyOf (a, a.length + b.length);
+                        System.arraycopy (b, 0, merged, a.length, b.length);
+                        return merged;
+                    });
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            log.warn ("解析multipart请求失败 {}", e.getMessage ());
+            partsParseException = e;
+        }
+    }
+
+    /**
+     * location为空时使用context的临时目录（work dir），相对路径也相对于它
+     */
+    private File getPartLocation(MultipartConfigElement config) {
+        File tempDir = null;
+        if (getContext () != null) {
+            Object attr = getContext ().getServletContext ().getAttribute (ServletContext.TEMPDIR);
+            if (attr instanceof File) {
+                tempDir = (File) attr;
+            }
+        }
+        if (tempDir == null) {
+            tempDir = new File (System.getProperty ("java.io.tmpdir"));
+        }
+
+        String location = config.getLocation ();
+        if (location == null || location.isEmpty ()) {
+            return tempDir;
+        }
+        File file = new File (location);
+        return file.isAbsolute () ? file : new File (tempDir, location);
+    }
+
+    /**
+     * 读出整个表单body，最多读maxPostSize
+     */
+    private byte[] readFormBody() throws IOException {
+        int max = getConnector () == null ? 0 : getConnector ().getMaxPostSize ();
+        ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = inputStream.read (buf)) != -1) {
+            if (max > 0 && out.size () + n > max) {
+                throw new IOException ("表单body超过了maxPostSize " + max);
+            }
+            out.write (buf, 0, n);
+        }
+        return out.toByteArray ();
+    }
+
+    @Override
+    public String getParameter(String name) {
+        parseParameters ();
+        return super.getParameter (name);
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        parseParameters ();
+        return super.getParameterNames ();
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        parseParameters ();
+        return super.getParameterValues (name);
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        parseParameters ();
+        return super.getParameterMap ();
+    }
+
+    @Override
+    public void setParameterMap(Map<String, String[]> parameterMap) {
+        parametersParsed = true;
+        super.setParameterMap (parameterMap);
+    }
+
+    @Override
+    public Locale getLocale() {
+        parseLocales ();
+        return super.getLocale ();
+    }
+
+    @Override
+    public Enumeration<Locale> getLocales() {
+        parseLocales ();
+        return super.getLocales ();
+    }
+
     /**
      * 获得解码之后的uri，即url编码的字符串再解码的结果
      * 如/ssss/sss/sss
@@ -219,6 +623,7 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
 
     @Override
     public Cookie[] getCookies() {
+        parseCookies ();
         return cookies.values ().toArray (new Cookie[0]);
     }
 
@@ -230,8 +635,17 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
                 .orElse (-1L);
     }
 
+    /**
+     * 大小写不敏感
+     */
     @Override
     public String getHeader(String name) {
+        if (httpHeaders != null) {
+            String value = httpHeaders.get (name);
+            if (value != null) {
+                return value;
+            }
+        }
         return Optional
                 .ofNullable (headers.get (name))
                 .map (x -> x.get (0))
@@ -246,20 +660,33 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
      */
     @Override
     public Enumeration<String> getHeaders(String name) {
-        return Collections.enumeration (new ArrayList<> (headers.get (name)));
+        List<String> values = new ArrayList<> ();
+        if (httpHeaders != null) {
+            values.addAll (httpHeaders.getAll (name));
+        }
+        List<String> added = headers.get (name);
+        if (added != null) {
+            values.addAll (added);
+        }
+        return Collections.enumeration (values);
     }
 
     @Override
     public Enumeration<String> getHeaderNames() {
-        return Collections.enumeration (new ArrayList<> (headers.keySet ()));
+        Set<String> names = new LinkedHashSet<> ();
+        if (httpHeaders != null) {
+            names.addAll (httpHeaders.names ());
+        }
+        names.addAll (headers.keySet ());
+        return Collections.enumeration (names);
     }
 
     @Override
     public int getIntHeader(String name) {
-        List<String> list = headers.get (name);
-        if (list == null) {
+        String value = getHeader (name);
+        if (value == null) {
             return -1;
-        } else return Integer.parseInt (list.get (0));
+        } else return Integer.parseInt (value);
     }
 
     @Override
@@ -360,6 +787,7 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
      */
     @Override
     public String getRequestedSessionId() {
+        parseCookies ();
         return requestedSessionId;
     }
 
@@ -422,6 +850,7 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
      */
     @Override
     public Session getSessionInternal(boolean create) {
+        parseCookies ();
         if (getContext () == null) {
             return null;
         }
@@ -521,6 +950,7 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
 
     @Override
     public boolean isRequestedSessionIdFromCookie() {
+        parseCookies ();
         if (requestedSessionId == null) {
             return false;
         }
@@ -531,6 +961,7 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
 
     @Override
     public boolean isRequestedSessionIdFromURL() {
+        parseCookies ();
         if (requestedSessionId == null) {
             return false;
         }
@@ -569,34 +1000,204 @@ public class HttpRequestImpl extends AbstractRequest implements HttpRequest, Htt
     }
 
     /**
-     * TODO 文件上传功能
+     * 只支持multipart/form-data，需要servlet有{@link javax.servlet.annotation.MultipartConfig}
+     * 或者context设置了allowCasualMultipartParsing
      */
     @Override
     public Collection<Part> getParts() throws IOException, ServletException {
+        parseParts (true);
+        if (partsParseException instanceof IOException) {
+            throw (IOException) partsParseException;
+        } else if (partsParseException instanceof ServletException) {
+            throw (ServletException) partsParseException;
+        } else if (partsParseException instanceof IllegalStateException) {
+            throw (IllegalStateException) partsParseException;
+        }
+        return Collections.unmodifiableList (parts);
+    }
+
+    @Override
+    public Part getPart(String name) throws IOException, ServletException {
+        for (Part part : getParts ()) {
+            if (part.getName ().equals (name)) {
+                return part;
+            }
+        }
         return null;
     }
 
     /**
-     * TODO 文件上传功能
+     * 除了关闭流，还要删除上传的临时文件
      */
     @Override
-    public Part getPart(String name) throws IOException, ServletException {
-        return null;
+    public void finishRequest() {
+        super.finishRequest ();
+
+        if (parts != null) {
+            for (PartImpl part : parts) {
+                try {
+                    part.delete ();
+                } catch (IOException e) {
+                    log.warn ("删除上传的临时文件失败 {}", e.getMessage ());
+                }
+            }
+        }
     }
 
     /**
-     * 协议升级，不实现
+     * 协议升级，只支持websocket，即{@link WebSocketUpgradeHandler}。
+     * 这里只是记录下来并设置101，真正的切换在servlet返回之后
      */
     @Override
     public <T extends HttpUpgradeHandler> T upgrade(Class<T> handlerClass) throws IOException, ServletException {
-        return null;
+        if (!WebSocketUpgradeHandler.class.isAssignableFrom (handlerClass)) {
+            throw new ServletException ("只支持升级为websocket: " + handlerClass.getName ());
+        }
+        String upgrade = getHeader (HttpHeaderNames.UPGRADE.toString ());
+        if (upgrade == null || !HttpHeaderValues.WEBSOCKET.contentEqualsIgnoreCase (upgrade.trim ())) {
+            throw new ServletException ("请求没有Upgrade: websocket");
+        }
+        if (upgradeHandler != null) {
+            throw new IllegalStateException ("已经调用过upgrade");
+        }
+        T handler;
+        try {
+            handler = handlerClass.getDeclaredConstructor ().newInstance ();
+        } catch (InvocationTargetException e) {
+            throw new ServletException ("无法创建 " + handlerClass.getName (), e.getCause ());
+        } catch (ReflectiveOperationException e) {
+            throw new ServletException ("无法创建 " + handlerClass.getName (), e);
+        }
+        upgradeHandler = handler;
+        if (response != null) {
+            ((HttpServletResponse) response.getResponse ()).setStatus (HttpServletResponse.SC_SWITCHING_PROTOCOLS);
+        }
+        return handler;
+    }
+
+    /**
+     * [Package Private] 没有调用upgrade时为null
+     */
+    HttpUpgradeHandler getUpgradeHandler() {
+        return upgradeHandler;
+    }
+
+    /**
+     * [Package Private]
+     */
+    void setProcessor(HttpProcessor processor) {
+        this.processor = processor;
+    }
+
+    @Override
+    public AsyncContext startAsync() throws IllegalStateException {
+        return startAsync (this, response == null ? null : response.getResponse ());
+    }
+
+    /**
+     * servlet返回后请求不结束，直到调用complete；在async dispatch中再次调用时复用同一个AsyncContext
+     */
+    @Override
+    public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse)
+            throws IllegalStateException {
+        if (!isAsyncSupported ()) {
+            throw new IllegalStateException ("servlet或者filter不支持异步: " + getDecodedRequestURI ());
+        }
+        if (processor == null) {
+            throw new IllegalStateException ("请求不是由connector处理的，不能startAsync");
+        }
+        if (asyncContext == null) {
+            asyncContext = new AsyncContextImpl (processor, this, servletRequest, servletResponse);
+        } else {
+            asyncContext.restart (servletRequest, servletResponse);
+        }
+        return asyncContext;
+    }
+
+    @Override
+    public boolean isAsyncStarted() {
+        return asyncContext != null && asyncContext.isAsyncStarted ();
+    }
+
+    @Override
+    public AsyncContext getAsyncContext() {
+        if (!isAsyncStarted ()) {
+            throw new IllegalStateException ("请求不在异步模式下");
+        }
+        return asyncContext;
+    }
+
+    /**
+     * [Package Private] 没有调用过startAsync时为null
+     */
+    AsyncContextImpl getAsyncContextInternal() {
+        return asyncContext;
+    }
+
+    /**
+     * [Package Private] async dispatch之前，把请求改成path，由engine重新映射到context、wrapper
+     *
+     * @param path 包括context path，可能带有query
+     */
+    void prepareAsyncDispatch(String path) {
+        if (getAttribute (AsyncContext.ASYNC_REQUEST_URI) == null) {
+            //第一次dispatch时记录原始请求
+            setAttribute (AsyncContext.ASYNC_REQUEST_URI, requestURI);
+            setAttribute (AsyncContext.ASYNC_CONTEXT_PATH, contextPath);
+            setAttribute (AsyncContext.ASYNC_SERVLET_PATH, servletPath);
+            setAttribute (AsyncContext.ASYNC_PATH_INFO, pathInfo);
+            setAttribute (AsyncContext.ASYNC_QUERY_STRING, queryString);
+        }
+        dispatcherType = DispatcherType.ASYNC;
+        int index = path.indexOf ('?');
+        String uri = index >= 0 ? path.substring (0, index) : path;
+        if (index >= 0) {
+            mergeQueryString (path.substring (index + 1));
+        }
+        //dispatch的path是没有编码的
+        requestURI = uri;
+        decodedRequestURI = uri;
+        contextPath = null;
+        servletPath = null;
+        pathInfo = null;
+        context = null;
+        wrapper = null;
+        asyncSupported = false;
+    }
+
+    /**
+     * dispatch的path中的参数优先于原来的参数
+     */
+    private void mergeQueryString(String query) {
+        if (query.isEmpty ()) {
+            return;
+        }
+        if (parametersParsed) {
+            Map<String, String[]> added = new HashMap<> ();
+            try {
+                RequestUtil.parseParameters (added, query, "utf-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException (e);
+            }
+            for (Map.Entry<String, String[]> e : added.entrySet ()) {
+                String[] old = parameterMap.get (e.getKey ());
+                if (old == null) {
+                    parameterMap.put (e.getKey (), e.getValue ());
+                } else {
+                    String[] merged = Arrays.copyOf (e.getValue (), e.getValue ().length + old.length);
+                    System.arraycopy (old, 0, merged, e.getValue ().length, old.length);
+                    parameterMap.put (e.getKey (), merged);
+                }
+            }
+        }
+        queryString = queryString == null || queryString.isEmpty () ? query : query + "&" + queryString;
     }
 
     //如果用@ToString的话，就会调用getSession方法，从而加载session
     @Override
     public String toString() {
         return "HttpRequestImpl{" +
-                "headers=" + headers +
+                "headers=" + (httpHeaders != null ? httpHeaders : headers) +
                 ", cookies=" + cookies +
                 ", method='" + method + '\'' +
                 ", decodedRequestURI='" + decodedRequestURI + '\'' +
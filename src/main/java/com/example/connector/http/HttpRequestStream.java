@@ -2,81 +2,158 @@ package com.example.connector.http;
 
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
- * 读取完才执行
- * 总体简单处理即输入读取、输出到buffer都是完成才发送tcp
+ * 聚合模式下body已经完整到达，流式模式下由{@link HttpContentInputStream}阻塞读取
+ * <p>
+ * 异步模式下可以设置{@link ReadListener}，有数据时在容器线程上回调onDataAvailable，
+ * onDataAvailable返回后body已经读完的话再回调onAllDataRead
  *
  * @date 2021/12/8 19:57
  */
 public class HttpRequestStream extends ServletInputStream {
     protected InputStream inputStream;
-    protected List<ReadListener> listeners;
-    protected boolean done = false;
+    protected ServletRequest request;
+    protected volatile ReadListener listener;
+    protected volatile boolean done = false;
+    /**
+     * onAllDataRead只回调一次
+     */
+    private boolean allDataRead = false;
 
     public HttpRequestStream(InputStream inputStream) {
+        this (inputStream, null);
+    }
+
+    public HttpRequestStream(InputStream inputStream, ServletRequest request) {
         this.inputStream = inputStream;
-        this.listeners = new ArrayList<> ();
+        this.request = request;
     }
 
     /**
-     * fixme
-     * 这个需要消除多次读取byteBuf的问题
-     * <p>
-     * body 读取完
-     * 因为包装了netty，所以此时已经获得了所有的body（限制大小）
+     * body是否读完了，不需要读到-1
      */
     @Override
     public boolean isFinished() {
-        return done;
+        if (done) {
+            return true;
+        }
+        if (inputStream instanceof HttpContentInputStream) {
+            return ((HttpContentInputStream) inputStream).isFinished ();
+        }
+        try {
+            return inputStream.available () == 0;
+        } catch (IOException e) {
+            return true;
+        }
     }
 
+    /**
+     * 流式的body可能还没到达，这时返回false，并在数据到达后回调onDataAvailable
+     */
     @Override
     public boolean isReady() {
-        return true;
+        if (!(inputStream instanceof HttpContentInputStream)) {
+            return true;
+        }
+        HttpContentInputStream stream = (HttpContentInputStream) inputStream;
+        if (stream.isReady ()) {
+            return true;
+        }
+        if (listener != null) {
+            stream.onReady (this::scheduleNotify);
+        }
+        return false;
     }
 
+    /**
+     * 只能在异步模式下设置，且只能设置一次
+     */
     @Override
     public void setReadListener(ReadListener readListener) {
-        listeners.add (readListener);
+        if (readListener == null) {
+            throw new NullPointerException ("readListener");
+        }
+        AsyncContextImpl asyncContext = getAsyncContext ();
+        if (asyncContext == null || !request.isAsyncStarted ()) {
+            throw new IllegalStateException ("只能在异步模式下设置ReadListener");
+        }
+        if (listener != null) {
+            throw new IllegalStateException ("已经设置过ReadListener");
+        }
+        listener = readListener;
+        scheduleNotify ();
     }
 
-    /**
-     * 这个方法多次read的话会多次触发notifyDone。。
-     */
     @Override
     public int read() throws IOException {
-        if (isFinished ()) {
+        if (done) {
             return -1;
-        } else {
-            int b = inputStream.read ();
-            if (b == -1) {
-                done = true;
-                notifyDone ();
-            }
-            return b;
         }
+        int b = inputStream.read ();
+        if (b == -1) {
+            done = true;
+        }
+        return b;
     }
 
-    private void notifyDone() {
-        if (isFinished ()) {
-            for (ReadListener listener : listeners) {
-                try {
-                    listener.onAllDataRead ();
-                } catch (IOException e) {
-                    e.printStackTrace ();
-                    listener.onError (e);
-                }
-            }
+    /**
+     * 批量读，避免大body一个字节一个字节地读
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (done) {
+            return -1;
+        }
+        int n = inputStream.read (b, off, len);
+        if (n == -1) {
+            done = true;
         }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return done ? 0 : inputStream.available ();
     }
 
     @Override
     public void close() throws IOException {
         inputStream.close ();
     }
+
+    private AsyncContextImpl getAsyncContext() {
+        return request instanceof HttpRequestImpl ? ((HttpRequestImpl) request).getAsyncContextInternal () : null;
+    }
+
+    private void scheduleNotify() {
+        AsyncContextImpl asyncContext = getAsyncContext ();
+        if (asyncContext != null) {
+            asyncContext.execute (this::notifyListener);
+        }
+    }
+
+    /**
+     * 在容器线程上执行
+     */
+    private void notifyListener() {
+        ReadListener l = listener;
+        if (l == null || allDataRead) {
+            return;
+        }
+        try {
+            if (!isFinished () && isReady ()) {
+                l.onDataAvailable ();
+            }
+            if (isFinished () && !allDataRead) {
+                allDataRead = true;
+                l.onAllDataRead ();
+            }
+        } catch (Throwable e) {
+            l.onError (e);
+        }
+    }
 }
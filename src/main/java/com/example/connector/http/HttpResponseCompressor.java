@@ -0,0 +1,90 @@
+package com.example.connector.http;
+
+import io.netty.handler.codec.compression.StandardCompressionOptions;
+import io.netty.handler.codec.http.*;
+
+import java.util.Set;
+
+/**
+ * 响应压缩，在netty的{@link HttpContentCompressor}基础上加了判断：
+ * 1. range响应（206、Content-Range）不压缩，否则偏移就不对了
+ * 2. 已经有Content-Encoding的不压缩
+ * 3. 只压缩compressibleMimeType中的类型，并且Content-Length已知时不小于compressionMinSize
+ * <p>
+ * force模式下忽略类型和大小，但仍然要求客户端的Accept-Encoding支持
+ * <p>
+ * 完整的响应和chunked响应都可以压缩，chunked的情况下netty会去掉Content-Length
+ *
+ * @date 2022/3/3 16:40
+ */
+public class HttpResponseCompressor extends HttpContentCompressor {
+    private static final int COMPRESSION_LEVEL = 6;
+    private static final int WINDOW_BITS = 15;
+    private static final int MEM_LEVEL = 8;
+
+    private final boolean force;
+    private final int minSize;
+    private final Set<String> mimeTypes;
+
+    /**
+     * @param mimeTypes 小写的、不带参数的mime类型
+     */
+    public HttpResponseCompressor(boolean force, int minSize, Set<String> mimeTypes) {
+        super (force ? 0 : minSize,
+                StandardCompressionOptions.gzip (COMPRESSION_LEVEL, WINDOW_BITS, MEM_LEVEL),
+                StandardCompressionOptions.deflate (COMPRESSION_LEVEL, WINDOW_BITS, MEM_LEVEL));
+        this.force = force;
+        this.minSize = minSize;
+        this.mimeTypes = mimeTypes;
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+        if (!isCompressible (response)) {
+            return null;
+        }
+        return super.beginEncode (response, acceptEncoding);
+    }
+
+    /**
+     * 这个响应发给带这个Accept-Encoding的客户端时是否会被压缩，和{@link #beginEncode}的判断一致
+     *
+     * @param acceptEncoding 请求的Accept-Encoding，没有时为null
+     */
+    public boolean willCompress(HttpResponse response, String acceptEncoding) {
+        return isCompressible (response) &&
+                determineEncoding (acceptEncoding == null ? HttpHeaderValues.IDENTITY.toString () : acceptEncoding) != null;
+    }
+
+    /**
+     * 只根据响应判断是否可能被压缩，不考虑客户端是否支持
+     */
+    public boolean isCompressible(HttpResponse response) {
+        HttpHeaders headers = response.headers ();
+        if (response.status ().code () == HttpResponseStatus.PARTIAL_CONTENT.code () ||
+                headers.contains (HttpHeaderNames.CONTENT_RANGE)) {
+            return false;
+        }
+        String contentEncoding = headers.get (HttpHeaderNames.CONTENT_ENCODING);
+        if (contentEncoding != null && !HttpHeaderValues.IDENTITY.contentEqualsIgnoreCase (contentEncoding)) {
+            return false;
+        }
+        if (force) {
+            return true;
+        }
+
+        long length = HttpUtil.getContentLength (response, -1L);
+        if (length >= 0 && length < minSize) {
+            return false;
+        }
+        String contentType = headers.get (HttpHeaderNames.CONTENT_TYPE);
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf (';');
+        if (semicolon >= 0) {
+            contentType = contentType.substring (0, semicolon);
+        }
+        return mimeTypes.contains (contentType.trim ().toLowerCase ());
+    }
+}
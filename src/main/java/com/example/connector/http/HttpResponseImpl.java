@@ -24,12 +24,9 @@ import static com.google.common.net.HttpHeaders.*;
 @ToString
 public class HttpResponseImpl extends AbstractResponse implements HttpResponse, HttpServletResponse {
     protected static final TimeZone zone = TimeZone.getDefault ();
-    private static final FullHttpResponse DEFAULT =
-            new DefaultFullHttpResponse (HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
     protected Map<String, List<String>> headers = new ConcurrentHashMap<> ();
     protected Map<String, Cookie> cookies = new ConcurrentHashMap<> ();
     protected boolean suspend;
-    protected FullHttpResponse fullHttpResponse = DEFAULT.copy ();
     /**
      * err msg
      */
@@ -368,7 +365,6 @@ public class HttpResponseImpl extends AbstractResponse implements HttpResponse,
         cookies.clear ();
         headers.clear ();
         status = HttpResponseStatus.OK;
-        fullHttpResponse = DEFAULT.copy ();
     }
 
 
@@ -382,7 +378,7 @@ public class HttpResponseImpl extends AbstractResponse implements HttpResponse,
         cookies.clear ();
         headers.clear ();
         status = HttpResponseStatus.OK;
-        fullHttpResponse = DEFAULT.copy ();
+        message = null;
     }
 
     @Override
@@ -406,7 +402,10 @@ public class HttpResponseImpl extends AbstractResponse implements HttpResponse,
     @Override
     public void setCharacterEncoding(String charset) {
         super.setCharacterEncoding (charset);
-        addHeader (CONTENT_ENCODING, charset);
+        //字符集属于Content-Type，Content-Encoding是gzip这类的压缩方式
+        if (contentType != null && !contentType.toLowerCase ().contains ("charset=")) {
+            setHeader (CONTENT_TYPE, contentType + ";charset=" + charset);
+        }
     }
 
 }
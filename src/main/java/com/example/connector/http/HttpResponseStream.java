@@ -1,35 +1,74 @@
 package com.example.connector.http;
 
+import com.example.connector.ByteBufOutputStream;
 import com.example.connector.HttpResponse;
+import com.example.connector.Response;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
 import javax.servlet.WriteListener;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
+ * 异步模式下可以设置{@link WriteListener}，之后写chunk时不再阻塞等待发送缓冲区，
+ * isReady返回false后，channel重新可写时在容器线程上回调onWritePossible
+ *
  * @date 2021/12/8 19:57
  */
 public class HttpResponseStream extends ServletOutputStream {
-    protected List<WriteListener> listeners = new CopyOnWriteArrayList<> ();
+    protected volatile WriteListener listener;
     protected OutputStream outputStream;
     protected HttpResponse response;
+    /**
+     * 用来找到请求的AsyncContext
+     */
+    protected Response owner;
     protected volatile boolean closed = false;
 
     public HttpResponseStream(OutputStream outputStream) {
+        this (outputStream, null);
+    }
+
+    public HttpResponseStream(OutputStream outputStream, Response owner) {
         this.outputStream = outputStream;
+        this.owner = owner;
     }
 
+    /**
+     * buffer可以扩容，所以只取决于channel的发送缓冲区是否满了
+     */
     @Override
     public boolean isReady() {
-        return true;//因为buffer可以扩容
+        if (!(outputStream instanceof ByteBufOutputStream) || ((ByteBufOutputStream) outputStream).isReady ()) {
+            return true;
+        }
+        if (listener != null) {
+            armWritable ();
+        }
+        return false;
     }
 
+    /**
+     * 只能在异步模式下设置，且只能设置一次
+     */
     @Override
     public void setWriteListener(WriteListener writeListener) {
-        listeners.add (writeListener);
+        if (writeListener == null) {
+            throw new NullPointerException ("writeListener");
+        }
+        AsyncContextImpl asyncContext = getAsyncContext ();
+        if (asyncContext == null || !asyncContext.isAsyncStarted ()) {
+            throw new IllegalStateException ("只能在异步模式下设置WriteListener");
+        }
+        if (listener != null) {
+            throw new IllegalStateException ("已经设置过WriteListener");
+        }
+        listener = writeListener;
+        asyncContext.setNonBlockingWrite (true);
+        asyncContext.execute (this::notifyListener);
     }
 
     @Override
@@ -37,12 +76,17 @@ public class HttpResponseStream extends ServletOutputStream {
         outputStream.write (b);
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        outputStream.write (b, off, len);
+    }
+
     /**
-     * 刷新流没有意义，因为都存在byteBuf中了
+     * 交给底层的流，会提交响应并把已经写的body作为一个chunk发送出去
      */
     @Override
-    public void flush() {
-
+    public void flush() throws IOException {
+        outputStream.flush ();
     }
 
     @Override
@@ -53,4 +97,43 @@ public class HttpResponseStream extends ServletOutputStream {
         closed = true;
         outputStream.close ();
     }
+
+    private AsyncContextImpl getAsyncContext() {
+        ServletRequest request = owner == null || owner.getRequest () == null ? null : owner.getRequest ().getRequest ();
+        return request instanceof HttpRequestImpl ? ((HttpRequestImpl) request).getAsyncContextInternal () : null;
+    }
+
+    /**
+     * channel重新可写时由{@link HttpConnector}的handler回调，设置之后再检查一次，避免错过通知
+     */
+    private void armWritable() {
+        AsyncContextImpl asyncContext = getAsyncContext ();
+        ChannelHandlerContext ctx = asyncContext == null ? null : asyncContext.getHandlerContext ();
+        if (ctx == null) {
+            return;
+        }
+        Channel channel = ctx.channel ();
+        Runnable callback = () -> asyncContext.execute (this::notifyListener);
+        channel.attr (HttpConnector.WRITABLE_CALLBACK).set (callback);
+        if (channel.isWritable () && channel.attr (HttpConnector.WRITABLE_CALLBACK).compareAndSet (callback, null)) {
+            callback.run ();
+        }
+    }
+
+    /**
+     * 在容器线程上执行
+     */
+    private void notifyListener() {
+        WriteListener l = listener;
+        if (l == null || closed) {
+            return;
+        }
+        try {
+            if (isReady ()) {
+                l.onWritePossible ();
+            }
+        } catch (Throwable e) {
+            l.onError (e);
+        }
+    }
 }
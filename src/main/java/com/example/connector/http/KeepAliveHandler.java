@@ -0,0 +1,241 @@
+package com.example.connector.http;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 管理http/1.x连接的生命周期，放在http编解码器之后，配合前面的{@link IdleStateHandler}使用
+ * <p>
+ * 1. 连接空闲（没有正在处理的请求）超过keepAliveTimeout就关闭
+ * 2. 正在接收请求但客户端超过readTimeout没有发数据就关闭；因为背压关闭了autoRead的不算
+ * 3. 有数据没写出去并且超过writeTimeout没有进展就关闭
+ * 4. 客户端要求Connection: close、servlet设置了Connection: close、请求数达到maxKeepAliveRequests、
+ * connector正在关闭时，发完响应后关闭，并在响应中加上Connection: close
+ * <p>
+ * 升级到http/2后这个handler会把自己移除，连接的空闲改由{@link Http2IdleHandler}检查
+ *
+ * @date 2022/3/3 10:12
+ */
+@Slf4j
+public class KeepAliveHandler extends ChannelDuplexHandler {
+    /**
+     * 连接关闭的原因，用于统计
+     */
+    public enum CloseReason {
+        /**
+         * 空闲超时
+         */
+        KEEP_ALIVE_TIMEOUT,
+        /**
+         * 读请求超时
+         */
+        READ_TIMEOUT,
+        /**
+         * 写响应超时
+         */
+        WRITE_TIMEOUT,
+        /**
+         * 达到单个连接的最大请求数
+         */
+        MAX_KEEP_ALIVE_REQUESTS,
+        /**
+         * 客户端请求中要求关闭
+         */
+        CLIENT_REQUESTED,
+        /**
+         * servlet或者connector在响应中要求关闭
+         */
+        SERVER_REQUESTED,
+        /**
+         * 对方直接断开了连接
+         */
+        PEER_CLOSED,
+        /**
+         * connector正在关闭
+         */
+        SHUTDOWN
+    }
+
+    /**
+     * connector关闭时发给每个连接的事件，空闲的连接直接关闭，正在处理请求的连接在响应发完后关闭
+     */
+    public static final Object DRAIN_EVENT = new Object () {
+        @Override
+        public String toString() {
+            return "DRAIN_EVENT";
+        }
+    };
+
+    private final HttpConnector connector;
+    private final int maxKeepAliveRequests;
+    /**
+     * 这个连接上收到的请求数
+     */
+    private int requests = 0;
+    /**
+     * 已经收到但还没发完响应的请求数，pipelining时可能大于1
+     */
+    private int inflight = 0;
+    /**
+     * 是否正在接收请求（header已经收到，body还没收完）
+     */
+    private boolean reading = false;
+    /**
+     * 客户端要求的关闭
+     */
+    private boolean clientClose = false;
+    /**
+     * 最近一个请求是http/1.0并且带了Connection: keep-alive
+     */
+    private boolean http10KeepAlive = false;
+    /**
+     * 当前响应发完后需要关闭的原因
+     */
+    private CloseReason closing;
+    /**
+     * 连接关闭的原因，没有设置说明是对方断开的
+     */
+    private CloseReason closeReason;
+
+    public KeepAliveHandler(HttpConnector connector) {
+        this.connector = connector;
+        this.maxKeepAliveRequests = connector.getMaxKeepAliveRequests ();
+    }
+
+    /**
+     * 和这个handler配合使用的{@link IdleStateHandler}，超时为0表示不检查
+     */
+    public static IdleStateHandler newIdleStateHandler(HttpConnector connector) {
+        return new IdleStateHandler (true, connector.getReadTimeout (), connector.getWriteTimeout (),
+                connector.getKeepAliveTimeout (), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest request = (HttpRequest) msg;
+            requests++;
+            inflight++;
+            reading = true;
+            if (!HttpUtil.isKeepAlive (request)) {
+                clientClose = true;
+            }
+            http10KeepAlive = request.protocolVersion ().equals (HttpVersion.HTTP_1_0) && !clientClose;
+        }
+        if (msg instanceof LastHttpContent) {
+            reading = false;
+        }
+        super.channelRead (ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            //100-continue之类的中间响应不算
+            if (response.status ().codeClass () != HttpStatusClass.INFORMATIONAL) {
+                closing = shouldClose (response);
+                HttpHeaders headers = response.headers ();
+                if (closing != null) {
+                    headers.set (HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                } else if (http10KeepAlive) {
+                    headers.set (HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+                }
+            }
+        }
+
+        if (msg instanceof LastHttpContent) {
+            inflight = Math.max (0, inflight - 1);
+            if (closing != null) {
+                CloseReason reason = closing;
+                ctx.write (msg, promise.unvoid ()).addListener ((ChannelFutureListener) future -> {
+                    closeReason = reason;
+                    future.channel ().close ();
+                });
+                return;
+            }
+        }
+        super.write (ctx, msg, promise);
+    }
+
+    private CloseReason shouldClose(HttpResponse response) {
+        if (clientClose) {
+            return CloseReason.CLIENT_REQUESTED;
+        }
+        if (!HttpUtil.isKeepAlive (response)) {
+            return CloseReason.SERVER_REQUESTED;
+        }
+        if (maxKeepAliveRequests > 0 && requests >= maxKeepAliveRequests) {
+            return CloseReason.MAX_KEEP_ALIVE_REQUESTS;
+        }
+        if (connector.isDraining ()) {
+            return CloseReason.SHUTDOWN;
+        }
+        return null;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            CloseReason reason = null;
+            switch (((IdleStateEvent) evt).state ()) {
+                case READER_IDLE:
+                    //autoRead被关闭说明是servlet读得慢，不是客户端的问题
+                    if (reading && ctx.channel ().config ().isAutoRead ()) {
+                        reason = CloseReason.READ_TIMEOUT;
+                    }
+                    break;
+                case WRITER_IDLE:
+                    ChannelOutboundBuffer buffer = ctx.channel ().unsafe ().outboundBuffer ();
+                    if (buffer != null && buffer.totalPendingWriteBytes () > 0) {
+                        reason = CloseReason.WRITE_TIMEOUT;
+                    }
+                    break;
+                case ALL_IDLE:
+                    if (inflight == 0 && !reading) {
+                        reason = CloseReason.KEEP_ALIVE_TIMEOUT;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (reason != null) {
+                log.debug ("{} 关闭连接 {}, 原因 {}", connector, ctx.channel (), reason);
+                closeReason = reason;
+                ctx.close ();
+            }
+            return;
+        }
+
+        if (evt == DRAIN_EVENT) {
+            if (inflight == 0 && !reading) {
+                closeReason = CloseReason.SHUTDOWN;
+                ctx.close ();
+            }
+            return;
+        }
+
+        if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent ||
+                evt instanceof CleartextHttp2ServerUpgradeHandler.PriorKnowledgeUpgradeEvent) {
+            //h2c升级时frame codec已经装在升级handler的位置，这里把http/1.1的handler（包括自己）换成http/2的
+            connector.switchToHttp2Handlers (ctx.pipeline ());
+        }
+        super.userEventTriggered (ctx, evt);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        connector.connectionClosed (closeReason != null ? closeReason : CloseReason.PEER_CLOSED);
+        super.channelInactive (ctx);
+    }
+}
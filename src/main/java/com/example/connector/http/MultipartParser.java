@@ -0,0 +1,295 @@
+package com.example.connector.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * 流式的multipart/form-data解析器，边读边写入{@link PartImpl}，
+ * 内存中只保留一个固定大小的缓冲区，大的part转存到临时文件
+ * <p>
+ * 超过maxFileSize、maxRequestSize时抛出{@link IllegalStateException}（servlet规范的要求），
+ * 已经生成的临时文件会被删除
+ *
+ * @date 2022/3/5 14:10
+ */
+public class MultipartParser {
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * part header一行的最大长度
+     */
+    private static final int MAX_HEADER_LINE = 8192;
+    private static final int MAX_HEADERS = 64;
+
+    private final InputStream in;
+    /**
+     * \r\n--boundary
+     */
+    private final byte[] delimiter;
+    private final Charset headerCharset;
+    private final File location;
+    private final long maxFileSize;
+    private final long maxRequestSize;
+    private final int fileSizeThreshold;
+
+    private final byte[] buf;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private long total = 0;
+
+    /**
+     * @param maxFileSize    单个part的上限，小于等于0表示不限制
+     * @param maxRequestSize 所有part内容的总上限，小于等于0表示不限制
+     */
+    public MultipartParser(InputStream in, String boundary, Charset headerCharset, File location,
+                           long maxFileSize, long maxRequestSize, int fileSizeThreshold) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes (headerCharset);
+        this.headerCharset = headerCharset;
+        this.location = location;
+        this.maxFileSize = maxFileSize;
+        this.maxRequestSize = maxRequestSize;
+        this.fileSizeThreshold = Math.max (0, fileSizeThreshold);
+        this.buf = new byte[Math.max (BUFFER_SIZE, delimiter.length * 2)];
+        //第一个boundary前面没有\r\n，补上之后所有的boundary都可以统一处理
+        buf[limit++] = '\r';
+        buf[limit++] = '\n';
+    }
+
+    /**
+     * 从Content-Type中取出boundary，没有的话返回null
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String param : contentType.split (";")) {
+            param = param.trim ();
+            if (param.regionMatches (true, 0, "boundary=", 0, 9)) {
+                String boundary = param.substring (9).trim ();
+                if (boundary.length () > 1 && boundary.startsWith ("\"") && boundary.endsWith ("\"")) {
+                    boundary = boundary.substring (1, boundary.length () - 1);
+                }
+                return boundary.isEmpty () ? null : boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 读完整个body，返回所有的part
+     */
+    public List<PartImpl> parse() throws IOException {
+        List<PartImpl> parts = new ArrayList<> ();
+        try {
+            //第一个boundary之前的内容忽略
+            readBody (null);
+            while (!afterDelimiter ()) {
+                PartImpl part = readPart ();
+                parts.add (part);
+                readBody (part);
+                part.finish ();
+            }
+        } catch (IOException | RuntimeException e) {
+            for (PartImpl part : parts) {
+                try {
+                    part.delete ();
+                } catch (IOException ignored) {
+                }
+            }
+            throw e;
+        }
+        return parts;
+    }
+
+    /**
+     * 读到一个delimiter之后，判断是结束（--）还是下一个part
+     *
+     * @return 是否结束
+     */
+    private boolean afterDelimiter() throws IOException {
+        String rest = readLine ();
+        //boundary后面可能有空白（transport padding）
+        return rest.trim ().startsWith ("--");
+    }
+
+    private PartImpl readPart() throws IOException {
+        Map<String, List<String>> headers = new LinkedHashMap<> ();
+        String line;
+        int count = 0;
+        while (!(line = readLine ()).isEmpty ()) {
+            if (++count > MAX_HEADERS) {
+                throw new IOException ("multipart part的header太多");
+            }
+            int colon = line.indexOf (':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring (0, colon).trim ().toLowerCase (Locale.ROOT);
+            headers.computeIfAbsent (name, k -> new ArrayList<> ()).add (line.substring (colon + 1).trim ());
+        }
+
+        List<String> dispositions = headers.get ("content-disposition");
+        if (dispositions == null) {
+            throw new IOException ("multipart part缺少Content-Disposition");
+        }
+        Map<String, String> params = parseDisposition (dispositions.get (0));
+        String name = params.get ("name");
+        if (name == null) {
+            throw new IOException ("multipart part缺少name");
+        }
+        return new PartImpl (name, params.get ("filename"), headers, location, fileSizeThreshold);
+    }
+
+    /**
+     * form-data; name="a"; filename="b.txt"
+     */
+    static Map<String, String> parseDisposition(String value) {
+        Map<String, String> params = new HashMap<> ();
+        int i = value.indexOf (';');
+        int length = value.length ();
+        while (i >= 0 && i < length) {
+            i++;
+            while (i < length && Character.isWhitespace (value.charAt (i))) {
+                i++;
+            }
+            int eq = value.indexOf ('=', i);
+            if (eq < 0) {
+                break;
+            }
+            String key = value.substring (i, eq).trim ().toLowerCase (Locale.ROOT);
+            i = eq + 1;
+            StringBuilder sb = new StringBuilder ();
+            if (i < length && value.charAt (i) == '"') {
+                i++;
+                while (i < length && value.charAt (i) != '"') {
+                    char c = value.charAt (i);
+                    //IE会发送不转义的windows路径，只处理\"和\\
+                    if (c == '\\' && i + 1 < length &&
+                            (value.charAt (i + 1) == '"' || value.charAt (i + 1) == '\\')) {
+                        c = value.charAt (++i);
+                    }
+                    sb.append (c);
+                    i++;
+                }
+                i = value.indexOf (';', i);
+            } else {
+                int end = value.indexOf (';', i);
+                sb.append (value, i, end < 0 ? length : end);
+                i = end;
+            }
+            params.put (key, sb.toString ().trim ());
+        }
+        return params;
+    }
+
+    /**
+     * 把下一个delimiter之前的内容写入part，part为null时丢弃
+     */
+    private void readBody(PartImpl part) throws IOException {
+        while (true) {
+            int index = indexOfDelimiter ();
+            if (index >= 0) {
+                append (part, index - pos);
+                pos = index + delimiter.length;
+                return;
+            }
+            //末尾可能是delimiter的前半部分，保留下来
+            int safe = Math.max (pos, limit - delimiter.length + 1);
+            append (part, safe - pos);
+            pos = safe;
+            if (!fill ()) {
+                throw new IOException ("multipart body不完整");
+            }
+        }
+    }
+
+    private void append(PartImpl part, int len) throws IOException {
+        if (part == null || len <= 0) {
+            return;
+        }
+        if (maxFileSize > 0 && part.getSize () + len > maxFileSize) {
+            throw new IllegalStateException ("part " + part.getName () + " 超过了maxFileSize " + maxFileSize);
+        }
+        total += len;
+        if (maxRequestSize > 0 && total > maxRequestSize) {
+            throw new IllegalStateException ("multipart请求超过了maxRequestSize " + maxRequestSize);
+        }
+        part.write (buf, pos, len);
+    }
+
+    private int indexOfDelimiter() {
+        byte first = delimiter[0];
+        int last = limit - delimiter.length;
+        outer:
+        for (int i = pos; i <= last; i++) {
+            if (buf[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buf[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 读一行，不包括\r\n
+     */
+    private String readLine() throws IOException {
+        int start = pos;
+        while (true) {
+            for (int i = start; i + 1 < limit; i++) {
+                if (buf[i] == '\r' && buf[i + 1] == '\n') {
+                    String line = new String (buf, pos, i - pos, headerCharset);
+                    pos = i + 2;
+                    return line;
+                }
+            }
+            if (limit - pos >= MAX_HEADER_LINE) {
+                throw new IOException ("multipart part的header太长");
+            }
+            start = Math.max (pos, limit - 1);
+            int before = pos;
+            if (!fill ()) {
+                //结束的boundary后面可能没有\r\n
+                String line = new String (buf, pos, limit - pos, headerCharset);
+                pos = limit;
+                return line;
+            }
+            start -= before - pos;
+        }
+    }
+
+    /**
+     * 把未处理的数据移到缓冲区开头，然后读入更多数据
+     *
+     * @return 是否读到了数据
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy (buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            return false;
+        }
+        int n = in.read (buf, limit, buf.length - limit);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+}
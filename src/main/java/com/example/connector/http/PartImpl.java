@@ -0,0 +1,179 @@
+package com.example.connector.http;
+
+import javax.servlet.http.Part;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * multipart/form-data中的一个part，由{@link MultipartParser}生成
+ * <p>
+ * 内容不超过fileSizeThreshold时保存在内存中，超过后转存到location下的临时文件，
+ * 临时文件在请求结束时由{@link HttpRequestImpl#finishRequest()}删除
+ *
+ * @date 2022/3/5 14:30
+ */
+public class PartImpl implements Part {
+    private final String name;
+    private final String submittedFileName;
+    /**
+     * key是小写的header名
+     */
+    private final Map<String, List<String>> headers;
+    private final File location;
+    private final int threshold;
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream ();
+    private File file;
+    /**
+     * file是容器创建的临时文件，需要在请求结束时删除
+     */
+    private boolean temporary = false;
+    private OutputStream fileOut;
+    private long size = 0;
+
+    PartImpl(String name, String submittedFileName, Map<String, List<String>> headers,
+             File location, int threshold) {
+        this.name = name;
+        this.submittedFileName = submittedFileName;
+        this.headers = headers;
+        this.location = location;
+        this.threshold = threshold;
+    }
+
+    /**
+     * [Package Private] 解析时写入内容，超过阈值就转存到临时文件
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        if (len <= 0) {
+            return;
+        }
+        if (fileOut == null && size + len > threshold) {
+            file = File.createTempFile ("upload_", ".tmp", location);
+            temporary = true;
+            fileOut = new BufferedOutputStream (new FileOutputStream (file));
+            memory.writeTo (fileOut);
+            memory = null;
+        }
+        if (fileOut != null) {
+            fileOut.write (b, off, len);
+        } else {
+            memory.write (b, off, len);
+        }
+        size += len;
+    }
+
+    /**
+     * [Package Private] 内容写完了
+     */
+    void finish() throws IOException {
+        if (fileOut != null) {
+            fileOut.close ();
+            fileOut = null;
+        }
+    }
+
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * 以指定编码读出全部内容，用于普通的表单字段
+     */
+    public String getString(Charset charset) throws IOException {
+        if (isInMemory ()) {
+            return new String (memory.toByteArray (), charset);
+        }
+        return new String (Files.readAllBytes (file.toPath ()), charset);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (isInMemory ()) {
+            return new ByteArrayInputStream (memory.toByteArray ());
+        }
+        return new BufferedInputStream (new FileInputStream (file));
+    }
+
+    @Override
+    public String getContentType() {
+        return getHeader ("content-type");
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getSubmittedFileName() {
+        return submittedFileName;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * 相对路径时相对于location，已经在磁盘上的话直接移动过去
+     */
+    @Override
+    public void write(String fileName) throws IOException {
+        File target = new File (fileName);
+        if (!target.isAbsolute ()) {
+            target = new File (location, fileName);
+        }
+        if (isInMemory ()) {
+            try (OutputStream out = new FileOutputStream (target)) {
+                memory.writeTo (out);
+            }
+        } else {
+            Files.move (file.toPath (), target.toPath (), StandardCopyOption.REPLACE_EXISTING);
+            file = target;
+            //移走后就是应用的文件了，不再由容器删除
+            temporary = false;
+        }
+    }
+
+    @Override
+    public void delete() throws IOException {
+        if (fileOut != null) {
+            fileOut.close ();
+            fileOut = null;
+        }
+        if (temporary && file.exists () && !file.delete ()) {
+            throw new IOException ("无法删除临时文件 " + file);
+        }
+        temporary = false;
+    }
+
+    @Override
+    public String getHeader(String name) {
+        List<String> values = headers.get (name.toLowerCase (Locale.ROOT));
+        return values == null || values.isEmpty () ? null : values.get (0);
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+        List<String> values = headers.get (name.toLowerCase (Locale.ROOT));
+        return values == null ? Collections.emptyList () : Collections.unmodifiableList (values);
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        return Collections.unmodifiableSet (headers.keySet ());
+    }
+
+    @Override
+    public String toString() {
+        return "PartImpl{" +
+                "name='" + name + '\'' +
+                ", submittedFileName='" + submittedFileName + '\'' +
+                ", size=" + size +
+                ", file=" + file +
+                '}';
+    }
+}
@@ -0,0 +1,271 @@
+package com.example.connector.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * http/1.1 pipelining要求响应按请求的顺序发送，servlet在worker线程中执行时，后到的请求可能先处理完，
+ * 所以每个连接一个sequencer，请求到达时按顺序编号，响应按编号写入channel：
+ * 轮到的响应直接写，没轮到的先存起来，前一个响应的最后一个分片写完之后再按顺序写出
+ * <p>
+ * flush不会立即执行，而是投递一个任务到eventloop，这之前写入的所有响应（包括因为排队而一起写出的）只flush一次，
+ * 即只有一次系统调用
+ * <p>
+ * 状态只在eventloop上修改，其他线程的写入会被投递过去，同一个线程的写入顺序不变
+ * <p>
+ * 没轮到的响应占用的内存有上限：worker线程写入时会等待排队的分片写出（见{@link HttpProcessor}的writeChunk），
+ * eventloop上或者非阻塞写入时不能等待，超过上限就关闭连接
+ * <p>
+ * http/2的每个stream只有一个请求，不需要排序
+ *
+ * @date 2022/3/7 15:30
+ */
+@Slf4j
+final class ResponseSequencer {
+    /**
+     * 每个连接排队中的响应最多占用的字节数
+     */
+    static final long DEFAULT_MAX_HELD_BYTES = 4 * 1024 * 1024;
+
+    private final ChannelHandlerContext ctx;
+    private final long maxHeldBytes;
+    /**
+     * 下一个到达的请求的编号
+     */
+    private long nextRequest = 0;
+    /**
+     * 正在发送响应的请求的编号，只在eventloop上修改，worker线程会读
+     */
+    private volatile long current = 0;
+    /**
+     * 还没轮到的响应，key是请求的编号
+     */
+    private final Map<Long, Queue<Pending>> held = new HashMap<> ();
+    private long heldBytes = 0;
+    private boolean flushScheduled = false;
+    private boolean closed = false;
+    private final Runnable flushTask = this::flushNow;
+
+    ResponseSequencer(ChannelHandlerContext ctx) {
+        this (ctx, DEFAULT_MAX_HELD_BYTES);
+    }
+
+    ResponseSequencer(ChannelHandlerContext ctx, long maxHeldBytes) {
+        this.ctx = ctx;
+        this.maxHeldBytes = maxHeldBytes;
+    }
+
+    /**
+     * 在eventloop上，请求到达时调用
+     *
+     * @return 这个请求的编号
+     */
+    long register() {
+        return nextRequest++;
+    }
+
+    /**
+     * 这个请求的写入口，交给processor
+     */
+    Slot slot(long ordinal) {
+        return new Slot (ordinal);
+    }
+
+    /**
+     * 写入一个消息，{@link LastHttpContent}和{@link HttpChunkedInput}表示这个请求的响应结束了
+     *
+     * @param flush 是否需要flush，会和其他写入合并
+     */
+    ChannelFuture write(long ordinal, Object msg, boolean flush) {
+        ChannelPromise promise = ctx.newPromise ();
+        if (ctx.executor ().inEventLoop ()) {
+            write0 (ordinal, new Pending (msg, promise, flush));
+        } else {
+            ctx.executor ().execute (() -> write0 (ordinal, new Pending (msg, promise, flush)));
+        }
+        return promise;
+    }
+
+    /**
+     * 连接关闭了，排队中的响应都不会再发出去
+     */
+    void close() {
+        if (!ctx.executor ().inEventLoop ()) {
+            ctx.executor ().execute (this::close);
+            return;
+        }
+        closed = true;
+        for (Queue<Pending> queue : held.values ()) {
+            for (Pending pending : queue) {
+                discard (pending);
+            }
+        }
+        held.clear ();
+        heldBytes = 0;
+    }
+
+    private void discard(Pending pending) {
+        ReferenceCountUtil.release (pending.msg);
+        pending.promise.tryFailure (new ClosedChannelException ());
+    }
+
+    /**
+     * 排队中的响应数量，测试用
+     */
+    int heldResponses() {
+        return held.size ();
+    }
+
+    /**
+     * 排队中的响应占用的字节数，测试用
+     */
+    long heldBytes() {
+        return heldBytes;
+    }
+
+    private void write0(long ordinal, Pending pending) {
+        if (closed) {
+            discard (pending);
+            return;
+        }
+        if (ordinal != current) {
+            if (heldBytes + pending.size > maxHeldBytes) {
+                //前面的响应一直没有结束，不能无限制地存下去，之后的响应也没法按顺序发送了
+                log.warn ("{} 排队中的响应超过 {} 字节，关闭连接", ctx.channel (), maxHeldBytes);
+                discard (pending);
+                close ();
+                ctx.close ();
+                return;
+            }
+            heldBytes += pending.size;
+            held.computeIfAbsent (ordinal, k -> new ArrayDeque<> ()).add (pending);
+            return;
+        }
+
+        boolean flush = pending.flush;
+        boolean last = writeNow (pending);
+        //当前响应结束了，把后面已经处理完的响应依次写出
+        while (last) {
+            current++;
+            Queue<Pending> queue = held.remove (current);
+            if (queue == null) {
+                break;
+            }
+            last = false;
+            while (!last && (pending = queue.poll ()) != null) {
+                heldBytes -= pending.size;
+                flush |= pending.flush;
+                last = writeNow (pending);
+            }
+        }
+        if (flush) {
+            scheduleFlush ();
+        }
+    }
+
+    /**
+     * @return 是否是响应的最后一个分片
+     */
+    private boolean writeNow(Pending pending) {
+        ctx.write (pending.msg, pending.promise);
+        return isLast (pending.msg);
+    }
+
+    /**
+     * 没有新的数据，只是要求flush
+     */
+    void flush() {
+        if (ctx.executor ().inEventLoop ()) {
+            scheduleFlush ();
+        } else {
+            ctx.executor ().execute (this::scheduleFlush);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            ctx.executor ().execute (flushTask);
+        }
+    }
+
+    private void flushNow() {
+        flushScheduled = false;
+        ctx.flush ();
+    }
+
+    private static boolean isLast(Object msg) {
+        return msg instanceof LastHttpContent || msg instanceof HttpChunkedInput;
+    }
+
+    private static final class Pending {
+        private final Object msg;
+        private final ChannelPromise promise;
+        private final boolean flush;
+        private final long size;
+
+        Pending(Object msg, ChannelPromise promise, boolean flush) {
+            this.msg = msg;
+            this.promise = promise;
+            this.flush = flush;
+            this.size = sizeOf (msg);
+        }
+
+        private static long sizeOf(Object msg) {
+            if (msg instanceof ByteBufHolder) {
+                return ((ByteBufHolder) msg).content ().readableBytes ();
+            }
+            if (msg instanceof ByteBuf) {
+                return ((ByteBuf) msg).readableBytes ();
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * 一个请求的响应的写入口
+     */
+    final class Slot {
+        private final long ordinal;
+
+        private Slot(long ordinal) {
+            this.ordinal = ordinal;
+        }
+
+        ChannelFuture write(Object msg) {
+            return ResponseSequencer.this.write (ordinal, msg, false);
+        }
+
+        ChannelFuture writeAndFlush(Object msg) {
+            return ResponseSequencer.this.write (ordinal, msg, true);
+        }
+
+        void flush() {
+            ResponseSequencer.this.flush ();
+        }
+
+        /**
+         * 前面还有响应没发完，这时写入的数据会排队
+         */
+        boolean isHeld() {
+            return ordinal > current;
+        }
+
+        long getOrdinal() {
+            return ordinal;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.connector.http;
+
+import com.example.websocket.WebSocketSession;
+import com.example.websocket.WebSocketUpgradeHandler;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.websocketx.*;
+import lombok.extern.slf4j.Slf4j;
+
+import java.security.Principal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * websocket连接的最后一个handler，放在{@link WebSocketServerProtocolHandler}和{@link WebSocketFrameAggregator}之后，
+ * 把完整的消息交给webapp的端点，同时作为端点看到的{@link WebSocketSession}
+ * <p>
+ * ping/pong由WebSocketServerProtocolHandler处理，close帧由这里处理，以便把code告诉端点
+ *
+ * @date 2022/3/6 11:00
+ */
+@Slf4j
+class WebSocketFrameHandler extends SimpleChannelInboundHandler<WebSocketFrame> implements WebSocketSession {
+    /**
+     * 发出close帧后等待客户端回复的时间
+     */
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    private final WebSocketUpgradeHandler upgradeHandler;
+    private final String requestURI;
+    private final String queryString;
+    private final Principal principal;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<> ();
+
+    private volatile Channel channel;
+    private boolean opened = false;
+    /**
+     * 已经发出或者收到了close帧
+     */
+    private volatile boolean closing = false;
+    /**
+     * 收到或者发出的close帧中的code，都没有时是1006
+     */
+    private volatile int closeCode = CLOSED_ABNORMALLY;
+    private volatile String closeReason = "";
+
+    WebSocketFrameHandler(WebSocketUpgradeHandler upgradeHandler, String requestURI, String queryString,
+                          Principal principal) {
+        this.upgradeHandler = upgradeHandler;
+        this.requestURI = requestURI;
+        this.queryString = queryString;
+        this.principal = principal;
+    }
+
+    /**
+     * [Package Private] 连接在切换之前就断开了
+     */
+    void abort() {
+        upgradeHandler.destroy ();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        channel = ctx.channel ();
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+            opened = true;
+            callback (ctx, () -> upgradeHandler.opened (this));
+        } else if (evt == KeepAliveHandler.DRAIN_EVENT) {
+            close (GOING_AWAY, "server shutting down");
+        } else {
+            super.userEventTriggered (ctx, evt);
+        }
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) {
+        if (frame instanceof TextWebSocketFrame) {
+            String text = ((TextWebSocketFrame) frame).text ();
+            callback (ctx, () -> upgradeHandler.getEndpoint ().onText (this, text));
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            byte[] bytes = ByteBufUtil.getBytes (frame.content ());
+            callback (ctx, () -> upgradeHandler.getEndpoint ().onBinary (this, bytes));
+        } else if (frame instanceof CloseWebSocketFrame) {
+            CloseWebSocketFrame close = (CloseWebSocketFrame) frame;
+            if (!closing) {
+                //客户端先发起的关闭
+                closing = true;
+                closeCode = close.statusCode () < 0 ? NORMAL_CLOSURE : close.statusCode ();
+                closeReason = close.reasonText ();
+                ctx.writeAndFlush (close.retainedDuplicate ()).addListener (ChannelFutureListener.CLOSE);
+            } else {
+                //我们发起的关闭，客户端回复了
+                ctx.close ();
+            }
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (opened) {
+            opened = false;
+            callback (ctx, () -> upgradeHandler.closed (this, closeCode, closeReason));
+        } else {
+            upgradeHandler.destroy ();
+        }
+        super.channelInactive (ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        log.debug ("websocket {} 出错", getId (), cause);
+        if (opened) {
+            try {
+                bindAndRun (() -> upgradeHandler.getEndpoint ().onError (this, cause));
+            } catch (RuntimeException e) {
+                log.warn ("websocket {} onError抛出异常", getId (), e);
+            }
+        }
+        close (UNEXPECTED_CONDITION, "");
+    }
+
+    /**
+     * 在eventloop上调用端点，端点抛出异常时关闭连接
+     */
+    private void callback(ChannelHandlerContext ctx, Runnable r) {
+        try {
+            bindAndRun (r);
+        } catch (RuntimeException e) {
+            exceptionCaught (ctx, e);
+        }
+    }
+
+    /**
+     * 端点是webapp的类，回调时绑定webapp的类加载器
+     */
+    private void bindAndRun(Runnable r) {
+        Thread thread = Thread.currentThread ();
+        ClassLoader old = thread.getContextClassLoader ();
+        ClassLoader loader = upgradeHandler.getClassLoader ();
+        if (loader != null) {
+            thread.setContextClassLoader (loader);
+        }
+        try {
+            r.run ();
+        } finally {
+            thread.setContextClassLoader (old);
+        }
+    }
+
+    @Override
+    public String getId() {
+        return channel == null ? null : channel.id ().asShortText ();
+    }
+
+    @Override
+    public String getRequestURI() {
+        return requestURI;
+    }
+
+    @Override
+    public String getQueryString() {
+        return queryString;
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return principal;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel != null && channel.isActive () && !closing;
+    }
+
+    @Override
+    public Future<Void> sendText(String message) {
+        return channel.writeAndFlush (new TextWebSocketFrame (message));
+    }
+
+    @Override
+    public Future<Void> sendBinary(byte[] message) {
+        return channel.writeAndFlush (new BinaryWebSocketFrame (Unpooled.wrappedBuffer (message)));
+    }
+
+    @Override
+    public void close() {
+        close (NORMAL_CLOSURE, "");
+    }
+
+    /**
+     * 发送close帧，等客户端回复close后关闭连接；已经关闭或者正在关闭时什么都不做
+     * <p>
+     * 状态只在eventloop上修改，其他线程调用时投递过去
+     */
+    @Override
+    public void close(int code, String reason) {
+        Channel ch = channel;
+        if (ch == null || !ch.isActive ()) {
+            return;
+        }
+        if (!ch.eventLoop ().inEventLoop ()) {
+            ch.eventLoop ().execute (() -> close (code, reason));
+            return;
+        }
+        if (closing) {
+            return;
+        }
+        closing = true;
+        closeCode = code;
+        closeReason = reason == null ? "" : reason;
+        ch.writeAndFlush (new CloseWebSocketFrame (code, closeReason)).addListener (future -> {
+            if (!future.isSuccess ()) {
+                ch.close ();
+            } else {
+                //客户端一直不回复close的话，由这里兜底
+                ch.eventLoop ().schedule ((Runnable) ch::close, CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocketSession{" +
+                "id=" + getId () +
+                ", requestURI='" + requestURI + '\'' +
+                '}';
+    }
+}
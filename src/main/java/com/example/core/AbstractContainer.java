@@ -56,6 +56,10 @@ public abstract class AbstractContainer extends LifecycleBase implements Contain
      * -1表示后台线程不会启动（根本不会start这个线程），单位秒
      */
     protected volatile int backgroundProcessorDelay = -1;
+    /**
+     * 是否统计pipeline中每个valve的耗时，子容器继承，见{@link StandardPipeline#setInstrumented(boolean)}
+     */
+    protected volatile boolean instrumented = false;
     /**
      * 停止线程的标志位
      */
@@ -79,6 +83,13 @@ public abstract class AbstractContainer extends LifecycleBase implements Contain
         return pipeline;
     }
 
+    /**
+     * server.xml中Engine、Host、Context下的Valve由digester通过这个方法加到pipeline中
+     */
+    public void addValve(Valve valve) {
+        getPipeline ().addValve (valve);
+    }
+
     @Override
     public int getBackgroundProcessorDelay() {
         return backgroundProcessorDelay;
@@ -89,6 +100,34 @@ public abstract class AbstractContainer extends LifecycleBase implements Contain
         backgroundProcessorDelay = delay;
     }
 
+    /**
+     * 自己或者任何一个父容器开启了就统计
+     */
+    public boolean isInstrumented() {
+        return instrumented || (parent instanceof AbstractContainer && ((AbstractContainer) parent).isInstrumented ());
+    }
+
+    /**
+     * 运行中修改时同时作用到所有子容器
+     */
+    public void setInstrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+        if (isRunning ()) {
+            applyInstrumented ();
+        }
+    }
+
+    private void applyInstrumented() {
+        if (pipeline instanceof StandardPipeline) {
+            ((StandardPipeline) pipeline).setInstrumented (isInstrumented ());
+        }
+        for (Container child : children.values ()) {
+            if (child instanceof AbstractContainer && child.isRunning ()) {
+                ((AbstractContainer) child).applyInstrumented ();
+            }
+        }
+    }
+
     @Override
     public String getName() {
 //        if (StringUtils.isEmpty (name)) {
@@ -159,10 +198,8 @@ public abstract class AbstractContainer extends LifecycleBase implements Contain
             return;
         }
 
-        Valve first = getPipeline ().getFirst ();
-        while (first != null) {
-            first.backgroundProcess ();
-            first = first.getNext ();
+        for (Valve valve : getPipeline ().getValves ()) {
+            valve.backgroundProcess ();
         }
 
         //默认触发这个，HostConfig类用到了这个回调，从而进行deploy webapps的检查
@@ -367,6 +404,9 @@ public abstract class AbstractContainer extends LifecycleBase implements Contain
         }
         running = true;
 
+        if (pipeline instanceof StandardPipeline) {
+            ((StandardPipeline) pipeline).setInstrumented (isInstrumented ());
+        }
         if (pipeline instanceof Lifecycle) {
             ((Lifecycle) pipeline).start ();
         }
@@ -1,6 +1,7 @@
 package com.example.core;
 
 import com.example.filter.FilterConfigImpl;
+import com.example.util.LatencyHistogram;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
@@ -35,6 +36,11 @@ public final class FilterChainImpl implements FilterChain {
     private int n = 0;
 
     private Servlet servlet;
+    /**
+     * 统计耗时时不为null，filter自身的耗时和servlet的耗时
+     */
+    private LatencyHistogram filterLatency;
+    private LatencyHistogram servletLatency;
 
     /**
      * 源码中有try catch是为了打印日志和触发监听器
@@ -44,13 +50,24 @@ public final class FilterChainImpl implements FilterChain {
     public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
         Objects.requireNonNull (servlet, "servlet == null");
 
+        if (pos == 0 && filterLatency != null) {
+            LatencyHistogram latency = filterLatency;
+            filterLatency = null;
+            TimingValve.time (latency, () -> doFilter (request, response));
+            return;
+        }
+
         if (pos < n) {
             FilterConfig config = chain[pos++];
             Filter filter = ((FilterConfigImpl) config).getFilter ();
             filter.doFilter (request, response, this);
         } else if (pos == n) {
             //到末尾了
-            servlet.service (request, response);
+            if (servletLatency == null) {
+                servlet.service (request, response);
+            } else {
+                TimingValve.time (servletLatency, () -> servlet.service (request, response));
+            }
             pos++;
         } else {
             throw new IllegalStateException ("filter chain pos err");
@@ -66,6 +83,14 @@ public final class FilterChainImpl implements FilterChain {
         this.servlet = servlet;
     }
 
+    /**
+     * 由wrapper valve在pipeline统计耗时时设置，只对下一次doFilter有效
+     */
+    public void setLatency(LatencyHistogram filterLatency, LatencyHistogram servletLatency) {
+        this.filterLatency = filterLatency;
+        this.servletLatency = servletLatency;
+    }
+
     public void addFilter(FilterConfig filterConfig) {
         Objects.requireNonNull (filterConfig);
 
@@ -89,6 +114,8 @@ public final class FilterChainImpl implements FilterChain {
         n = 0;
         Arrays.fill (chain, null);//避免内存泄漏
         servlet = null;
+        filterLatency = null;
+        servletLatency = null;
     }
 
 }
@@ -17,6 +17,9 @@ import com.example.session.Manager;
 import com.example.session.StandardManager;
 import com.example.util.URLEncoder;
 import com.example.valve.basic.StandardContextValve;
+import com.example.valve.basic.StandardHostValve;
+import com.example.websocket.WebSocketContainer;
+import com.example.websocket.WebSocketSession;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 
@@ -168,6 +171,10 @@ public final class StandardContext extends AbstractContainer implements Context
      * The request processing pause flag (while reloading occurs)
      */
     private volatile boolean paused = false;
+    /**
+     * websocket端点，每次启动重新创建，避免保留旧的类加载器加载的端点
+     */
+    private volatile WebSocketContainer webSocketContainer;
     /**
      * The reloadable flag for this web application.
      */
@@ -387,6 +394,11 @@ public final class StandardContext extends AbstractContainer implements Context
         } else {
             log.warn ("{} reqs hasn't sopped yet.", getInProgressAsyncCount ());
         }
+        //websocket连接不算在正在处理的请求中，直接通知客户端
+        if (webSocketContainer != null) {
+            webSocketContainer.closeAll (WebSocketSession.GOING_AWAY, "context stopping");
+            webSocketContainer = null;
+        }
 
         running = false;//后面就无法接受新的请求了
         ClassLoader bind = bind (null);
@@ -576,6 +588,8 @@ public final class StandardContext extends AbstractContainer implements Context
 
             getServletContext ().setAttribute (Globals.RESOURCES_ATTR, getResources ());
             getServletContext ().setAttribute (Globals.WEBAPP_VERSION, getWebappVersion ());
+            webSocketContainer = new WebSocketContainer ();
+            getServletContext ().setAttribute (Globals.WEBSOCKET_CONTAINER_ATTR, webSocketContainer);
 
             setParameters ();
 
@@ -1808,6 +1822,11 @@ public final class StandardContext extends AbstractContainer implements Context
         inProgressAsyncCount.decrementAndGet ();
     }
 
+    @Override
+    public WebSocketContainer getWebSocketContainer() {
+        return webSocketContainer;
+    }
+
     public long getInProgressAsyncCount() {
         return inProgressAsyncCount.get ();
     }
@@ -1831,16 +1850,14 @@ public final class StandardContext extends AbstractContainer implements Context
         this.originalDocBase = docBase;
     }
 
+    /**
+     * 重新加载时不等待，直接回复503；在等待的话会让stop一直等到unloadDelay超时
+     */
     @Override
     public void invoke(Request request, Response response) throws IOException, ServletException {
-        synchronized (pausedLock) {
-            while (paused) {
-                try {
-                    pausedLock.wait ();
-                } catch (InterruptedException ignored) {
-
-                }
-            }
+        if (paused) {
+            StandardHostValve.sendUnavailable (response);
+            return;
         }
 
         super.invoke (request, response);
@@ -9,19 +9,28 @@ import com.example.connector.Response;
 import com.example.life.Lifecycle;
 import com.example.life.LifecycleBase;
 import com.example.life.LifecycleException;
+import com.example.util.LatencyHistogram;
+import com.example.util.LatencyRegistry;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * 就是一个链表.<p>
+ * valve保存在一个不可变的数组快照中，basic在最后.<p>
  * 调用方法，getFirst.invoke,然后后面就会invoke了.<p>
  * 职责链模式.<p>
  * basic必须有一个，否则报错.<p>
- * 只能在stop的时候改动valve，其他情况会报错{@link LifecycleException}!
+ * 修改valve时复制出新的数组，从后往前重新串起next，然后整体替换快照，所以运行中也可以增删valve：
+ * 正在处理的请求沿着旧的next继续走完，之后的请求从新的快照开始；运行中添加的valve会先start，移除的valve之后再stop
+ * <p>
+ * 开启统计（instrumented）后，每个valve前面插入一个{@link TimingValve}记录valve自身的耗时，
+ * invoke记录整个容器的耗时，都登记到{@link LatencyRegistry}；关闭时链表和没有统计时完全一样，只多一次volatile读
  *
  * @date 2021/12/23 13:51
  */
@@ -33,11 +42,32 @@ public class StandardPipeline extends LifecycleBase implements Pipeline {
     /**
      * 尾部节点
      */
-    protected Valve basic;
+    protected volatile Valve basic;
     /**
-     * 第一个节点，没有头结点
+     * 所有的valve，basic在最后，只会整体替换，不会修改
      */
-    protected Valve first;
+    protected volatile Valve[] valves = EMPTY_VALVE_ARRAY;
+    /**
+     * 调用的入口，没有统计时就是valves[0]
+     */
+    private volatile Valve head;
+
+    /**
+     * 是否统计耗时
+     */
+    protected volatile boolean instrumented = false;
+    /**
+     * 容器的总耗时，没有统计时为null
+     */
+    private volatile LatencyHistogram containerLatency;
+    /**
+     * 每个valve自身的耗时，只在synchronized中修改
+     */
+    private final Map<Valve, LatencyHistogram> valveLatency = new IdentityHashMap<> ();
+    /**
+     * 不是valve的部分，例如wrapper的filter和servlet
+     */
+    private final Map<String, LatencyHistogram> namedLatency = new ConcurrentHashMap<> ();
 
     protected Container container;
 
@@ -63,21 +93,19 @@ public class StandardPipeline extends LifecycleBase implements Pipeline {
     public synchronized void start() throws LifecycleException {
         super.start ();
 
-        Valve n = first;
-        while (n != null) {
-            startValve (n);
-            n = n.getNext ();
+        for (Valve valve : valves) {
+            startValve (valve);
         }
+        syncRegistry ();
     }
 
     @Override
     public synchronized void stop() throws LifecycleException {
         super.stop ();
 
-        Valve n = first;
-        while (n != null) {
-            stopValve (n);
-            n = n.getNext ();
+        LatencyRegistry.unregister (this);
+        for (Valve valve : valves) {
+            stopValve (valve);
         }
     }
 
@@ -99,78 +127,194 @@ public class StandardPipeline extends LifecycleBase implements Pipeline {
 
     /**
      * 因为basic是链表末尾，所以必须先设置basic
+     * 已经有basic时替换掉，strict时不允许在有其他valve的情况下替换
      */
     @Override
-    public void setBasic(Valve valve) {
-        if (basic == valve) {
+    public synchronized void setBasic(Valve valve) {
+        Valve old = basic;
+        if (old == valve) {
             return;
         }
 
-        valve.setNext (null);//保证安全
-        this.basic = valve;
-        if (first == null || first.getNext () == null) {
-            first = basic;
+        Valve[] current = valves;
+        if (old != null && current.length > 1 && strict) {
+            throw new IllegalStateException ();
+        }
+        if (isRunning ()) {
+            startValve (valve);
+        }
+        Valve[] snapshot;
+        if (old == null) {
+            snapshot = Arrays.copyOf (current, current.length + 1);
         } else {
-            //basic在末尾
-            if (strict)
-                throw new IllegalStateException ();
+            snapshot = current.clone ();
+        }
+        snapshot[snapshot.length - 1] = valve;
+        this.basic = valve;
+        valveLatency.remove (old);
+        publish (snapshot);
+        syncRegistry ();
+        if (old != null && isRunning ()) {
+            stopValve (old);
         }
-//        startValve (valve);
-//        stopValve (valve);
     }
 
     /**
-     * add 不会start valve，因为
+     * 加在basic之前，运行中添加时会先start
      */
     @Override
-    public void addValve(Valve valve) {
-        if (basic == null || first == null) {
+    public synchronized void addValve(Valve valve) {
+        if (basic == null) {
             throw new IllegalStateException ("应该先添加basic valve");
         }
 
-        //找倒数
-        if (first == basic) {
-            first = valve;
-            valve.setNext (basic);
-        } else {
-            findBehindOf (basic).setNext (valve);
-            valve.setNext (basic);
+        if (isRunning ()) {
+            startValve (valve);
         }
-//        startValve (valve);
+        Valve[] current = valves;
+        Valve[] snapshot = new Valve[current.length + 1];
+        System.arraycopy (current, 0, snapshot, 0, current.length - 1);
+        snapshot[current.length - 1] = valve;
+        snapshot[current.length] = basic;
+        publish (snapshot);
+        syncRegistry ();
     }
 
     @Override
     public Valve[] getValves() {
-        Valve n = first;
-        List<Valve> list = new ArrayList<> ();
-        while (n != null) {
-            list.add (n);
-            n = n.getNext ();
-        }
-        return list.toArray (EMPTY_VALVE_ARRAY);
+        return valves.clone ();
     }
 
+    /**
+     * 运行中移除时，替换快照之后再stop
+     */
     @Override
-    public void removeValve(Valve valve) {
-        if (basic == null || first == null) {
+    public synchronized void removeValve(Valve valve) {
+        if (basic == null) {
             throw new IllegalStateException ("应该先添加basic valve");
         }
         if (valve == basic) {
             throw new IllegalStateException ("basic valve 无法移除");
         }
 
-        if (valve == first) {
-            first = first.getNext ();
+        Valve[] current = valves;
+        int index = -1;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == valve) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            log.warn ("remove一个不存在的valve");
+            return;
+        }
+        Valve[] snapshot = new Valve[current.length - 1];
+        System.arraycopy (current, 0, snapshot, 0, index);
+        System.arraycopy (current, index + 1, snapshot, index, current.length - index - 1);
+        valveLatency.remove (valve);
+        publish (snapshot);
+        syncRegistry ();
+        if (isRunning ()) {
+            stopValve (valve);
+        }
+    }
+
+    /**
+     * 从后往前设置next，这样任何时候从前面走到的valve，它的next都已经是新的了；
+     * 被移除的valve的next不变，正在经过它的请求可以继续走完
+     */
+    private void publish(Valve[] snapshot) {
+        Valve[] chain = snapshot;
+        if (instrumented) {
+            chain = new Valve[snapshot.length];
+            for (int i = 0; i < snapshot.length; i++) {
+                chain[i] = new TimingValve (snapshot[i], valveLatency.computeIfAbsent (snapshot[i], k -> new LatencyHistogram ()));
+            }
+        }
+        for (int i = snapshot.length - 1; i >= 0; i--) {
+            snapshot[i].setNext (i + 1 < snapshot.length ? chain[i + 1] : null);
+        }
+        valves = snapshot;
+        head = chain.length == 0 ? null : chain[0];
+    }
+
+    public boolean isInstrumented() {
+        return instrumented;
+    }
+
+    /**
+     * 运行中也可以开关，关闭时丢弃已经统计的数据
+     */
+    public synchronized void setInstrumented(boolean instrumented) {
+        if (this.instrumented == instrumented) {
+            return;
+        }
+
+        this.instrumented = instrumented;
+        if (instrumented) {
+            containerLatency = new LatencyHistogram ();
         } else {
-            Valve prev = findBehindOf (valve);
-            if (prev != null) {
-                prev.setNext (prev.getNext ().getNext ());
-            } else {
-                log.warn ("remove一个不存在的valve");
-                return;
+            containerLatency = null;
+            valveLatency.clear ();
+            namedLatency.clear ();
+            LatencyRegistry.unregister (this);
+        }
+        publish (valves);
+        syncRegistry ();
+    }
+
+    /**
+     * 给不是valve的部分用的直方图
+     *
+     * @return 没有统计时返回null
+     */
+    public LatencyHistogram getLatency(String name) {
+        if (!instrumented) {
+            return null;
+        }
+        LatencyHistogram histogram = namedLatency.get (name);
+        if (histogram != null) {
+            return histogram;
+        }
+        synchronized (this) {
+            if (!instrumented) {
+                return null;
+            }
+            histogram = namedLatency.computeIfAbsent (name, k -> new LatencyHistogram ());
+            syncRegistry ();
+            return histogram;
+        }
+    }
+
+    /**
+     * 运行中且统计时，重新登记所有直方图，顺序是容器、各个valve、其他部分
+     */
+    private synchronized void syncRegistry() {
+        LatencyHistogram total = containerLatency;
+        if (!isRunning () || total == null) {
+            return;
+        }
+
+        Map<String, LatencyHistogram> histograms = new LinkedHashMap<> ();
+        histograms.put ("total", total);
+        for (Valve valve : valves) {
+            LatencyHistogram histogram = valveLatency.get (valve);
+            if (histogram == null) {
+                continue;
+            }
+            String name = valve.getClass ().getSimpleName ();
+            if (name.isEmpty ()) {
+                name = valve.getClass ().getName ();
+            }
+            String unique = name;
+            for (int i = 2; histograms.containsKey (unique); i++) {
+                unique = name + "#" + i;
             }
+            histograms.put (unique, histogram);
         }
-//        stopValve (valve);
+        histograms.putAll (namedLatency);
+        LatencyRegistry.register (this, container == null ? "pipeline" : container.toString (), histograms);
     }
 
     protected void stopValve(Valve valve) {
@@ -201,51 +345,44 @@ public class StandardPipeline extends LifecycleBase implements Pipeline {
         }
     }
 
-    /**
-     * 查找链表前驱节点,如果没有节点那就返回null
-     * 如果为第一个节点，那需要自行判断
-     */
-    private Valve findBehindOf(Valve valve) {
-        if (valve == first) {
-            throw new IllegalArgumentException ();
-        }
-
-        Valve n = first;
-        while (n.getNext () != null && n.getNext () != valve) {
-            n = n.getNext ();
-        }
-
-        if (n.getNext () == null) {
-            return null;
-        } else {
-            return n;
-        }
-    }
-
 
     public Valve getFirst() {
         if (basic == null && strict) {
             throw new IllegalStateException ("未设置basic valve");
         }
 
-        return first;
+        return head;
     }
 
     @Override
     public String toString() {
         return "StandardPipeline{" +
                 "basic=" + basic +
-                ", first=" + first +
+                ", valves=" + valves.length +
                 ", container=" + container +
                 '}';
     }
 
+    /**
+     * 只读一次入口
+     */
     @Override
     public void invoke(Request request, Response response) throws IOException, ServletException {
-        if (getFirst () == null) {
+        Valve first = head;
+        if (first == null) {
             throw new IllegalStateException ("pipeline没有任何的valve");
         }
 
-        getFirst ().invoke (request, response);
+        LatencyHistogram latency = containerLatency;
+        if (latency == null) {
+            first.invoke (request, response);
+            return;
+        }
+        long start = System.nanoTime ();
+        try {
+            first.invoke (request, response);
+        } finally {
+            latency.record (System.nanoTime () - start);
+        }
     }
 }
@@ -10,6 +10,8 @@ import com.example.valve.basic.StandardWrapperValve;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.servlet.*;
+import javax.servlet.annotation.MultipartConfig;
+import javax.servlet.annotation.WebServlet;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Map;
@@ -59,6 +61,14 @@ public final class StandardWrapper extends AbstractContainer implements Wrapper,
      * The fully qualified servlet class name for this servlet.
      */
     private String servletClass = null;
+    /**
+     * 文件上传的配置，为null说明servlet不接受multipart请求
+     */
+    private volatile MultipartConfigElement multipartConfigElement = null;
+    /**
+     * 是否支持startAsync
+     */
+    private volatile boolean asyncSupported = false;
 
 
     public StandardWrapper() {
@@ -135,6 +145,33 @@ public final class StandardWrapper extends AbstractContainer implements Wrapper,
         return servletClass;
     }
 
+    @Override
+    public MultipartConfigElement getMultipartConfigElement() {
+        return multipartConfigElement;
+    }
+
+    @Override
+    public void setMultipartConfigElement(MultipartConfigElement multipartConfig) {
+        this.multipartConfigElement = multipartConfig;
+    }
+
+    @Override
+    public boolean isAsyncSupported() {
+        return asyncSupported;
+    }
+
+    @Override
+    public void setAsyncSupported(boolean asyncSupported) {
+        this.asyncSupported = asyncSupported;
+    }
+
+    /**
+     * 给digester用
+     */
+    public void setAsyncSupportedString(String value) {
+        setAsyncSupported (Boolean.parseBoolean (value.trim ()));
+    }
+
     @Override
     public void setServletClass(String servletClass) {
         String oldServletClass = this.servletClass;
@@ -199,6 +236,16 @@ public final class StandardWrapper extends AbstractContainer implements Wrapper,
             throw new ServletException ();
         }
 
+        //显式设置的优先
+        MultipartConfig multipartConfig = clazz.getAnnotation (MultipartConfig.class);
+        if (multipartConfig != null && multipartConfigElement == null) {
+            multipartConfigElement = new MultipartConfigElement (multipartConfig);
+        }
+        WebServlet webServlet = clazz.getAnnotation (WebServlet.class);
+        if (webServlet != null && webServlet.asyncSupported ()) {
+            asyncSupported = true;
+        }
+
         Servlet servlet;
         try {
             servlet = (Servlet) clazz.newInstance ();
@@ -0,0 +1,88 @@
+package com.example.core;
+
+import com.example.Valve;
+import com.example.connector.Request;
+import com.example.connector.Response;
+import com.example.util.LatencyHistogram;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+
+/**
+ * pipeline开启统计时，包在每个valve前面，记录这个valve自身的耗时：
+ * valve是环绕式的，调用的总时间减去它里面（后面的valve、子容器的pipeline、servlet）被统计到的时间，
+ * 剩下的就是它自己的时间
+ * <p>
+ * 被统计到的时间通过线程本地的计数器向外层传递，所以跨pipeline嵌套时也成立
+ *
+ * @date 2022/3/8 11:00
+ */
+final class TimingValve implements Valve {
+    /**
+     * 当前这一层里面已经统计过的纳秒数
+     */
+    private static final ThreadLocal<long[]> INNER_NANOS = ThreadLocal.withInitial (() -> new long[1]);
+
+    private final Valve valve;
+    private final LatencyHistogram histogram;
+
+    TimingValve(Valve valve, LatencyHistogram histogram) {
+        this.valve = valve;
+        this.histogram = histogram;
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        time (histogram, () -> valve.invoke (request, response));
+    }
+
+    /**
+     * 执行并记录自身耗时，不是valve的部分（例如servlet）也用这个参与统计
+     */
+    static void time(LatencyHistogram histogram, Timed timed) throws IOException, ServletException {
+        long[] inner = INNER_NANOS.get ();
+        long outer = inner[0];
+        inner[0] = 0;
+        long start = System.nanoTime ();
+        try {
+            timed.run ();
+        } finally {
+            long elapsed = System.nanoTime () - start;
+            histogram.record (elapsed - inner[0]);
+            inner[0] = outer + elapsed;
+        }
+    }
+
+    Valve getValve() {
+        return valve;
+    }
+
+    @Override
+    public Valve getNext() {
+        return valve.getNext ();
+    }
+
+    /**
+     * 和getNext一样作用在被包装的valve上：pipeline的getFirst可能返回这个包装，
+     * 通过它设置next和直接设置被包装的valve是一样的
+     */
+    @Override
+    public void setNext(Valve next) {
+        valve.setNext (next);
+    }
+
+    @Override
+    public void backgroundProcess() {
+        valve.backgroundProcess ();
+    }
+
+    @Override
+    public String toString() {
+        return "TimingValve{" + valve + '}';
+    }
+
+    @FunctionalInterface
+    interface Timed {
+        void run() throws IOException, ServletException;
+    }
+}
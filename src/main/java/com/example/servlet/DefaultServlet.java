@@ -100,6 +100,11 @@ public class DefaultServlet extends HttpServlet {
      * ？？？
      */
     protected int output = 2048;
+    /**
+     * 超过这个大小（字节）的文件交给connector用sendfile发送，小于等于0表示不使用
+     * 小文件走buffer更快
+     */
+    protected int sendfileSize = 48 * 1024;
     protected boolean setCacheControl = true;
     protected long maxAge = 60 * 30;//30分钟
     protected String cacheControlString = "max-age=" + maxAge;
@@ -134,6 +139,13 @@ public class DefaultServlet extends HttpServlet {
             output = Integer.parseInt (value);
         } catch (Throwable ignored) {
 
+        }
+        try {
+            value = getServletConfig ().getInitParameter ("sendfileSize");
+            //单位是KB
+            sendfileSize = Integer.parseInt (value) * 1024;
+        } catch (Throwable ignored) {
+
         }
 
         if (input < 256)
@@ -440,7 +452,7 @@ public class DefaultServlet extends HttpServlet {
                         String.format ("bytes %d-%d/%d", range.start, range.end, resourceInfo.length));
                 response.setContentLengthLong (range.end - range.start + 1);
 
-                if (content) {
+                if (content && !checkSendfile (request, resourceInfo, range.start, range.end + 1)) {
                     try {
                         response.setBufferSize (output);
                     } catch (IllegalStateException ignored) {
@@ -475,6 +487,9 @@ public class DefaultServlet extends HttpServlet {
 
             if (!resourceInfo.collection) {
                 response.setContentLengthLong (resourceInfo.length);
+                if (checkSendfile (request, resourceInfo, 0, resourceInfo.length)) {
+                    return;
+                }
             }
 
             try {
@@ -524,6 +539,32 @@ public class DefaultServlet extends HttpServlet {
         }
     }
 
+    /**
+     * 判断能否交给connector用sendfile发送，可以的话设置好相应的request attribute
+     * 文件不经过servlet的outputStream，由内核直接拷贝到socket
+     *
+     * @param start 开始的偏移
+     * @param end   结束的偏移（不包括）
+     */
+    protected boolean checkSendfile(HttpServletRequest request, ResourceInfo resourceInfo,
+                                    long start, long end) {
+        if (sendfileSize <= 0 || resourceInfo.file == null || end - start < sendfileSize ||
+                !Boolean.TRUE.equals (request.getAttribute (Globals.SENDFILE_SUPPORTED_ATTR))) {
+            return false;
+        }
+
+        String filename;
+        try {
+            filename = resourceInfo.file.getFile ().getCanonicalPath ();
+        } catch (IOException e) {
+            return false;
+        }
+        request.setAttribute (Globals.SENDFILE_FILENAME_ATTR, filename);
+        request.setAttribute (Globals.SENDFILE_FILE_START_ATTR, start);
+        request.setAttribute (Globals.SENDFILE_FILE_END_ATTR, end);
+        return true;
+    }
+
     protected String getETag(ResourceInfo resourceInfo) {
         if (!StringUtils.isEmpty (resourceInfo.strongETag)) {
             return resourceInfo.strongETag;
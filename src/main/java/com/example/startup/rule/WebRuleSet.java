@@ -222,6 +222,8 @@ public class WebRuleSet extends RuleSetBase {
 
         digester.addCallMethod(prefix + "web-app/servlet/load-on-startup",
                                "setLoadOnStartupString", 0);
+        digester.addCallMethod(prefix + "web-app/servlet/async-supported",
+                               "setAsyncSupportedString", 0);
         digester.addCallMethod(prefix + "web-app/servlet/run-as/role-name",
                                "setRunAs", 0);
 
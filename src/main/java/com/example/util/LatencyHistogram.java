@@ -0,0 +1,146 @@
+package com.example.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的延迟直方图，record只有几次原子操作，可以在请求线程上直接调用
+ * <p>
+ * 以微秒为单位分桶：小于8微秒每微秒一个桶，之后每个2的幂区间再分成8个桶，
+ * 所以分位数的相对误差不超过12.5%，最大约12天，超过的都算在最后一个桶里
+ * <p>
+ * 读取时没有加锁，和并发的record之间不是严格一致的快照，对监控来说足够了
+ *
+ * @date 2022/3/8 10:20
+ */
+public final class LatencyHistogram implements LatencyHistogramMBean {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray (BUCKETS);
+    private final LongAdder totalNanos = new LongAdder ();
+    private final AtomicLong maxNanos = new AtomicLong ();
+
+    /**
+     * @param nanos 纳秒，小于0的按0算
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet (indexOf (nanos / 1000));
+        totalNanos.add (nanos);
+        long max;
+        while (nanos > (max = maxNanos.get ()) && !maxNanos.compareAndSet (max, nanos)) {
+            //其他线程更新了max，重新比较
+        }
+    }
+
+    static int indexOf(long micros) {
+        if (micros < SUB_COUNT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros (micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        return ((exponent - SUB_BITS + 1) << SUB_BITS) | (int) ((micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * 桶的上界，微秒
+     */
+    static long upperBoundOf(int index) {
+        if (index < SUB_COUNT) {
+            return index + 1;
+        }
+        int shift = (index >>> SUB_BITS) - 1;
+        long lower = (long) (SUB_COUNT | (index & (SUB_COUNT - 1))) << shift;
+        return lower + (1L << shift);
+    }
+
+    @Override
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += buckets.get (i);
+        }
+        return count;
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long count = getCount ();
+        return count == 0 ? 0 : totalNanos.sum () / (count * 1_000_000.0);
+    }
+
+    /**
+     * @param quantile 0到1之间，例如0.99
+     * @return 毫秒，取所在桶的上界，但不超过最大值
+     */
+    public double percentileMillis(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get (i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max (1, (long) Math.ceil (quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min (upperBoundOf (i) / 1000.0, getMaxMillis ());
+            }
+        }
+        return getMaxMillis ();
+    }
+
+    @Override
+    public double getP50Millis() {
+        return percentileMillis (0.5);
+    }
+
+    @Override
+    public double getP90Millis() {
+        return percentileMillis (0.9);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return percentileMillis (0.99);
+    }
+
+    @Override
+    public double getP999Millis() {
+        return percentileMillis (0.999);
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxNanos.get () / 1_000_000.0;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set (i, 0);
+        }
+        totalNanos.reset ();
+        maxNanos.set (0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format ("count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f",
+                getCount (), getMeanMillis (), getP50Millis (), getP90Millis (), getP99Millis (),
+                getP999Millis (), getMaxMillis ());
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.util;
+
+/**
+ * {@link LatencyHistogram}的jmx接口，时间单位都是毫秒
+ *
+ * @date 2022/3/8 10:20
+ */
+public interface LatencyHistogramMBean {
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+
+    void reset();
+}
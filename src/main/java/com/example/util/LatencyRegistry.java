@@ -0,0 +1,121 @@
+package com.example.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 所有{@link LatencyHistogram}的全局登记处，同时注册到jmx，
+ * ObjectName为{@code com.example:type=Latency,container="...",name="..."}
+ * <p>
+ * 按owner（例如pipeline）批量登记和注销
+ *
+ * @date 2022/3/8 10:40
+ */
+@Slf4j
+public final class LatencyRegistry {
+    public static final String DOMAIN = "com.example";
+
+    private static final Map<Object, Map<String, Entry>> owners = new ConcurrentHashMap<> ();
+
+    private LatencyRegistry() {
+    }
+
+    /**
+     * 替换掉owner之前登记的所有直方图
+     *
+     * @param histograms key是名字，按迭代顺序展示
+     */
+    public static synchronized void register(Object owner, String container, Map<String, LatencyHistogram> histograms) {
+        unregister (owner);
+        Map<String, Entry> entries = new LinkedHashMap<> ();
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet ()) {
+            Entry entry = new Entry (container, e.getKey (), e.getValue ());
+            registerMBean (entry);
+            entries.put (e.getKey (), entry);
+        }
+        owners.put (owner, entries);
+    }
+
+    public static synchronized void unregister(Object owner) {
+        Map<String, Entry> entries = owners.remove (owner);
+        if (entries == null) {
+            return;
+        }
+        for (Entry entry : entries.values ()) {
+            unregisterMBean (entry);
+        }
+    }
+
+    /**
+     * @return 按container排序，key是container，value的key是名字，保持登记时的顺序
+     */
+    public static Map<String, Map<String, LatencyHistogram>> snapshot() {
+        Map<String, Map<String, LatencyHistogram>> result = new TreeMap<> ();
+        for (Map<String, Entry> entries : owners.values ()) {
+            for (Entry entry : entries.values ()) {
+                result.computeIfAbsent (entry.container, k -> new LinkedHashMap<> ()).put (entry.name, entry.histogram);
+            }
+        }
+        return result;
+    }
+
+    public static void resetAll() {
+        for (Map<String, Entry> entries : owners.values ()) {
+            for (Entry entry : entries.values ()) {
+                entry.histogram.reset ();
+            }
+        }
+    }
+
+    private static void registerMBean(Entry entry) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+            if (!server.isRegistered (entry.objectName)) {
+                server.registerMBean (entry.histogram, entry.objectName);
+            }
+        } catch (Exception e) {
+            log.warn ("注册MBean {} 失败", entry.objectName, e);
+        }
+    }
+
+    private static void unregisterMBean(Entry entry) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+            if (server.isRegistered (entry.objectName)) {
+                server.unregisterMBean (entry.objectName);
+            }
+        } catch (Exception e) {
+            log.warn ("注销MBean {} 失败", entry.objectName, e);
+        }
+    }
+
+    private static final class Entry {
+        private final String container;
+        private final String name;
+        private final LatencyHistogram histogram;
+        private final ObjectName objectName;
+
+        Entry(String container, String name, LatencyHistogram histogram) {
+            this.container = container;
+            this.name = name;
+            this.histogram = histogram;
+            this.objectName = objectName (container, name);
+        }
+
+        private static ObjectName objectName(String container, String name) {
+            try {
+                return new ObjectName (DOMAIN + ":type=Latency,container=" + ObjectName.quote (container)
+                        + ",name=" + ObjectName.quote (name));
+            } catch (Exception e) {
+                throw new IllegalArgumentException (container + " " + name, e);
+            }
+        }
+    }
+}
@@ -21,7 +21,10 @@ public abstract class AbstractValve
 
     protected static final String name = "AbstractValve";
 
-    protected Valve next;
+    /**
+     * pipeline运行中可能被替换，所以是volatile
+     */
+    protected volatile Valve next;
 
     protected Container container;
 
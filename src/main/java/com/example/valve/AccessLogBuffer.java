@@ -0,0 +1,102 @@
+package com.example.valve;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * 多生产者单消费者的有界环形队列，给{@link AccessLogValve}用
+ * <p>
+ * 生产者（处理请求的线程）CAS抢占一个位置后再写入，不加锁、不等待，满了就丢弃并计数；
+ * 消费者（后台写线程）只有一个，按顺序取出，遇到已经抢占但还没写入的位置就停下，下次再取
+ *
+ * @date 2022/3/5 9:40
+ */
+class AccessLogBuffer {
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+    /**
+     * 下一个要抢占的位置，只增不减
+     */
+    private final AtomicLong tail = new AtomicLong ();
+    /**
+     * 下一个要取出的位置，只由消费者修改
+     */
+    private volatile long head = 0;
+    private final AtomicLong dropped = new AtomicLong ();
+
+    /**
+     * @param capacity 会向上取整到2的幂
+     */
+    AccessLogBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<> (size);
+        mask = size - 1;
+    }
+
+    /**
+     * 满了返回false，不阻塞
+     */
+    boolean offer(String entry) {
+        while (true) {
+            long t = tail.get ();
+            if (t - head >= slots.length ()) {
+                dropped.incrementAndGet ();
+                return false;
+            }
+            if (tail.compareAndSet (t, t + 1)) {
+                slots.lazySet ((int) (t & mask), entry);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 只能由消费者线程调用
+     *
+     * @return 取出的个数
+     */
+    int drain(Consumer<String> consumer, int max) {
+        long h = head;
+        int n = 0;
+        while (n < max) {
+            int index = (int) (h & mask);
+            String entry = slots.get (index);
+            if (entry == null) {
+                break;
+            }
+            slots.lazySet (index, null);
+            consumer.accept (entry);
+            h++;
+            n++;
+        }
+        //位置腾出来后才让生产者看到
+        head = h;
+        return n;
+    }
+
+    boolean isEmpty() {
+        return tail.get () == head;
+    }
+
+    int capacity() {
+        return slots.length ();
+    }
+
+    /**
+     * 因为满了被丢弃的条数
+     */
+    long getDropped() {
+        return dropped.get ();
+    }
+
+    /**
+     * 写入失败等情况下由消费者补记丢弃数
+     */
+    void addDropped(long n) {
+        dropped.addAndGet (n);
+    }
+}
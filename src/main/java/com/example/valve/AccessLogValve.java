@@ -0,0 +1,564 @@
+package com.example.valve;
+
+import com.example.Globals;
+import com.example.connector.Request;
+import com.example.connector.Response;
+import com.example.life.LifecycleException;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 访问日志，格式和tomcat的AccessLogValve相同
+ * <p>
+ * 请求线程只负责按pattern生成一行日志并放入{@link AccessLogBuffer}，不做任何io；
+ * 后台线程批量取出写入文件，按日期和大小滚动。磁盘慢导致队列满时直接丢弃并计数，不阻塞请求线程
+ * <p>
+ * 在server.xml中配置在Engine、Host或者Context下：
+ * {@code <Valve className="com.example.valve.AccessLogValve" directory="logs" pattern="common"/>}
+ * <p>
+ * pattern支持：
+ * %a 远程ip，%A 本地ip，%b 发送的body字节数（0时为-），%B 发送的body字节数，%h 远程主机，
+ * %H 协议，%l 总是-，%m 方法，%p 本地端口，%q query string，%r 请求行，%s 状态码，%S session id，
+ * %t 时间，%u 远程用户，%U 请求uri，%v 服务器名，%D 处理时间毫秒，%T 处理时间秒，%I 线程名，
+ * %{xxx}i 请求header，%{xxx}o 响应header，%{xxx}c cookie，%{xxx}r 请求attribute
+ *
+ * @date 2022/3/5 10:12
+ */
+@Slf4j
+public class AccessLogValve extends AbstractValve {
+    protected static final String name = "AccessLogValve";
+
+    private static final String COMMON_PATTERN = "%h %l %u %t \"%r\" %s %b";
+    private static final String COMBINED_PATTERN = COMMON_PATTERN + " \"%{Referer}i\" \"%{User-Agent}i\"";
+    private static final DateTimeFormatter TIME_FORMATTER =
+            DateTimeFormatter.ofPattern ("'['dd/MMM/yyyy:HH:mm:ss Z']'", Locale.US);
+    private static final String LINE_SEPARATOR = System.lineSeparator ();
+
+    /**
+     * 相对路径时相对于catalina.base
+     */
+    private String directory = "logs";
+    private String prefix = "access_log";
+    private String suffix = ".txt";
+    private String pattern = COMMON_PATTERN;
+    /**
+     * 是否按日期滚动，文件名为prefix + 日期 + suffix
+     */
+    private boolean rotatable = true;
+    private String fileDateFormat = ".yyyy-MM-dd";
+    /**
+     * 单个文件超过这个大小就换一个新文件，字节，小于等于0表示不限制
+     */
+    private long maxFileSize = 0;
+    /**
+     * 队列大小，会向上取整到2的幂
+     */
+    private int bufferSize = 16384;
+    /**
+     * 队列空的时候写线程等待的时间，毫秒
+     */
+    private int flushInterval = 200;
+    private boolean enabled = true;
+
+    private Element[] elements;
+    private DateTimeFormatter fileDateFormatter;
+    private volatile AccessLogBuffer buffer;
+    private Thread writerThread;
+    private volatile boolean writing = false;
+    private volatile CachedTime cachedTime = new CachedTime (0, "");
+
+    /**
+     * 只由写线程访问
+     */
+    private OutputStream out;
+    private String currentDate;
+    private int currentIndex;
+    private long currentSize;
+    private volatile long written;
+    private long reportedDropped;
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        AccessLogBuffer buffer = this.buffer;
+        if (!enabled || buffer == null ||
+                !(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+            getNext ().invoke (request, response);
+            return;
+        }
+
+        long time = System.currentTimeMillis ();
+        long start = System.nanoTime ();
+        try {
+            getNext ().invoke (request, response);
+        } finally {
+            //request和response处理完会被复用，所以必须在这里生成日志
+            StringBuilder sb = new StringBuilder (128);
+            long elapsed = System.nanoTime () - start;
+            for (Element element : elements) {
+                element.append (sb, (HttpServletRequest) request, (HttpServletResponse) response, time, elapsed);
+            }
+            buffer.offer (sb.toString ());
+        }
+    }
+
+    @Override
+    public synchronized void start() throws LifecycleException {
+        super.start ();
+
+        elements = createElements (pattern);
+        fileDateFormatter = DateTimeFormatter.ofPattern (fileDateFormat).withZone (ZoneId.systemDefault ());
+        buffer = new AccessLogBuffer (bufferSize);
+        writing = true;
+        writerThread = new Thread (this::writeLoop, "AccessLogWriter-" +
+                (container == null ? "" : container.getName ()));
+        writerThread.setDaemon (true);
+        writerThread.start ();
+    }
+
+    @Override
+    public synchronized void stop() throws LifecycleException {
+        super.stop ();
+
+        writing = false;
+        if (writerThread != null) {
+            LockSupport.unpark (writerThread);
+            try {
+                writerThread.join (TimeUnit.SECONDS.toMillis (5));
+            } catch (InterruptedException e) {
+                Thread.currentThread ().interrupt ();
+            }
+            writerThread = null;
+        }
+        buffer = null;
+    }
+
+    /**
+     * 写线程：批量取出日志写入文件，队列空时等待flushInterval
+     */
+    private void writeLoop() {
+        AccessLogBuffer buffer = this.buffer;
+        StringBuilder batch = new StringBuilder (8192);
+        int max = buffer.capacity ();
+        while (writing || !buffer.isEmpty ()) {
+            batch.setLength (0);
+            int n = buffer.drain (entry -> batch.append (entry).append (LINE_SEPARATOR), max);
+            if (n > 0) {
+                write (buffer, batch, n);
+            } else if (writing) {
+                LockSupport.parkNanos (TimeUnit.MILLISECONDS.toNanos (flushInterval));
+            } else {
+                //已经停止，但还有已抢占没写入的位置
+                Thread.yield ();
+            }
+
+            long dropped = buffer.getDropped ();
+            if (dropped != reportedDropped) {
+                log.warn ("{} 访问日志队列已满，累计丢弃{}条", container, dropped);
+                reportedDropped = dropped;
+            }
+        }
+        close ();
+    }
+
+    private void write(AccessLogBuffer buffer, StringBuilder batch, int n) {
+        byte[] bytes = batch.toString ().getBytes (StandardCharsets.UTF_8);
+        try {
+            rotate ();
+            out.write (bytes);
+            out.flush ();
+            currentSize += bytes.length;
+            written += n;
+        } catch (IOException e) {
+            log.error ("{} 写访问日志失败", container, e);
+            buffer.addDropped (n);
+            //下次重新打开
+            close ();
+        }
+    }
+
+    /**
+     * 日期变化或者文件超过maxFileSize时换一个新文件
+     */
+    private void rotate() throws IOException {
+        String date = rotatable ? fileDateFormatter.format (Instant.now ()) : "";
+        if (!date.equals (currentDate)) {
+            close ();
+            currentIndex = 0;
+        }
+        if (out != null && maxFileSize > 0 && currentSize >= maxFileSize) {
+            close ();
+            currentIndex++;
+        }
+        if (out != null) {
+            return;
+        }
+
+        currentDate = date;
+        File file = getLogFile (date, currentIndex);
+        //重启后接着写，已经满了的话跳过
+        while (maxFileSize > 0 && file.length () >= maxFileSize) {
+            file = getLogFile (date, ++currentIndex);
+        }
+        File dir = file.getParentFile ();
+        if (!dir.exists () && !dir.mkdirs ()) {
+            throw new IOException ("无法创建访问日志目录 " + dir);
+        }
+        out = new FileOutputStream (file, true);
+        currentSize = file.length ();
+        log.debug ("{} 访问日志写入 {}", container, file);
+    }
+
+    private File getLogFile(String date, int index) {
+        File dir = new File (directory);
+        if (!dir.isAbsolute ()) {
+            dir = new File (System.getProperty ("catalina.base", System.getProperty ("user.dir")), directory);
+        }
+        String name = prefix + date + (index > 0 ? "." + index : "") + suffix;
+        return new File (dir, name);
+    }
+
+    private void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close ();
+        } catch (IOException e) {
+            log.warn ("{} 关闭访问日志失败", container, e);
+        }
+        out = null;
+    }
+
+    /**
+     * 把pattern解析为一系列元素，请求处理完后依次输出
+     */
+    private Element[] createElements(String pattern) {
+        if ("common".equals (pattern)) {
+            pattern = COMMON_PATTERN;
+        } else if ("combined".equals (pattern)) {
+            pattern = COMBINED_PATTERN;
+        }
+
+        List<Element> list = new ArrayList<> ();
+        StringBuilder literal = new StringBuilder ();
+        int length = pattern.length ();
+        for (int i = 0; i < length; i++) {
+            char c = pattern.charAt (i);
+            if (c != '%' || i + 1 >= length) {
+                literal.append (c);
+                continue;
+            }
+
+            Element element;
+            char next = pattern.charAt (++i);
+            if (next == '{') {
+                int end = pattern.indexOf ('}', i);
+                if (end < 0 || end + 1 >= length) {
+                    literal.append (pattern, i - 1, length);
+                    break;
+                }
+                element = createHeaderElement (pattern.substring (i + 1, end), pattern.charAt (end + 1));
+                if (element == null) {
+                    literal.append (pattern, i - 1, end + 2);
+                }
+                i = end + 1;
+            } else {
+                element = createElement (next);
+                if (element == null) {
+                    literal.append ('%').append (next);
+                }
+            }
+
+            if (element != null) {
+                if (literal.length () > 0) {
+                    String s = literal.toString ();
+                    list.add ((sb, req, resp, time, elapsed) -> sb.append (s));
+                    literal.setLength (0);
+                }
+                list.add (element);
+            }
+        }
+        if (literal.length () > 0) {
+            String s = literal.toString ();
+            list.add ((sb, req, resp, time, elapsed) -> sb.append (s));
+        }
+        return list.toArray (new Element[0]);
+    }
+
+    private Element createElement(char c) {
+        switch (c) {
+            case 'a':
+            case 'h':
+                return (sb, req, resp, time, elapsed) -> appendValue (sb, req.getRemoteAddr ());
+            case 'A':
+                return (sb, req, resp, time, elapsed) -> appendValue (sb, req.getLocalAddr ());
+            case 'b':
+                return (sb, req, resp, time, elapsed) -> {
+                    long bytes = bytesSent (req, resp);
+                    if (bytes > 0) {
+                        sb.append (bytes);
+                    } else {
+                        sb.append ('-');
+                    }
+                };
+            case 'B':
+                return (sb, req, resp, time, elapsed) -> sb.append (bytesSent (req, resp));
+            case 'H':
+                return (sb, req, resp, time, elapsed) -> appendValue (sb, req.getProtocol ());
+            case 'l':
+                return (sb, req, resp, time, elapsed) -> sb.append ('-');
+            case 'm':
+                return (sb, req, resp, time, elapsed) -> appendValue (sb, req.getMethod ());
+            case 'p':
+                return (sb, req, resp, time, elapsed) -> sb.append (req.getLocalPort ());
+            case 'q':
+                return (sb, req, resp, time, elapsed) -> {
+                    String query = req.getQueryString ();
+                    if (query != null) {
+                        sb.append ('?').append (query);
+                    }
+                };
+            case 'r':
+                return (sb, req, resp, time, elapsed) -> {
+                    sb.append (req.getMethod ()).append (' ').append (req.getRequestURI ());
+                    String query = req.getQueryString ();
+                    if (query != null) {
+                        sb.append ('?').append (query);
+                    }
+                    sb.append (' ').append (req.getProtocol ());
+                };
+            case 's':
+                return (sb, req, resp, time, elapsed) -> sb.append (resp.getStatus ());
+            case 'S':
+                return (sb, req, resp, time, elapsed) -> {
+                    HttpSession session = req.getSession (false);
+                    appendValue (sb, session == null ? null : session.getId ());
+                };
+            case 't':
+                return (sb, req, resp, time, elapsed) -> sb.append (formatTime (time));
+            case 'u':
+                return (sb, req, resp, time, elapsed) -> appendValue (sb, req.getRemoteUser ());
+            case 'U':
+                return (sb, req, resp, time, elapsed) -> appendValue (sb, req.getRequestURI ());
+            case 'v':
+                return (sb, req, resp, time, elapsed) -> appendValue (sb, req.getServerName ());
+            case 'D':
+                return (sb, req, resp, time, elapsed) -> sb.append (TimeUnit.NANOSECONDS.toMillis (elapsed));
+            case 'T':
+                return (sb, req, resp, time, elapsed) -> sb.append (String.format ("%.3f", elapsed / 1e9));
+            case 'I':
+                return (sb, req, resp, time, elapsed) -> sb.append (Thread.currentThread ().getName ());
+            default:
+                return null;
+        }
+    }
+
+    private Element createHeaderElement(String header, char type) {
+        switch (type) {
+            case 'i':
+                return (sb, req, resp, time, elapsed) -> appendValue (sb, req.getHeader (header));
+            case 'o':
+                return (sb, req, resp, time, elapsed) -> appendValue (sb, resp.getHeader (header));
+            case 'c':
+                return (sb, req, resp, time, elapsed) -> {
+                    String value = null;
+                    Cookie[] cookies = req.getCookies ();
+                    if (cookies != null) {
+                        for (Cookie cookie : cookies) {
+                            if (header.equals (cookie.getName ())) {
+                                value = cookie.getValue ();
+                                break;
+                            }
+                        }
+                    }
+                    appendValue (sb, value);
+                };
+            case 'r':
+                return (sb, req, resp, time, elapsed) -> {
+                    Object value = req.getAttribute (header);
+                    appendValue (sb, value == null ? null : value.toString ());
+                };
+            default:
+                return null;
+        }
+    }
+
+    private static void appendValue(StringBuilder sb, String value) {
+        if (value == null || value.isEmpty ()) {
+            sb.append ('-');
+        } else {
+            sb.append (value);
+        }
+    }
+
+    /**
+     * sendfile的body由connector直接发送，从attribute中计算
+     */
+    private static long bytesSent(HttpServletRequest req, HttpServletResponse resp) {
+        if (req.getAttribute (Globals.SENDFILE_FILENAME_ATTR) != null) {
+            Long start = (Long) req.getAttribute (Globals.SENDFILE_FILE_START_ATTR);
+            Long end = (Long) req.getAttribute (Globals.SENDFILE_FILE_END_ATTR);
+            if (end != null) {
+                return end - (start == null ? 0 : start);
+            }
+        }
+        return ((Response) resp).getContentCount ();
+    }
+
+    /**
+     * 同一秒内的时间只格式化一次
+     */
+    private String formatTime(long time) {
+        long second = time / 1000;
+        CachedTime cached = cachedTime;
+        if (cached.second != second) {
+            cached = new CachedTime (second, TIME_FORMATTER.format (
+                    Instant.ofEpochSecond (second).atZone (ZoneId.systemDefault ())));
+            cachedTime = cached;
+        }
+        return cached.value;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public void setSuffix(String suffix) {
+        this.suffix = suffix;
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * 可以是common、combined或者自定义的格式，下次start时生效
+     */
+    public void setPattern(String pattern) {
+        this.pattern = pattern == null ? "" : pattern;
+    }
+
+    public boolean isRotatable() {
+        return rotatable;
+    }
+
+    public void setRotatable(boolean rotatable) {
+        this.rotatable = rotatable;
+    }
+
+    public String getFileDateFormat() {
+        return fileDateFormat;
+    }
+
+    public void setFileDateFormat(String fileDateFormat) {
+        this.fileDateFormat = fileDateFormat;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(int flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * 因为队列满或者写入失败而丢弃的日志条数
+     */
+    public long getDropped() {
+        AccessLogBuffer buffer = this.buffer;
+        return buffer == null ? 0 : buffer.getDropped ();
+    }
+
+    /**
+     * 已经写入文件的日志条数
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    @Override
+    public String toString() {
+        return name + "{" +
+                "container=" + container +
+                ", pattern=" + pattern +
+                '}';
+    }
+
+    /**
+     * 日志中的一个元素
+     */
+    @FunctionalInterface
+    private interface Element {
+        void append(StringBuilder sb, HttpServletRequest request, HttpServletResponse response,
+                    long time, long elapsed);
+    }
+
+    private static final class CachedTime {
+        final long second;
+        final String value;
+
+        CachedTime(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,778 @@
+package com.example.valve;
+
+import com.example.Context;
+import com.example.connector.HttpRequest;
+import com.example.connector.HttpResponse;
+import com.example.connector.Request;
+import com.example.connector.Response;
+import com.example.life.LifecycleException;
+import com.example.util.MD5Encoder;
+import io.netty.handler.codec.DateFormatter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存完整的GET响应，下次相同的请求直接从缓存回复，不再执行servlet
+ * <p>
+ * key由方法、uri、query和响应的Vary指定的请求头组成；按响应的Cache-Control（s-maxage、max-age、no-store、private、no-cache）
+ * 和Expires决定能否缓存以及新鲜期，没有指定时使用defaultMaxAge
+ * <p>
+ * 内存中是按字节数限制大小的LRU，被淘汰的响应溢出到磁盘（maxDiskSize大于0时），磁盘也按LRU限制大小，
+ * 默认放在context的工作目录下
+ * <p>
+ * 客户端带If-None-Match或If-Modified-Since且和缓存一致时回复304；缓存过期但有ETag或Last-Modified时，
+ * 带上条件头交给后面的valve，回复304就继续使用缓存
+ * <p>
+ * POST等不安全的方法成功后，删除这个uri的缓存
+ * <p>
+ * 在server.xml中配置在Host或者Context下：
+ * {@code <Valve className="com.example.valve.CacheValve" maxMemorySize="16777216" maxDiskSize="268435456"/>}
+ *
+ * @date 2022/3/9 11:00
+ */
+@Slf4j
+public class CacheValve extends AbstractValve {
+    protected static final String name = "CacheValve";
+
+    private static final String FILE_EXT = ".cache";
+    private static final Set<Integer> CACHEABLE_STATUS = new HashSet<> (Arrays.asList (
+            200, 203, 204, 300, 301, 404, 405, 410, 414, 501));
+    /**
+     * 不保存的header，由connector重新生成，或者和某一次请求相关
+     */
+    private static final Set<String> EXCLUDED_HEADERS = new HashSet<> (Arrays.asList (
+            "date", "age", "connection", "keep-alive", "transfer-encoding", "set-cookie", "content-length"));
+
+    /**
+     * 内存中缓存的总字节数
+     */
+    private long maxMemorySize = 16 * 1024 * 1024;
+    /**
+     * 磁盘上缓存的总字节数，小于等于0表示不使用磁盘
+     */
+    private long maxDiskSize = 0;
+    /**
+     * 相对路径时，在context中为context的工作目录下，否则为catalina.base下
+     */
+    private String diskDirectory = "cache";
+    /**
+     * 单个响应body的上限，超过的不缓存
+     */
+    private int maxObjectSize = 1024 * 1024;
+    /**
+     * 响应没有指定新鲜期时使用，秒，0表示这种响应只能在有校验器时缓存（每次都重新验证）
+     */
+    private int defaultMaxAge = 0;
+
+    /**
+     * key是方法和uri，value是这个uri的Vary和已经缓存的key
+     */
+    private final Map<String, Variants> variants = new ConcurrentHashMap<> ();
+    private final MemoryTier memory = new MemoryTier ();
+    private volatile DiskTier disk;
+
+    private final AtomicLong hits = new AtomicLong ();
+    private final AtomicLong misses = new AtomicLong ();
+    private final AtomicLong revalidated = new AtomicLong ();
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)
+                || !(response instanceof HttpResponse)) {
+            getNext ().invoke (request, response);
+            return;
+        }
+
+        HttpServletRequest req = (HttpServletRequest) request;
+        HttpServletResponse resp = (HttpServletResponse) response;
+        String method = req.getMethod ();
+        boolean head = "HEAD".equals (method);
+        if (!"GET".equals (method) && !head) {
+            getNext ().invoke (request, response);
+            invalidateIfSucceeded (req, resp);
+            return;
+        }
+
+        Map<String, String> requestControl = parseCacheControl (Collections.list (req.getHeaders ("Cache-Control")));
+        if (requestControl.containsKey ("no-store")) {
+            getNext ().invoke (request, response);
+            return;
+        }
+
+        String baseKey = baseKey (req);
+        String key = lookupKey (baseKey, req);
+        Entry entry = key == null ? null : get (key);
+        long now = System.currentTimeMillis ();
+        boolean noCache = requestControl.containsKey ("no-cache") || "0".equals (requestControl.get ("max-age"))
+                || "no-cache".equalsIgnoreCase (req.getHeader ("Pragma"));
+        if (entry != null && !noCache && entry.isFresh (now)) {
+            hits.incrementAndGet ();
+            serve (req, resp, entry, head, true, now);
+            return;
+        }
+
+        misses.incrementAndGet ();
+        //HEAD只读缓存，不写缓存
+        if (head) {
+            getNext ().invoke (request, response);
+            return;
+        }
+
+        boolean clientConditional = req.getHeader ("If-None-Match") != null || req.getHeader ("If-Modified-Since") != null;
+        boolean revalidating = false;
+        if (entry != null && !clientConditional && request instanceof HttpRequest) {
+            if (entry.etag != null) {
+                ((HttpRequest) request).addHeader ("If-None-Match", entry.etag);
+                revalidating = true;
+            } else if (entry.lastModified != null) {
+                ((HttpRequest) request).addHeader ("If-Modified-Since", entry.lastModified);
+                revalidating = true;
+            }
+        }
+
+        ResponseCapture capture = ResponseCapture.start (response, maxObjectSize);
+        CapturedResponse captured;
+        try {
+            getNext ().invoke (request, response);
+        } finally {
+            captured = capture.finish ();
+        }
+        if (captured == null) {
+            return;
+        }
+
+        now = System.currentTimeMillis ();
+        if (captured.getStatus () == HttpServletResponse.SC_NOT_MODIFIED && entry != null) {
+            //是我们加的条件头，或者客户端的条件头和缓存一致，都说明缓存还能用
+            if (revalidating || entry.matches (req)) {
+                revalidated.incrementAndGet ();
+                Entry refreshed = entry.refresh (captured, now, defaultMaxAge);
+                put (key, refreshed);
+                if (revalidating && !resp.isCommitted ()) {
+                    resp.reset ();
+                    serve (req, resp, refreshed, false, false, now);
+                }
+            }
+            return;
+        }
+
+        store (baseKey, req, (HttpResponse) response, captured, now);
+    }
+
+    /**
+     * 从缓存回复
+     *
+     * @param conditional 是否处理客户端的条件头
+     */
+    private void serve(HttpServletRequest req, HttpServletResponse resp, Entry entry, boolean head,
+                       boolean conditional, long now) throws IOException {
+        String age = String.valueOf (Math.max (0, (now - entry.storedAt) / 1000));
+        if (conditional && entry.matches (req)) {
+            resp.setStatus (HttpServletResponse.SC_NOT_MODIFIED);
+            for (String headerName : new String[]{"ETag", "Last-Modified", "Cache-Control", "Expires", "Vary"}) {
+                for (String value : entry.response.getHeaders (headerName)) {
+                    resp.addHeader (headerName, value);
+                }
+            }
+            resp.setHeader ("Age", age);
+            return;
+        }
+
+        entry.response.replay (resp, !head);
+        resp.setHeader ("Age", age);
+    }
+
+    private void store(String baseKey, HttpServletRequest req, HttpResponse resp, CapturedResponse captured, long now) {
+        if (!CACHEABLE_STATUS.contains (captured.getStatus ())) {
+            return;
+        }
+        Map<String, String> control = parseCacheControl (captured.getHeaders ("Cache-Control"));
+        if (control.containsKey ("no-store") || control.containsKey ("private")) {
+            return;
+        }
+        if (!captured.getHeaders ("Set-Cookie").isEmpty () || resp.getCookies ().length > 0) {
+            return;
+        }
+        if (req.getHeader ("Authorization") != null && !control.containsKey ("public") && !control.containsKey ("s-maxage")) {
+            return;
+        }
+        String[] vary = parseVary (captured.getHeaders ("Vary"));
+        if (vary == null) {
+            return;
+        }
+
+        List<String[]> headers = new ArrayList<> ();
+        for (String[] header : captured.getHeaderList ()) {
+            if (!EXCLUDED_HEADERS.contains (header[0].toLowerCase (Locale.ENGLISH))) {
+                headers.add (header);
+            }
+        }
+        Entry entry = new Entry (new CapturedResponse (captured.getStatus (), headers, captured.getBody ()), now, defaultMaxAge);
+        if (entry.expiresAt <= now && entry.etag == null && entry.lastModified == null) {
+            return;
+        }
+        if (entry.response.size () > maxMemorySize) {
+            return;
+        }
+
+        //Vary变了的话，之前的变体都作废
+        Variants[] replaced = new Variants[1];
+        Variants current = variants.compute (baseKey, (k, v) -> {
+            if (v != null && Arrays.equals (v.vary, vary)) {
+                return v;
+            }
+            replaced[0] = v;
+            return new Variants (vary);
+        });
+        if (replaced[0] != null) {
+            removeAll (replaced[0]);
+        }
+        String key = fullKey (baseKey, vary, req);
+        current.keys.add (key);
+        put (key, entry);
+        log.debug ("{} 缓存 {}", container, key);
+    }
+
+    /**
+     * 不安全的方法成功后，这个uri的缓存都失效了
+     */
+    private void invalidateIfSucceeded(HttpServletRequest req, HttpServletResponse resp) {
+        String method = req.getMethod ();
+        if ("OPTIONS".equals (method) || "TRACE".equals (method) || resp.getStatus () >= 400) {
+            return;
+        }
+        Variants removed = variants.remove (baseKey ("GET", req));
+        if (removed != null) {
+            removeAll (removed);
+        }
+    }
+
+    private void removeAll(Variants removed) {
+        for (String key : removed.keys) {
+            memory.remove (key);
+            DiskTier d = disk;
+            if (d != null) {
+                d.remove (key);
+            }
+        }
+    }
+
+    private Entry get(String key) {
+        Entry entry = memory.get (key);
+        if (entry != null) {
+            return entry;
+        }
+        DiskTier d = disk;
+        if (d == null) {
+            return null;
+        }
+        entry = d.get (key);
+        if (entry != null) {
+            //移回内存
+            d.remove (key);
+            put (key, entry);
+        }
+        return entry;
+    }
+
+    private void put(String key, Entry entry) {
+        List<Map.Entry<String, Entry>> evicted = memory.put (key, entry, maxMemorySize);
+        DiskTier d = evicted.isEmpty () ? null : disk ();
+        if (d == null) {
+            return;
+        }
+        long now = System.currentTimeMillis ();
+        for (Map.Entry<String, Entry> e : evicted) {
+            if (e.getValue ().isFresh (now) || e.getValue ().etag != null || e.getValue ().lastModified != null) {
+                d.put (e.getKey (), e.getValue (), maxDiskSize);
+            }
+        }
+    }
+
+    private String baseKey(HttpServletRequest req) {
+        return baseKey (req.getMethod (), req);
+    }
+
+    private static String baseKey(String method, HttpServletRequest req) {
+        String query = req.getQueryString ();
+        return ("HEAD".equals (method) ? "GET" : method) + ' ' + req.getRequestURI () + (query == null ? "" : "?" + query);
+    }
+
+    private String lookupKey(String baseKey, HttpServletRequest req) {
+        Variants v = variants.get (baseKey);
+        return v == null ? null : fullKey (baseKey, v.vary, req);
+    }
+
+    private static String fullKey(String baseKey, String[] vary, HttpServletRequest req) {
+        if (vary.length == 0) {
+            return baseKey;
+        }
+        StringBuilder sb = new StringBuilder (baseKey);
+        for (String header : vary) {
+            String value = req.getHeader (header);
+            sb.append ('\n').append (header).append (':').append (value == null ? "" : value);
+        }
+        return sb.toString ();
+    }
+
+    /**
+     * @return 小写的header名，Vary: *时返回null
+     */
+    private static String[] parseVary(List<String> values) {
+        TreeSet<String> names = new TreeSet<> ();
+        for (String value : values) {
+            for (String name : value.split (",")) {
+                name = name.trim ().toLowerCase (Locale.ENGLISH);
+                if ("*".equals (name)) {
+                    return null;
+                }
+                if (!name.isEmpty ()) {
+                    names.add (name);
+                }
+            }
+        }
+        return names.toArray (new String[0]);
+    }
+
+    /**
+     * @return 小写的指令名，没有值的指令value为空字符串
+     */
+    static Map<String, String> parseCacheControl(List<String> values) {
+        Map<String, String> directives = new HashMap<> ();
+        for (String value : values) {
+            for (String directive : value.split (",")) {
+                directive = directive.trim ();
+                if (directive.isEmpty ()) {
+                    continue;
+                }
+                int eq = directive.indexOf ('=');
+                if (eq < 0) {
+                    directives.put (directive.toLowerCase (Locale.ENGLISH), "");
+                } else {
+                    String v = directive.substring (eq + 1).trim ();
+                    if (v.length () >= 2 && v.startsWith ("\"") && v.endsWith ("\"")) {
+                        v = v.substring (1, v.length () - 1);
+                    }
+                    directives.put (directive.substring (0, eq).trim ().toLowerCase (Locale.ENGLISH), v);
+                }
+            }
+        }
+        return directives;
+    }
+
+    private static long parseSeconds(String value) {
+        try {
+            return Long.parseLong (value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 第一次溢出时才创建目录
+     */
+    private DiskTier disk() {
+        if (maxDiskSize <= 0) {
+            return null;
+        }
+        DiskTier d = disk;
+        if (d != null) {
+            return d;
+        }
+        synchronized (this) {
+            if (disk == null) {
+                try {
+                    disk = new DiskTier (resolveDiskDirectory ());
+                } catch (IOException e) {
+                    log.error ("{} 创建缓存目录失败，不使用磁盘缓存", container, e);
+                    maxDiskSize = 0;
+                    return null;
+                }
+            }
+            return disk;
+        }
+    }
+
+    private File resolveDiskDirectory() {
+        File dir = new File (diskDirectory);
+        if (dir.isAbsolute ()) {
+            return dir;
+        }
+        if (container instanceof Context) {
+            ServletContext servletContext = ((Context) container).getServletContext ();
+            Object workDir = servletContext == null ? null : servletContext.getAttribute (ServletContext.TEMPDIR);
+            if (workDir instanceof File) {
+                return new File ((File) workDir, diskDirectory);
+            }
+        }
+        return new File (System.getProperty ("catalina.base", System.getProperty ("user.dir")), diskDirectory);
+    }
+
+    @Override
+    public synchronized void stop() throws LifecycleException {
+        super.stop ();
+
+        variants.clear ();
+        memory.clear ();
+        if (disk != null) {
+            disk.clear ();
+            disk = null;
+        }
+    }
+
+    public long getMaxMemorySize() {
+        return maxMemorySize;
+    }
+
+    public void setMaxMemorySize(long maxMemorySize) {
+        this.maxMemorySize = maxMemorySize;
+    }
+
+    public long getMaxDiskSize() {
+        return maxDiskSize;
+    }
+
+    public void setMaxDiskSize(long maxDiskSize) {
+        this.maxDiskSize = maxDiskSize;
+    }
+
+    public String getDiskDirectory() {
+        return diskDirectory;
+    }
+
+    public void setDiskDirectory(String diskDirectory) {
+        this.diskDirectory = diskDirectory;
+    }
+
+    public int getMaxObjectSize() {
+        return maxObjectSize;
+    }
+
+    public void setMaxObjectSize(int maxObjectSize) {
+        this.maxObjectSize = maxObjectSize;
+    }
+
+    public int getDefaultMaxAge() {
+        return defaultMaxAge;
+    }
+
+    public void setDefaultMaxAge(int defaultMaxAge) {
+        this.defaultMaxAge = defaultMaxAge;
+    }
+
+    public long getHits() {
+        return hits.get ();
+    }
+
+    public long getMisses() {
+        return misses.get ();
+    }
+
+    /**
+     * 过期后后面的valve回复304，继续使用缓存的次数
+     */
+    public long getRevalidated() {
+        return revalidated.get ();
+    }
+
+    public long getMemorySize() {
+        return memory.size ();
+    }
+
+    public long getDiskSize() {
+        DiskTier d = disk;
+        return d == null ? 0 : d.size ();
+    }
+
+    @Override
+    public String toString() {
+        return name + "{" +
+                "container=" + container +
+                ", maxMemorySize=" + maxMemorySize +
+                ", maxDiskSize=" + maxDiskSize +
+                '}';
+    }
+
+    /**
+     * 一个uri的Vary，所有变体的key
+     */
+    private static final class Variants {
+        private final String[] vary;
+        private final Set<String> keys = ConcurrentHashMap.newKeySet ();
+
+        Variants(String[] vary) {
+            this.vary = vary;
+        }
+    }
+
+    /**
+     * 缓存的响应和新鲜期，不可变
+     */
+    static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final CapturedResponse response;
+        private final long storedAt;
+        private final long expiresAt;
+        private final String etag;
+        private final String lastModified;
+
+        Entry(CapturedResponse response, long now, int defaultMaxAge) {
+            this.response = response;
+            this.storedAt = now;
+            this.expiresAt = now + freshnessLifetime (response, now, defaultMaxAge);
+            this.etag = response.getHeader ("ETag");
+            this.lastModified = response.getHeader ("Last-Modified");
+        }
+
+        /**
+         * s-maxage优先于max-age，再是Expires，no-cache表示每次都要重新验证
+         */
+        private static long freshnessLifetime(CapturedResponse response, long now, int defaultMaxAge) {
+            Map<String, String> control = parseCacheControl (response.getHeaders ("Cache-Control"));
+            if (control.containsKey ("no-cache")) {
+                return 0;
+            }
+            if (control.containsKey ("s-maxage")) {
+                return Math.max (0, parseSeconds (control.get ("s-maxage"))) * 1000;
+            }
+            if (control.containsKey ("max-age")) {
+                return Math.max (0, parseSeconds (control.get ("max-age"))) * 1000;
+            }
+            String expires = response.getHeader ("Expires");
+            if (expires != null) {
+                Date date = DateFormatter.parseHttpDate (expires);
+                return date == null ? 0 : Math.max (0, date.getTime () - now);
+            }
+            return defaultMaxAge * 1000L;
+        }
+
+        boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+
+        /**
+         * 客户端的条件头是否和缓存一致，If-None-Match优先
+         */
+        boolean matches(HttpServletRequest req) {
+            String ifNoneMatch = req.getHeader ("If-None-Match");
+            if (ifNoneMatch != null) {
+                if (etag == null) {
+                    return false;
+                }
+                for (String tag : ifNoneMatch.split (",")) {
+                    tag = tag.trim ();
+                    if ("*".equals (tag) || weak (tag).equals (weak (etag))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            String ifModifiedSince = req.getHeader ("If-Modified-Since");
+            if (ifModifiedSince != null && lastModified != null) {
+                Date since = DateFormatter.parseHttpDate (ifModifiedSince);
+                Date modified = DateFormatter.parseHttpDate (lastModified);
+                return since != null && modified != null && modified.getTime () <= since.getTime ();
+            }
+            return false;
+        }
+
+        private static String weak(String tag) {
+            return tag.startsWith ("W/") ? tag.substring (2) : tag;
+        }
+
+        /**
+         * 重新验证之后，用304中的header更新新鲜期
+         */
+        Entry refresh(CapturedResponse notModified, long now, int defaultMaxAge) {
+            List<String[]> updates = new ArrayList<> ();
+            for (String[] header : notModified.getHeaderList ()) {
+                String lower = header[0].toLowerCase (Locale.ENGLISH);
+                if ("cache-control".equals (lower) || "expires".equals (lower) || "etag".equals (lower)
+                        || "last-modified".equals (lower)) {
+                    updates.add (header);
+                }
+            }
+            return new Entry (response.withHeaders (updates), now, defaultMaxAge);
+        }
+    }
+
+    /**
+     * 按字节数限制的LRU
+     */
+    private static final class MemoryTier {
+        private final LinkedHashMap<String, Entry> map = new LinkedHashMap<> (16, 0.75f, true);
+        private long size = 0;
+
+        synchronized Entry get(String key) {
+            return map.get (key);
+        }
+
+        /**
+         * @return 被淘汰的
+         */
+        synchronized List<Map.Entry<String, Entry>> put(String key, Entry entry, long max) {
+            Entry old = map.put (key, entry);
+            if (old != null) {
+                size -= old.response.size ();
+            }
+            size += entry.response.size ();
+
+            List<Map.Entry<String, Entry>> evicted = Collections.emptyList ();
+            Iterator<Map.Entry<String, Entry>> it = map.entrySet ().iterator ();
+            while (size > max && it.hasNext ()) {
+                Map.Entry<String, Entry> eldest = it.next ();
+                if (eldest.getValue () == entry) {
+                    continue;
+                }
+                if (evicted.isEmpty ()) {
+                    evicted = new ArrayList<> ();
+                }
+                evicted.add (new AbstractMap.SimpleImmutableEntry<> (eldest));
+                size -= eldest.getValue ().response.size ();
+                it.remove ();
+            }
+            return evicted;
+        }
+
+        synchronized void remove(String key) {
+            Entry old = map.remove (key);
+            if (old != null) {
+                size -= old.response.size ();
+            }
+        }
+
+        synchronized void clear() {
+            map.clear ();
+            size = 0;
+        }
+
+        synchronized long size() {
+            return size;
+        }
+    }
+
+    /**
+     * 每个响应一个文件，文件名是key的md5；索引只在内存中，所以创建时清空目录
+     */
+    private static final class DiskTier {
+        private final File dir;
+        /**
+         * key到文件大小，LRU
+         */
+        private final LinkedHashMap<String, Long> index = new LinkedHashMap<> (16, 0.75f, true);
+        private long size = 0;
+
+        DiskTier(File dir) throws IOException {
+            this.dir = dir;
+            if (!dir.isDirectory () && !dir.mkdirs ()) {
+                throw new IOException ("无法创建目录 " + dir);
+            }
+            clear ();
+            log.info ("磁盘缓存目录 {}", dir.getAbsolutePath ());
+        }
+
+        Entry get(String key) {
+            synchronized (this) {
+                if (index.get (key) == null) {
+                    return null;
+                }
+            }
+            File file = file (key);
+            try (ObjectInputStream in = new ObjectInputStream (new BufferedInputStream (new FileInputStream (file)))) {
+                Object o = in.readObject ();
+                if (o instanceof Object[] && key.equals (((Object[]) o)[0])) {
+                    return (Entry) ((Object[]) o)[1];
+                }
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                log.warn ("读取缓存文件 {} 失败", file, e);
+            }
+            remove (key);
+            return null;
+        }
+
+        void put(String key, Entry entry, long max) {
+            File file = file (key);
+            File temp = new File (dir, file.getName () + ".tmp" + Thread.currentThread ().getId ());
+            try (ObjectOutputStream out = new ObjectOutputStream (new BufferedOutputStream (new FileOutputStream (temp)))) {
+                out.writeObject (new Object[]{key, entry});
+            } catch (IOException e) {
+                log.warn ("写入缓存文件 {} 失败", file, e);
+                temp.delete ();
+                return;
+            }
+
+            List<String> evicted = new ArrayList<> ();
+            synchronized (this) {
+                try {
+                    Files.move (temp.toPath (), file.toPath (), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    log.warn ("写入缓存文件 {} 失败", file, e);
+                    temp.delete ();
+                    return;
+                }
+                Long old = index.put (key, file.length ());
+                size += file.length () - (old == null ? 0 : old);
+                Iterator<Map.Entry<String, Long>> it = index.entrySet ().iterator ();
+                while (size > max && it.hasNext ()) {
+                    Map.Entry<String, Long> eldest = it.next ();
+                    if (eldest.getKey ().equals (key)) {
+                        continue;
+                    }
+                    evicted.add (eldest.getKey ());
+                    size -= eldest.getValue ();
+                    it.remove ();
+                }
+                for (String k : evicted) {
+                    file (k).delete ();
+                }
+            }
+        }
+
+        synchronized void remove(String key) {
+            Long old = index.remove (key);
+            if (old != null) {
+                size -= old;
+                file (key).delete ();
+            }
+        }
+
+        synchronized void clear() {
+            File[] files = dir.listFiles ((d, n) -> n.endsWith (FILE_EXT) || n.contains (FILE_EXT + ".tmp"));
+            if (files != null) {
+                for (File f : files) {
+                    f.delete ();
+                }
+            }
+            index.clear ();
+            size = 0;
+        }
+
+        synchronized long size() {
+            return size;
+        }
+
+        private File file(String key) {
+            try {
+                MessageDigest md5 = MessageDigest.getInstance ("MD5");
+                String hex = new MD5Encoder ().encode (md5.digest (key.getBytes (StandardCharsets.UTF_8)));
+                return new File (dir, hex + FILE_EXT);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException (e);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.valve;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一个完整的响应：状态码、header和body，可以序列化到磁盘，也可以重放到另一个响应上
+ *
+ * @date 2022/3/9 10:15
+ */
+final class CapturedResponse implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    /**
+     * 每个元素是{name, value}，保持原来的顺序
+     */
+    private final List<String[]> headers;
+    private final byte[] body;
+
+    CapturedResponse(int status, List<String[]> headers, byte[] body) {
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    List<String[]> getHeaderList() {
+        return Collections.unmodifiableList (headers);
+    }
+
+    /**
+     * 大小写不敏感
+     */
+    String getHeader(String name) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase (name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    List<String> getHeaders(String name) {
+        List<String> values = new ArrayList<> ();
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase (name)) {
+                values.add (header[1]);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * 替换掉同名的header，返回新的对象
+     */
+    CapturedResponse withHeaders(List<String[]> replacements) {
+        List<String[]> merged = new ArrayList<> ();
+        for (String[] header : headers) {
+            boolean replaced = false;
+            for (String[] replacement : replacements) {
+                if (replacement[0].equalsIgnoreCase (header[0])) {
+                    replaced = true;
+                    break;
+                }
+            }
+            if (!replaced) {
+                merged.add (header);
+            }
+        }
+        merged.addAll (replacements);
+        return new CapturedResponse (status, merged, body);
+    }
+
+    /**
+     * 大约占用的内存
+     */
+    long size() {
+        long size = body.length + 64;
+        for (String[] header : headers) {
+            size += 2L * (header[0].length () + header[1].length ()) + 32;
+        }
+        return size;
+    }
+
+    /**
+     * 写到一个还没有提交的响应上，Content-Length由connector重新计算
+     *
+     * @param withBody HEAD请求不需要body
+     */
+    void replay(HttpServletResponse response, boolean withBody) throws IOException {
+        response.setStatus (status);
+        for (String[] header : headers) {
+            if ("Content-Length".equalsIgnoreCase (header[0])) {
+                continue;
+            }
+            if ("Content-Type".equalsIgnoreCase (header[0])) {
+                response.setContentType (header[1]);
+            } else {
+                response.addHeader (header[0], header[1]);
+            }
+        }
+        if (withBody) {
+            response.getOutputStream ().write (body);
+        } else {
+            response.setContentLength (body.length);
+        }
+    }
+}
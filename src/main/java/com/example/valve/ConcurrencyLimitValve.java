@@ -0,0 +1,97 @@
+package com.example.valve;
+
+import com.example.connector.Request;
+import com.example.connector.Response;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 限制所在容器（Host或者Context）同时处理的请求数，超过的直接回复503和Retry-After
+ * 和connector上的maxConcurrentRequests配合，防止一个慢应用占满整个connector的名额
+ * <p>
+ * 在server.xml中配置在Host或者Context下：
+ * {@code <Valve className="com.example.valve.ConcurrencyLimitValve" maxConcurrentRequests="50"/>}
+ *
+ * @date 2022/3/4 11:20
+ */
+@Slf4j
+public class ConcurrencyLimitValve extends AbstractValve {
+    protected static final String name = "ConcurrencyLimitValve";
+
+    private final AtomicInteger running = new AtomicInteger ();
+    private final AtomicLong rejected = new AtomicLong ();
+    /**
+     * 小于等于0表示不限制
+     */
+    private int maxConcurrentRequests = 0;
+    /**
+     * 秒
+     */
+    private int retryAfter = 1;
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        if (maxConcurrentRequests <= 0) {
+            getNext ().invoke (request, response);
+            return;
+        }
+
+        if (running.incrementAndGet () > maxConcurrentRequests) {
+            running.decrementAndGet ();
+            rejected.incrementAndGet ();
+            log.debug ("{} 并发请求数超过{}，拒绝", container, maxConcurrentRequests);
+            HttpServletResponse resp = (HttpServletResponse) response;
+            if (retryAfter > 0) {
+                resp.setHeader ("Retry-After", String.valueOf (retryAfter));
+            }
+            resp.sendError (HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        try {
+            getNext ().invoke (request, response);
+        } finally {
+            running.decrementAndGet ();
+        }
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    public void setRetryAfter(int retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    public int getRunning() {
+        return running.get ();
+    }
+
+    /**
+     * 被拒绝的请求数
+     */
+    public long getRejected() {
+        return rejected.get ();
+    }
+
+    @Override
+    public String toString() {
+        return name + "{" +
+                "container=" + container +
+                ", maxConcurrentRequests=" + maxConcurrentRequests +
+                '}';
+    }
+}
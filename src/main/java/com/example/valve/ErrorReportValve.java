@@ -62,6 +62,10 @@ public class ErrorReportValve extends AbstractValve {
                 !(response instanceof HttpServletResponse)) {
             return false;
         }
+        //header已经发出去了，无法再换成错误页面
+        if (((ServletResponse) response).isCommitted ()) {
+            return false;
+        }
 
         int status = ((HttpServletResponse) response).getStatus ();
         if (status < 300 ||
@@ -0,0 +1,72 @@
+package com.example.valve;
+
+import com.example.connector.Request;
+import com.example.connector.Response;
+import com.example.util.LatencyHistogram;
+import com.example.util.LatencyRegistry;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * 以纯文本输出{@link LatencyRegistry}中所有的耗时统计，每行一个直方图，单位毫秒；
+ * 其他路径的请求直接交给后面的valve。带上reset参数时输出之后清空
+ * <p>
+ * 统计需要在容器上打开，例如：
+ * {@code <Engine ... instrumented="true"><Valve className="com.example.valve.LatencyReportValve" path="/latency"/>}
+ *
+ * @date 2022/3/8 14:10
+ */
+public class LatencyReportValve extends AbstractValve {
+    protected static final String name = "LatencyReportValve";
+
+    private String path = "/latency";
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        if (!path.equals (req.getRequestURI ())) {
+            getNext ().invoke (request, response);
+            return;
+        }
+
+        HttpServletResponse resp = (HttpServletResponse) response;
+        resp.setStatus (HttpServletResponse.SC_OK);
+        resp.setContentType ("text/plain;charset=UTF-8");
+        resp.setHeader ("Cache-Control", "no-cache");
+        PrintWriter writer = resp.getWriter ();
+        writer.println ("# container name count mean p50 p90 p99 p999 max");
+        for (Map.Entry<String, Map<String, LatencyHistogram>> container : LatencyRegistry.snapshot ().entrySet ()) {
+            for (Map.Entry<String, LatencyHistogram> entry : container.getValue ().entrySet ()) {
+                LatencyHistogram h = entry.getValue ();
+                writer.printf ("%s %s %d %.3f %.3f %.3f %.3f %.3f %.3f%n", container.getKey (), entry.getKey (),
+                        h.getCount (), h.getMeanMillis (), h.getP50Millis (), h.getP90Millis (), h.getP99Millis (),
+                        h.getP999Millis (), h.getMaxMillis ());
+            }
+        }
+        writer.flush ();
+        if (req.getParameter ("reset") != null) {
+            LatencyRegistry.resetAll ();
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public String toString() {
+        return name + "{" +
+                "container=" + container +
+                ", path=" + path +
+                '}';
+    }
+}
@@ -0,0 +1,253 @@
+package com.example.valve;
+
+import com.example.connector.Request;
+import com.example.connector.Response;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按客户端限流，超过的直接回复429和Retry-After
+ * <p>
+ * 客户端可以按远程地址、某个请求头或者session id区分，拿不到时退回到远程地址
+ * <p>
+ * 每个客户端一个令牌桶，用GCRA实现：只保存下一个令牌的理论到达时间（一个AtomicLong），
+ * 每秒rate个令牌，最多攒burst个，每次请求一次CAS，没有锁；
+ * 桶放在ConcurrentHashMap中，已经攒满（即空闲）的桶在backgroundProcess中清理；数量达到maxKeys时也会清理，
+ * 但每秒最多一次，避免大量不同的客户端让每个新请求都遍历一遍map。清理后仍然达到maxKeys时，
+ * 新的客户端共用一个溢出桶，即它们加起来每秒rate个请求
+ * <p>
+ * 在server.xml中配置在Host或者Context下：
+ * {@code <Valve className="com.example.valve.RateLimitValve" rate="20" burst="40" keyType="header" keyHeader="X-Api-Key"/>}
+ *
+ * @date 2022/3/10 10:00
+ */
+@Slf4j
+public class RateLimitValve extends AbstractValve {
+    protected static final String name = "RateLimitValve";
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+
+    public static final String KEY_REMOTE_ADDR = "remoteAddr";
+    public static final String KEY_HEADER = "header";
+    public static final String KEY_SESSION = "session";
+    /**
+     * 因为达到maxKeys触发的清理的最小间隔
+     */
+    private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos (1);
+
+    /**
+     * key是客户端，value是下一个令牌的理论到达时间（nanoTime）
+     */
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<> ();
+    private final AtomicBoolean sweeping = new AtomicBoolean ();
+    /**
+     * 上一次因为达到maxKeys触发清理的时间（nanoTime）
+     */
+    private final AtomicLong lastSweep = new AtomicLong (System.nanoTime () - SWEEP_INTERVAL);
+    /**
+     * 达到maxKeys之后新客户端共用的桶
+     */
+    private final AtomicLong overflow = new AtomicLong (System.nanoTime ());
+    private final AtomicLong rejected = new AtomicLong ();
+
+    /**
+     * 每秒的请求数，小于等于0表示不限制
+     */
+    private double rate = 0;
+    /**
+     * 空闲之后允许连续发送的请求数
+     */
+    private int burst = 1;
+    private String keyType = KEY_REMOTE_ADDR;
+    private String keyHeader;
+    /**
+     * 跟踪的客户端数上限，达到后清理空闲的桶，仍然达到的话新客户端共用一个桶
+     */
+    private int maxKeys = 100_000;
+
+    /**
+     * 两个令牌之间的纳秒数，和limit一起在setter中计算
+     */
+    private volatile long interval;
+    /**
+     * 理论到达时间最多比现在超前多少纳秒
+     */
+    private volatile long limit;
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        long interval = this.interval;
+        if (interval <= 0 || !(request instanceof HttpServletRequest)) {
+            getNext ().invoke (request, response);
+            return;
+        }
+
+        long wait = acquire (key ((HttpServletRequest) request), interval, limit);
+        if (wait > 0) {
+            rejected.incrementAndGet ();
+            log.debug ("{} 客户端请求过多，需要等待{}ms", container, TimeUnit.NANOSECONDS.toMillis (wait));
+            HttpServletResponse resp = (HttpServletResponse) response;
+            resp.setHeader ("Retry-After", String.valueOf (Math.max (1, (wait + 999_999_999) / 1_000_000_000)));
+            resp.sendError (SC_TOO_MANY_REQUESTS);
+            return;
+        }
+
+        getNext ().invoke (request, response);
+    }
+
+    /**
+     * @return 0表示拿到了令牌，否则为需要等待的纳秒数
+     */
+    private long acquire(String key, long interval, long limit) {
+        long now = System.nanoTime ();
+        AtomicLong tat = buckets.get (key);
+        if (tat == null) {
+            if (buckets.size () >= maxKeys) {
+                long last = lastSweep.get ();
+                if (now - last >= SWEEP_INTERVAL && lastSweep.compareAndSet (last, now)) {
+                    sweep (now);
+                }
+            }
+            tat = buckets.size () < maxKeys ? buckets.computeIfAbsent (key, k -> new AtomicLong (now)) : overflow;
+        }
+
+        while (true) {
+            long current = tat.get ();
+            long next = Math.max (current, now) + interval;
+            long ahead = next - now;
+            if (ahead > limit) {
+                return ahead - limit;
+            }
+            if (tat.compareAndSet (current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private String key(HttpServletRequest request) {
+        String key = null;
+        if (KEY_HEADER.equals (keyType) && keyHeader != null) {
+            key = request.getHeader (keyHeader);
+        } else if (KEY_SESSION.equals (keyType)) {
+            HttpSession session = request.getSession (false);
+            key = session == null ? null : session.getId ();
+        }
+        return key == null || key.isEmpty () ? request.getRemoteAddr () : key;
+    }
+
+    /**
+     * 清理空闲的桶
+     */
+    @Override
+    public void backgroundProcess() {
+        sweep (System.nanoTime ());
+    }
+
+    /**
+     * 理论到达时间已经过去说明桶已经攒满，删掉和重新创建是一样的；
+     * 删除的同时有请求在用这个桶的话，这个请求不会被计入，最多多放过一个请求
+     */
+    private void sweep(long now) {
+        if (!sweeping.compareAndSet (false, true)) {
+            return;
+        }
+        try {
+            int before = buckets.size ();
+            buckets.values ().removeIf (tat -> tat.get () - now <= 0);
+            log.trace ("{} 清理了{}个空闲的桶", container, before - buckets.size ());
+        } finally {
+            sweeping.set (false);
+        }
+    }
+
+    private void update() {
+        if (rate <= 0) {
+            interval = 0;
+            limit = 0;
+            return;
+        }
+        long i = Math.max (1, (long) (TimeUnit.SECONDS.toNanos (1) / rate));
+        limit = i * Math.max (1, burst);
+        interval = i;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public void setRate(double rate) {
+        this.rate = rate;
+        update ();
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public void setBurst(int burst) {
+        this.burst = burst;
+        update ();
+    }
+
+    public String getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * remoteAddr、header或者session
+     */
+    public void setKeyType(String keyType) {
+        if (!KEY_REMOTE_ADDR.equals (keyType) && !KEY_HEADER.equals (keyType) && !KEY_SESSION.equals (keyType)) {
+            throw new IllegalArgumentException ("不支持的keyType " + keyType);
+        }
+        this.keyType = keyType;
+    }
+
+    public String getKeyHeader() {
+        return keyHeader;
+    }
+
+    public void setKeyHeader(String keyHeader) {
+        this.keyHeader = keyHeader;
+    }
+
+    public int getMaxKeys() {
+        return maxKeys;
+    }
+
+    public void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * 被拒绝的请求数
+     */
+    public long getRejected() {
+        return rejected.get ();
+    }
+
+    /**
+     * 当前跟踪的客户端数
+     */
+    public int getTrackedKeys() {
+        return buckets.size ();
+    }
+
+    @Override
+    public String toString() {
+        return name + "{" +
+                "container=" + container +
+                ", rate=" + rate +
+                ", burst=" + burst +
+                ", keyType=" + keyType +
+                '}';
+    }
+}
@@ -0,0 +1,277 @@
+package com.example.valve;
+
+import com.example.connector.Request;
+import com.example.connector.Response;
+import com.example.connector.http.HttpConnector;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合并同时到达的相同请求（single-flight）：相同的GET/HEAD请求（方法、uri、query和指定的请求头）同时只有一个交给后面的valve，
+ * 其他的等它完成，然后重放它的响应，防止热点url缓存过期时大量请求同时打到servlet上
+ * <p>
+ * 等待的请求会占用容器线程，最多等maxWait毫秒；超时、第一个请求出错、响应不是200、太大、异步、带Set-Cookie或者
+ * Cache-Control为private、no-store时，等待的请求自己交给后面的valve处理
+ * <p>
+ * 带Cookie或Authorization的请求，除非这两个头在key中，否则不合并，避免把一个用户的响应发给另一个用户。
+ * 条件请求和Range请求的响应（304、206）取决于请求本身，也不合并
+ * <p>
+ * connector的executor为eventloop时请求直接在io线程上执行，等待会卡住同一个eventloop上的所有连接，
+ * 甚至包括第一个请求自己，所以这时不合并
+ * <p>
+ * 和{@link CacheValve}一起使用时放在它的后面，只合并没有命中缓存的请求。在server.xml中配置在Host或者Context下：
+ * {@code <Valve className="com.example.valve.RequestCoalescingValve" headers="Accept,Accept-Language"/>}
+ *
+ * @date 2022/3/10 15:00
+ */
+@Slf4j
+public class RequestCoalescingValve extends AbstractValve {
+    protected static final String name = "RequestCoalescingValve";
+    private static final String[] CONDITIONAL_HEADERS = {"If-None-Match", "If-Modified-Since", "If-Match",
+            "If-Unmodified-Since", "If-Range", "Range"};
+
+    /**
+     * 正在执行的请求，key见{@link #key(HttpServletRequest)}
+     */
+    private final Map<String, Flight> flights = new ConcurrentHashMap<> ();
+    private final AtomicLong coalesced = new AtomicLong ();
+    private final AtomicLong fallbacks = new AtomicLong ();
+    private final AtomicInteger waiting = new AtomicInteger ();
+    private volatile boolean eventLoopWarned = false;
+
+    /**
+     * 参与比较的请求头，小写
+     */
+    private String[] keyHeaders = new String[0];
+    /**
+     * 毫秒
+     */
+    private long maxWait = 30_000;
+    /**
+     * 能够重放的响应body上限
+     */
+    private int maxBodySize = 1024 * 1024;
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+            getNext ().invoke (request, response);
+            return;
+        }
+        HttpServletRequest req = (HttpServletRequest) request;
+        String method = req.getMethod ();
+        if (!"GET".equals (method) && !"HEAD".equals (method) || isPersonal (req) || isConditional (req)
+                || onEventLoop (request)) {
+            getNext ().invoke (request, response);
+            return;
+        }
+
+        String key = key (req);
+        Flight flight = new Flight ();
+        Flight leader = flights.putIfAbsent (key, flight);
+        if (leader == null) {
+            lead (key, flight, request, response);
+        } else {
+            follow (key, leader, request, response);
+        }
+    }
+
+    private void lead(String key, Flight flight, Request request, Response response) throws IOException, ServletException {
+        ResponseCapture capture = ResponseCapture.start (response, maxBodySize);
+        boolean completed = false;
+        try {
+            getNext ().invoke (request, response);
+            completed = true;
+        } finally {
+            CapturedResponse captured = capture.finish ();
+            flight.result = completed && isShareable (captured) ? captured : null;
+            //先移除，之后到达的请求重新执行
+            flights.remove (key, flight);
+            flight.done.countDown ();
+        }
+    }
+
+    private void follow(String key, Flight leader, Request request, Response response) throws IOException, ServletException {
+        boolean done;
+        waiting.incrementAndGet ();
+        try {
+            done = leader.done.await (maxWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+            done = false;
+        } finally {
+            waiting.decrementAndGet ();
+        }
+
+        CapturedResponse result = leader.result;
+        if (done && result != null) {
+            coalesced.incrementAndGet ();
+            result.replay ((HttpServletResponse) response, !"HEAD".equals (((HttpServletRequest) request).getMethod ()));
+            return;
+        }
+
+        fallbacks.incrementAndGet ();
+        log.debug ("{} {} 无法使用合并的响应，自己执行", container, key);
+        getNext ().invoke (request, response);
+    }
+
+    /**
+     * 带用户凭证的请求，如果凭证不在key中，不能和别人共享响应
+     */
+    private boolean isPersonal(HttpServletRequest req) {
+        return req.getHeader ("Authorization") != null && !hasKeyHeader ("authorization")
+                || req.getHeader ("Cookie") != null && !hasKeyHeader ("cookie");
+    }
+
+    /**
+     * 条件请求和Range请求的响应取决于客户端已有的内容
+     */
+    private static boolean isConditional(HttpServletRequest req) {
+        for (String header : CONDITIONAL_HEADERS) {
+            if (req.getHeader (header) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * eventloop模式下没有worker线程池，等待的请求会阻塞io线程
+     */
+    private boolean onEventLoop(Request request) {
+        HttpConnector connector = request.getConnector ();
+        if (connector == null || connector.getWorkerExecutor () != null) {
+            return false;
+        }
+        if (!eventLoopWarned) {
+            eventLoopWarned = true;
+            log.warn ("{} {}的executor为eventloop，不合并请求", this, connector);
+        }
+        return true;
+    }
+
+    private boolean hasKeyHeader(String header) {
+        for (String keyHeader : keyHeaders) {
+            if (keyHeader.equals (header)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isShareable(CapturedResponse captured) {
+        if (captured == null || captured.getStatus () != HttpServletResponse.SC_OK
+                || !captured.getHeaders ("Set-Cookie").isEmpty ()) {
+            return false;
+        }
+        Map<String, String> control = CacheValve.parseCacheControl (captured.getHeaders ("Cache-Control"));
+        return !control.containsKey ("private") && !control.containsKey ("no-store");
+    }
+
+    private String key(HttpServletRequest req) {
+        String query = req.getQueryString ();
+        StringBuilder sb = new StringBuilder ();
+        sb.append (req.getMethod ()).append (' ').append (req.getRequestURI ());
+        if (query != null) {
+            sb.append ('?').append (query);
+        }
+        for (String header : keyHeaders) {
+            String value = req.getHeader (header);
+            sb.append ('\n').append (header).append (':').append (value == null ? "" : value);
+        }
+        return sb.toString ();
+    }
+
+    public String getHeaders() {
+        return String.join (",", keyHeaders);
+    }
+
+    /**
+     * 逗号分隔的请求头，值相同的请求才会合并
+     */
+    public void setHeaders(String headers) {
+        List<String> names = new ArrayList<> ();
+        if (headers != null) {
+            for (String header : headers.split (",")) {
+                header = header.trim ().toLowerCase (Locale.ENGLISH);
+                if (!header.isEmpty ()) {
+                    names.add (header);
+                }
+            }
+        }
+        this.keyHeaders = names.toArray (new String[0]);
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public int getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    public void setMaxBodySize(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * 重放了别的请求的响应的次数
+     */
+    public long getCoalesced() {
+        return coalesced.get ();
+    }
+
+    /**
+     * 等待之后没能使用别的请求的响应，自己执行的次数
+     */
+    public long getFallbacks() {
+        return fallbacks.get ();
+    }
+
+    /**
+     * 正在等待别的请求完成的请求数
+     */
+    public int getWaiting() {
+        return waiting.get ();
+    }
+
+    /**
+     * 正在执行的不同请求数
+     */
+    public int getInFlight() {
+        return flights.size ();
+    }
+
+    @Override
+    public String toString() {
+        return name + "{" +
+                "container=" + container +
+                ", headers=" + getHeaders () +
+                '}';
+    }
+
+    private static final class Flight {
+        private final CountDownLatch done = new CountDownLatch (1);
+        /**
+         * done之前写入，不能共享时为null
+         */
+        private volatile CapturedResponse result;
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.valve;
+
+import com.example.Globals;
+import com.example.connector.AbstractResponse;
+import com.example.connector.HttpResponse;
+import com.example.connector.Response;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 在后面的valve执行时复制一份响应：把response的stream换成一个同时写到原来的stream和内存的流，
+ * 响应照常发送，结束后得到一个{@link CapturedResponse}
+ * <p>
+ * body超过上限、异步请求、sendfile发送的响应、错误响应都拿不到完整的结果，这时返回null
+ *
+ * @date 2022/3/9 10:30
+ */
+final class ResponseCapture {
+    private final Response response;
+    private final OutputStream original;
+    private final CaptureOutputStream stream;
+
+    private ResponseCapture(Response response, int maxBodySize) {
+        this.response = response;
+        this.original = response.getStream ();
+        this.stream = new CaptureOutputStream (original, maxBodySize);
+    }
+
+    /**
+     * 必须在servlet获取输出流之前调用
+     */
+    static ResponseCapture start(Response response, int maxBodySize) {
+        ResponseCapture capture = new ResponseCapture (response, maxBodySize);
+        response.setStream (capture.stream);
+        return capture;
+    }
+
+    /**
+     * 恢复原来的stream，之后的写入不再复制
+     *
+     * @return 拿不到完整的响应时返回null
+     */
+    CapturedResponse finish() {
+        //writer里可能还有没编码的字符，写到stream里，但是不能提交响应
+        stream.holdFlush = true;
+        try {
+            if (response instanceof AbstractResponse) {
+                ((AbstractResponse) response).flushWriterBuffer ();
+            }
+        } finally {
+            stream.holdFlush = false;
+        }
+        response.setStream (original);
+
+        byte[] body = stream.toByteArray ();
+        if (body == null || response.isError () || !(response instanceof HttpResponse)) {
+            return null;
+        }
+        Object request = response.getRequest ();
+        if (request instanceof HttpServletRequest) {
+            HttpServletRequest req = (HttpServletRequest) request;
+            if (req.isAsyncStarted () || req.getAttribute (Globals.SENDFILE_FILENAME_ATTR) != null) {
+                return null;
+            }
+        }
+
+        HttpResponse resp = (HttpResponse) response;
+        List<String[]> headers = new ArrayList<> ();
+        for (String name : resp.getHeaderNames ()) {
+            for (String value : resp.getHeaderValues (name)) {
+                headers.add (new String[]{name, value});
+            }
+        }
+        return new CapturedResponse (resp.getStatus (), headers, body);
+    }
+
+    private static final class CaptureOutputStream extends OutputStream {
+        private final OutputStream delegate;
+        private final int max;
+        /**
+         * 超过上限后为null
+         */
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream ();
+        private boolean holdFlush = false;
+
+        CaptureOutputStream(OutputStream delegate, int max) {
+            this.delegate = delegate;
+            this.max = max;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            delegate.write (b);
+            if (copy != null) {
+                if (copy.size () + 1 > max) {
+                    copy = null;
+                } else {
+                    copy.write (b);
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            delegate.write (b, off, len);
+            if (copy != null) {
+                if (copy.size () + len > max) {
+                    copy = null;
+                } else {
+                    copy.write (b, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!holdFlush) {
+                delegate.flush ();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close ();
+        }
+
+        byte[] toByteArray() {
+            return copy == null ? null : copy.toByteArray ();
+        }
+    }
+}
@@ -6,17 +6,23 @@ import com.example.connector.HttpRequest;
 import com.example.connector.Request;
 import com.example.connector.Response;
 import com.example.valve.AbstractValve;
+import com.example.websocket.WebSocketContainer;
+import com.example.websocket.WebSocketEndpoint;
+import com.example.websocket.WebSocketUpgradeHandler;
+import lombok.extern.slf4j.Slf4j;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 
 /**
  * 通过mapper进行转发给wrapper
  *
  * @date 2021/12/28 14:27
  */
+@Slf4j
 public class StandardContextValve extends AbstractValve {
 
 
@@ -54,6 +60,9 @@ public class StandardContextValve extends AbstractValve {
                 relativeURI.startsWith ("/WEB-INF/")) {
             hresp.sendError (HttpServletResponse.SC_NOT_FOUND);
         }
+        if (upgradeWebSocket (hreq, hresp, requestURI.substring (contextPath.length ()))) {
+            return;
+        }
         Wrapper wrapper;
         try {
             wrapper = (Wrapper) getContainer ().map (request, true);
@@ -70,4 +79,35 @@ public class StandardContextValve extends AbstractValve {
         response.setContext (((Context) getContainer ()));
         wrapper.invoke (request, response);
     }
+
+    /**
+     * 注册了websocket端点的路径不经过servlet，直接升级，连接在servlet返回后由connector切换
+     *
+     * @param path 相对于context的路径
+     * @return 是否处理了
+     */
+    private boolean upgradeWebSocket(HttpServletRequest hreq, HttpServletResponse hresp, String path)
+            throws IOException, ServletException {
+        WebSocketContainer container = ((Context) getContainer ()).getWebSocketContainer ();
+        String upgrade = hreq.getHeader ("Upgrade");
+        if (container == null || container.isEmpty () || upgrade == null || !"websocket".equalsIgnoreCase (upgrade.trim ())) {
+            return false;
+        }
+        Class<? extends WebSocketEndpoint> endpointClass = container.findEndpoint (path);
+        if (endpointClass == null) {
+            return false;
+        }
+        WebSocketEndpoint endpoint;
+        try {
+            endpoint = endpointClass.getDeclaredConstructor ().newInstance ();
+        } catch (ReflectiveOperationException e) {
+            //构造器抛出的异常被包装在InvocationTargetException中
+            Throwable cause = e instanceof InvocationTargetException ? e.getCause () : e;
+            log.error ("无法创建websocket端点 {}", endpointClass.getName (), cause);
+            hresp.sendError (HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return true;
+        }
+        hreq.upgrade (WebSocketUpgradeHandler.class).setEndpoint (container, endpoint);
+        return true;
+    }
 }
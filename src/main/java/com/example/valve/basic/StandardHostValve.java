@@ -5,6 +5,7 @@ import com.example.Context;
 import com.example.connector.HttpRequest;
 import com.example.connector.Request;
 import com.example.connector.Response;
+import com.example.connector.http.HttpConnector;
 import com.example.session.Session;
 import com.example.session.StandardSession;
 import com.example.valve.AbstractValve;
@@ -22,10 +23,9 @@ import java.io.IOException;
  */
 @Slf4j
 public class StandardHostValve extends AbstractValve {
-    private static final long MAX_PAUSED_WAITING_TIME = 2000;
 
     /**
-     * 找不到context返回500
+     * 找不到context返回404，context正在重新加载或者关闭时返回503
      */
     @Override
     public void invoke(Request request, Response response) throws IOException, ServletException {
@@ -35,28 +35,18 @@ public class StandardHostValve extends AbstractValve {
         }
 
         Context context = ((Context) getContainer ().map (request, true));
-
-        //查看是否paused
-        long startTime = System.currentTimeMillis ();
-        while (context != null &&
-                (System.currentTimeMillis () - startTime) <= MAX_PAUSED_WAITING_TIME &&
-                context.getPaused ()) {
-            context = ((Context) getContainer ().map (request, true));
-            try {
-                Thread.sleep (500);
-            } catch (InterruptedException ignored) {
-
-            }
-        }
-        if (context != null && context.getPaused ()) {
-            context = null;
-        }
         if (context == null) {
             ((HttpServletResponse) response).sendError (HttpServletResponse.SC_NOT_FOUND,
                     "无法找到对应的Context");
             log.error ("请求uri {} 映射不到任何context", ((HttpRequest) request).getDecodedRequestURI ());
             return;
         }
+        //不等待，让负载均衡把请求转到别的实例
+        if (context.getPaused () || !context.isAvailable ()) {
+            sendUnavailable (response);
+            log.debug ("context {} 正在重新加载或者关闭，拒绝请求", context.getName ());
+            return;
+        }
 
 
         // Bind the context CL to the current thread
@@ -71,7 +61,26 @@ public class StandardHostValve extends AbstractValve {
             session.access ();
         }
 
-        context.invoke (request, response);
+        //context关闭时会等待正在处理的请求完成
+        context.incrementInProgressAsyncCount ();
+        try {
+            context.invoke (request, response);
+        } finally {
+            context.decrementInProgressAsyncCount ();
+        }
+    }
+
+    /**
+     * 503，并要求客户端关闭连接
+     */
+    public static void sendUnavailable(Response response) throws IOException {
+        HttpServletResponse resp = (HttpServletResponse) response;
+        HttpConnector connector = response.getConnector ();
+        if (connector != null && connector.getRetryAfter () > 0) {
+            resp.setHeader ("Retry-After", String.valueOf (connector.getRetryAfter ()));
+        }
+        resp.setHeader ("Connection", "close");
+        resp.sendError (HttpServletResponse.SC_SERVICE_UNAVAILABLE);
     }
 
 }
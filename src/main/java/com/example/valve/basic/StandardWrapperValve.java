@@ -7,6 +7,7 @@ import com.example.connector.Request;
 import com.example.connector.Response;
 import com.example.connector.http.HttpRequestImpl;
 import com.example.core.FilterChainImpl;
+import com.example.core.StandardPipeline;
 import com.example.filter.FilterChainFactory;
 import com.example.valve.AbstractValve;
 import io.netty.handler.codec.http.HttpHeaderNames;
@@ -69,8 +70,15 @@ public class StandardWrapperValve extends AbstractValve {
         //3.创建一个filter chain
         String uri = ((HttpRequestImpl) httpServletRequest).getDecodedRequestURI ();
         FilterChain filterChain = FilterChainFactory.createFilterChain (uri, wrapper, servlet);
+        if (wrapper.getPipeline () instanceof StandardPipeline && filterChain instanceof FilterChainImpl) {
+            StandardPipeline pipeline = (StandardPipeline) wrapper.getPipeline ();
+            if (pipeline.isInstrumented ()) {
+                ((FilterChainImpl) filterChain).setLatency (pipeline.getLatency ("filters"), pipeline.getLatency ("servlet"));
+            }
+        }
 
-        //4.执行
+        //4.执行，servlet支持异步时才能startAsync
+        request.setAsyncSupported (wrapper.isAsyncSupported ());
         try {
             filterChain.doFilter (request.getRequest (), response.getResponse ());
         } catch (UnavailableException e) {
@@ -0,0 +1,95 @@
+package com.example.websocket;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 每个Context一个的websocket端点注册表，类似JSR-356的ServerContainer，
+ * 以{@link com.example.Globals#WEBSOCKET_CONTAINER_ATTR}放在ServletContext中，webapp可以在listener中注册端点
+ * <p>
+ * path是相对于context的，支持精确匹配和/xxx/*前缀匹配，精确匹配优先，前缀匹配最长的优先
+ *
+ * @date 2022/3/6 10:30
+ */
+@Slf4j
+public class WebSocketContainer {
+    private final Map<String, Class<? extends WebSocketEndpoint>> exact = new ConcurrentHashMap<> ();
+    /**
+     * key是去掉/*之后的前缀
+     */
+    private final Map<String, Class<? extends WebSocketEndpoint>> prefix = new ConcurrentHashMap<> ();
+    /**
+     * 当前打开的连接，用于广播和关闭时通知客户端
+     */
+    private final Set<WebSocketSession> sessions = ConcurrentHashMap.newKeySet ();
+
+    public void addEndpoint(String path, Class<? extends WebSocketEndpoint> endpointClass) {
+        if (path == null || !path.startsWith ("/")) {
+            throw new IllegalArgumentException ("websocket path必须以/开头: " + path);
+        }
+        if (path.endsWith ("/*")) {
+            prefix.put (path.substring (0, path.length () - 2), endpointClass);
+        } else {
+            exact.put (path, endpointClass);
+        }
+        log.debug ("注册websocket端点 {} -> {}", path, endpointClass.getName ());
+    }
+
+    public void removeEndpoint(String path) {
+        if (path.endsWith ("/*")) {
+            prefix.remove (path.substring (0, path.length () - 2));
+        } else {
+            exact.remove (path);
+        }
+    }
+
+    /**
+     * @param path 相对于context的路径
+     * @return 没有匹配的端点时返回null
+     */
+    public Class<? extends WebSocketEndpoint> findEndpoint(String path) {
+        Class<? extends WebSocketEndpoint> endpoint = exact.get (path);
+        if (endpoint != null) {
+            return endpoint;
+        }
+        String best = null;
+        for (String p : prefix.keySet ()) {
+            if ((path.equals (p) || path.startsWith (p + "/")) && (best == null || p.length () > best.length ())) {
+                best = p;
+            }
+        }
+        return best == null ? null : prefix.get (best);
+    }
+
+    public boolean isEmpty() {
+        return exact.isEmpty () && prefix.isEmpty ();
+    }
+
+    public Set<WebSocketSession> getSessions() {
+        return Collections.unmodifiableSet (sessions);
+    }
+
+    /**
+     * [Package Private] 握手完成时加入
+     */
+    void addSession(WebSocketSession session) {
+        sessions.add (session);
+    }
+
+    void removeSession(WebSocketSession session) {
+        sessions.remove (session);
+    }
+
+    /**
+     * context关闭时通知所有客户端
+     */
+    public void closeAll(int code, String reason) {
+        for (WebSocketSession session : sessions) {
+            session.close (code, reason);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.websocket;
+
+/**
+ * webapp实现的websocket端点，类似JSR-356的Endpoint，通过{@link WebSocketContainer#addEndpoint}注册
+ * <p>
+ * 每个连接创建一个实例。所有回调都在连接所在的eventloop线程上执行，不能阻塞，
+ * 耗时的操作要交给自己的线程池，发送可以在任意线程调用
+ *
+ * @date 2022/3/6 10:20
+ */
+public interface WebSocketEndpoint {
+
+    /**
+     * 握手完成
+     */
+    default void onOpen(WebSocketSession session) {
+    }
+
+    /**
+     * 一个完整的文本消息，分片的消息会先合并
+     */
+    default void onText(WebSocketSession session, String message) {
+    }
+
+    /**
+     * 一个完整的二进制消息，分片的消息会先合并
+     */
+    default void onBinary(WebSocketSession session, byte[] message) {
+    }
+
+    /**
+     * 连接关闭，没有收到close帧时code为1006
+     */
+    default void onClose(WebSocketSession session, int code, String reason) {
+    }
+
+    /**
+     * 回调抛出异常或者连接出错，之后连接会被关闭
+     */
+    default void onError(WebSocketSession session, Throwable t) {
+    }
+}
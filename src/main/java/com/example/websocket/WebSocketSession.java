@@ -0,0 +1,52 @@
+package com.example.websocket;
+
+import java.security.Principal;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * 一个websocket连接，由容器创建，可以在任意线程发送消息
+ *
+ * @date 2022/3/6 10:25
+ */
+public interface WebSocketSession {
+    int NORMAL_CLOSURE = 1000;
+    int GOING_AWAY = 1001;
+    int UNEXPECTED_CONDITION = 1011;
+    /**
+     * 没有收到close帧就断开了，不会在close帧中发送
+     */
+    int CLOSED_ABNORMALLY = 1006;
+
+    String getId();
+
+    /**
+     * 握手请求的uri，不包括query
+     */
+    String getRequestURI();
+
+    String getQueryString();
+
+    /**
+     * 握手请求认证的用户，没有的话为null
+     */
+    Principal getUserPrincipal();
+
+    /**
+     * 应用自己保存的数据
+     */
+    Map<String, Object> getAttributes();
+
+    boolean isOpen();
+
+    Future<Void> sendText(String message);
+
+    Future<Void> sendBinary(byte[] message);
+
+    /**
+     * 正常关闭，即1000
+     */
+    void close();
+
+    void close(int code, String reason);
+}
@@ -0,0 +1,73 @@
+package com.example.websocket;
+
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.WebConnection;
+
+/**
+ * 通过{@link javax.servlet.http.HttpServletRequest#upgrade}升级为websocket
+ * <p>
+ * 容器不会调用{@link #init(WebConnection)}：servlet返回后由connector在eventloop上把连接的pipeline换成websocket的，
+ * 之后帧直接交给{@link WebSocketEndpoint}，不占用worker线程
+ *
+ * @date 2022/3/6 10:40
+ */
+public class WebSocketUpgradeHandler implements HttpUpgradeHandler {
+    private WebSocketContainer container;
+    private WebSocketEndpoint endpoint;
+    /**
+     * 端点回调时绑定的类加载器，即webapp的
+     */
+    private ClassLoader classLoader;
+
+    /**
+     * servlet调用upgrade之后设置端点
+     *
+     * @param container 用于登记打开的连接，可以为null
+     */
+    public void setEndpoint(WebSocketContainer container, WebSocketEndpoint endpoint) {
+        this.container = container;
+        this.endpoint = endpoint;
+        this.classLoader = Thread.currentThread ().getContextClassLoader ();
+    }
+
+    public WebSocketEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * 握手完成
+     */
+    public void opened(WebSocketSession session) {
+        if (container != null) {
+            container.addSession (session);
+        }
+        endpoint.onOpen (session);
+    }
+
+    /**
+     * 连接已经断开
+     */
+    public void closed(WebSocketSession session, int code, String reason) {
+        if (container != null) {
+            container.removeSession (session);
+        }
+        try {
+            endpoint.onClose (session, code, reason);
+        } finally {
+            destroy ();
+        }
+    }
+
+    @Override
+    public void init(WebConnection wc) {
+        //连接由netty管理
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
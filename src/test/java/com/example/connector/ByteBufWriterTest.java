@@ -0,0 +1,81 @@
+package com.example.connector;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteBufWriterTest {
+    private static final String TEXT = "hello 世界 😀 ünïcödé";
+
+    private String write(Charset charset, String text, int step) throws IOException {
+        ByteBuf buf = Unpooled.buffer ();
+        ByteBufWriter writer = new ByteBufWriter (new ByteBufOutputStream (buf), charset);
+        //逐段写入，emoji的代理对可能被拆到两次写入中
+        for (int i = 0; i < text.length (); i += step) {
+            writer.write (text, i, Math.min (step, text.length () - i));
+        }
+        writer.close ();
+        String s = buf.toString (charset);
+        buf.release ();
+        return s;
+    }
+
+    @Test
+    public void testUtf8() throws IOException {
+        assertEquals (TEXT, write (StandardCharsets.UTF_8, TEXT, TEXT.length ()));
+        for (int step = 1; step < 5; step++) {
+            assertEquals (TEXT, write (StandardCharsets.UTF_8, TEXT, step));
+        }
+    }
+
+    @Test
+    public void testEncoder() throws IOException {
+        Charset gbk = Charset.forName ("GBK");
+        String text = "你好，世界 abc";
+        assertEquals (text, write (gbk, text, text.length ()));
+        assertEquals (text, write (gbk, text, 1));
+
+        Charset utf16 = StandardCharsets.UTF_16LE;
+        assertEquals (TEXT, write (utf16, TEXT, 1));
+    }
+
+    @Test
+    public void testLargeString() throws IOException {
+        StringBuilder sb = new StringBuilder ();
+        for (int i = 0; i < 5000; i++) {
+            sb.append ("<td>数据").append (i).append ("</td>");
+        }
+        String text = sb.toString ();
+        assertEquals (text, write (StandardCharsets.UTF_8, text, text.length ()));
+        assertEquals (text, write (Charset.forName ("GBK"), text, text.length ()));
+    }
+
+    @Test
+    public void testFlushWhenFull() throws IOException {
+        ByteBuf buf = Unpooled.buffer ();
+        int[] flushed = {0};
+        ByteBufOutputStream out = new ByteBufOutputStream (buf) {
+            @Override
+            protected void afterWrite() {
+                if (byteBuf.readableBytes () >= 1024) {
+                    flushed[0] += byteBuf.readableBytes ();
+                    byteBuf.clear ();
+                }
+            }
+        };
+        ByteBufWriter writer = new ByteBufWriter (out, StandardCharsets.UTF_8);
+        char[] chars = new char[100000];
+        java.util.Arrays.fill (chars, 'a');
+        writer.write (chars, 0, chars.length);
+        //分段写入，每段之后都有机会发送
+        assertTrue (flushed[0] >= 90000);
+        assertEquals (100000, flushed[0] + buf.readableBytes ());
+        buf.release ();
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.connector.http;
+
+import io.netty.util.HashedWheelTimer;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControllerTest {
+
+    @Test
+    public void testQueueAndReject() {
+        AdmissionController controller = new AdmissionController (1, 1, 0);
+        List<String> events = new ArrayList<> ();
+
+        controller.submit (() -> events.add ("run1"), () -> events.add ("reject1"));
+        controller.submit (() -> events.add ("run2"), () -> events.add ("reject2"));
+        controller.submit (() -> events.add ("run3"), () -> events.add ("reject3"));
+        assertEquals (1, controller.getRunning ());
+        assertEquals (1, controller.getQueued ());
+
+        //第一个完成后，排队的第二个才执行
+        controller.release ();
+        controller.release ();
+        assertEquals (0, controller.getRunning ());
+
+        assertEquals ("[run1, reject3, run2]", events.toString ());
+        assertEquals (2, controller.getAdmittedCount ());
+        assertEquals (1, controller.getQueuedCount ());
+        assertEquals (1, controller.getRejectedCount ());
+    }
+
+    @Test
+    public void testQueueTimeout() throws InterruptedException {
+        AdmissionController controller = new AdmissionController (1, 10, 1);
+        List<String> events = new ArrayList<> ();
+
+        controller.submit (() -> events.add ("run1"), () -> events.add ("reject1"));
+        controller.submit (() -> events.add ("run2"), () -> events.add ("reject2"));
+        Thread.sleep (10);
+        controller.release ();
+
+        assertEquals ("[run1, reject2]", events.toString ());
+        assertEquals (1, controller.getTimedOutCount ());
+        assertEquals (0, controller.getRunning ());
+    }
+
+    @Test
+    public void testQueueTimeoutWithoutRelease() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer (10, TimeUnit.MILLISECONDS);
+        try {
+            AdmissionController controller = new AdmissionController (1, 10, 50, timer);
+            List<String> events = new CopyOnWriteArrayList<> ();
+            CountDownLatch rejected = new CountDownLatch (1);
+
+            controller.submit (() -> events.add ("run1"), () -> events.add ("reject1"));
+            controller.submit (() -> events.add ("run2"), () -> {
+                events.add ("reject2");
+                rejected.countDown ();
+            });
+            //第一个请求一直没有完成，排队的请求仍然按时被拒绝
+            assertTrue (rejected.await (5, TimeUnit.SECONDS));
+            assertEquals ("[run1, reject2]", events.toString ());
+            assertEquals (1, controller.getTimedOutCount ());
+            assertEquals (0, controller.getQueued ());
+            assertEquals (1, controller.getRunning ());
+
+            controller.release ();
+            assertEquals (1, controller.getTimedOutCount ());
+            assertEquals (0, controller.getRunning ());
+        } finally {
+            timer.stop ();
+        }
+    }
+
+    @Test
+    public void testQueueTimeoutCancelledOnAdmission() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer (10, TimeUnit.MILLISECONDS);
+        try {
+            AdmissionController controller = new AdmissionController (1, 10, 50, timer);
+            List<String> events = new CopyOnWriteArrayList<> ();
+
+            controller.submit (() -> events.add ("run1"), () -> events.add ("reject1"));
+            controller.submit (() -> events.add ("run2"), () -> events.add ("reject2"));
+            controller.release ();
+            Thread.sleep (200);
+
+            assertEquals ("[run1, run2]", events.toString ());
+            assertEquals (0, controller.getTimedOutCount ());
+        } finally {
+            timer.stop ();
+        }
+    }
+
+    @Test
+    public void testUnlimited() {
+        AdmissionController controller = new AdmissionController (0, 0, 0);
+        List<String> events = new ArrayList<> ();
+        for (int i = 0; i < 10; i++) {
+            controller.submit (() -> events.add ("run"), () -> events.add ("reject"));
+        }
+        assertEquals (10, controller.getRunning ());
+        assertEquals (0, controller.getRejectedCount ());
+    }
+
+    @Test
+    public void testQueuedTaskRunsOnExecutor() {
+        AdmissionController controller = new AdmissionController (1, 10, 0);
+        List<String> events = new ArrayList<> ();
+        List<Runnable> executor = new ArrayList<> ();
+
+        controller.submit (() -> events.add ("run1"), () -> events.add ("reject1"), executor::add);
+        controller.submit (() -> events.add ("run2"), () -> events.add ("reject2"), executor::add);
+        //release不在自己的调用栈上执行下一个请求
+        controller.release ();
+        assertEquals ("[run1]", events.toString ());
+        assertEquals (1, executor.size ());
+        assertEquals (1, controller.getRunning ());
+
+        executor.get (0).run ();
+        assertEquals ("[run1, run2]", events.toString ());
+    }
+
+    @Test
+    public void testQueuedTaskExecutorRejected() {
+        AdmissionController controller = new AdmissionController (1, 10, 0);
+        List<String> events = new ArrayList<> ();
+
+        controller.submit (() -> events.add ("run1"), () -> events.add ("reject1"));
+        controller.submit (() -> events.add ("run2"), () -> events.add ("reject2"), task -> {
+            throw new RejectedExecutionException ();
+        });
+        controller.release ();
+
+        assertEquals ("[run1, reject2]", events.toString ());
+        assertEquals (0, controller.getRunning ());
+        assertEquals (1, controller.getAdmittedCount ());
+        assertEquals (1, controller.getRejectedCount ());
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.connector.http;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpectContinueHandlerTest {
+
+    private HttpRequest request(long contentLength, boolean expect) {
+        HttpRequest request = new DefaultHttpRequest (HttpVersion.HTTP_1_1, HttpMethod.POST, "/upload");
+        HttpUtil.setContentLength (request, contentLength);
+        if (expect) {
+            HttpUtil.set100ContinueExpected (request, true);
+        }
+        return request;
+    }
+
+    @Test
+    public void testContinue() {
+        EmbeddedChannel channel = new EmbeddedChannel (new ExpectContinueHandler (10));
+        channel.writeInbound (request (10, true));
+
+        HttpResponse out = channel.readOutbound ();
+        assertEquals (HttpResponseStatus.CONTINUE, out.status ());
+        HttpRequest in = channel.readInbound ();
+        assertFalse (HttpUtil.is100ContinueExpected (in));
+        assertTrue (channel.isActive ());
+        channel.finishAndReleaseAll ();
+    }
+
+    @Test
+    public void testExpectTooLarge() {
+        EmbeddedChannel channel = new EmbeddedChannel (new ExpectContinueHandler (10));
+        channel.writeInbound (request (11, true));
+
+        HttpResponse out = channel.readOutbound ();
+        assertEquals (HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, out.status ());
+        assertNull (channel.readInbound ());
+        assertFalse (channel.isActive ());
+        channel.finishAndReleaseAll ();
+    }
+
+    @Test
+    public void testTooLargeWithoutExpect() {
+        EmbeddedChannel channel = new EmbeddedChannel (new ExpectContinueHandler (10));
+        channel.writeInbound (request (11, false));
+
+        HttpResponse out = channel.readOutbound ();
+        assertEquals (HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, out.status ());
+        assertEquals (HttpHeaderValues.CLOSE.toString (), out.headers ().get (HttpHeaderNames.CONNECTION));
+        assertNull (channel.readInbound ());
+        assertFalse (channel.isActive ());
+        channel.finishAndReleaseAll ();
+    }
+
+    @Test
+    public void testWithinLimit() {
+        EmbeddedChannel channel = new EmbeddedChannel (new ExpectContinueHandler (10));
+        channel.writeInbound (request (10, false));
+
+        assertNull (channel.readOutbound ());
+        assertNotNull (channel.readInbound ());
+        assertTrue (channel.isActive ());
+        channel.finishAndReleaseAll ();
+    }
+}
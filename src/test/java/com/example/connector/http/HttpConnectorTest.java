@@ -2,15 +2,60 @@ package com.example.connector.http;
 
 import com.example.Container;
 import com.example.life.LifecycleException;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
 import org.junit.jupiter.api.Test;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletException;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
 class HttpConnectorTest {
@@ -34,8 +79,8 @@ class HttpConnectorTest {
                 writer.write (s);
             }
             writer.flush ();
-            argument.headers.forEach ((k, v) ->
-                    writer.write (String.format ("%s : %s\n", k, v)));
+            Collections.list (argument.getHeaderNames ()).forEach (k ->
+                    writer.write (String.format ("%s : %s\n", k, Collections.list (argument.getHeaders (k)))));
             return null;
         }).when (container).invoke (any (), any ());
         connector.setContainer (container);
@@ -47,4 +92,235 @@ class HttpConnectorTest {
         System.out.println ("stop");
         connector.stop ();
     }
+
+    @Test
+    public void testProcessorPool() throws LifecycleException {
+        HttpConnector connector = new HttpConnector ();
+        connector.setPort (18080);
+        connector.setMaxProcessors (1);
+        connector.start ();
+
+        HttpProcessor p1 = connector.createProcessor ();
+        HttpProcessor p2 = connector.createProcessor ();
+        assertEquals (2, connector.getRunningProcessors ());
+        assertEquals (2, connector.getCreatedProcessors ());
+
+        connector.recycleProcessor (p1);
+        connector.recycleProcessor (p2);
+        //池的大小为1，所以p2被丢弃
+        assertEquals (0, connector.getRunningProcessors ());
+        assertEquals (1, connector.getIdleProcessors ());
+        assertEquals (1, connector.getDiscardedProcessors ());
+        assertFalse (p2.isRunning ());
+
+        assertSame (p1, connector.createProcessor ());
+        assertEquals (1, connector.getReusedProcessors ());
+        assertEquals (0, connector.getIdleProcessors ());
+
+        connector.stop ();
+        assertFalse (p1.isRunning ());
+    }
+
+    @Test
+    public void testTlsAlpnAndResumption() throws Exception {
+        SelfSignedCertificate cert = new SelfSignedCertificate ();
+        HttpConnector connector = new HttpConnector ();
+        connector.setPort (18443);
+        connector.setSslEnabled (true);
+        connector.setProtocol (Constants.PROTOCOL_H2);
+        connector.setKeystoreFile (createKeystore (cert));
+        connector.setKeystorePass ("changeit");
+        connector.start ();
+        try {
+            assertEquals ("https", connector.getScheme ());
+            SSLContext client = SSLContext.getInstance ("TLS");
+            client.init (null, InsecureTrustManagerFactory.INSTANCE.getTrustManagers (), null);
+
+            byte[] first = handshake (client, "h2");
+            //同一个客户端再次连接时恢复session，不需要完整握手
+            byte[] second = handshake (client, "h2");
+            assertArrayEquals (first, second);
+            //不支持h2的客户端仍然可以用http/1.1
+            handshake (client, "http/1.1");
+        } finally {
+            connector.stop ();
+            cert.delete ();
+        }
+    }
+
+    @Test
+    public void testH2StreamOutlivesKeepAliveTimeout() throws Exception {
+        SelfSignedCertificate cert = new SelfSignedCertificate ();
+        HttpConnector connector = new HttpConnector ();
+        connector.setPort (18444);
+        connector.setSslEnabled (true);
+        connector.setProtocol (Constants.PROTOCOL_H2);
+        connector.setKeystoreFile (createKeystore (cert));
+        connector.setKeystorePass ("changeit");
+        //冷启动的JVM上TLS握手可能要几百毫秒，握手期间http/1.1的空闲检查还在，超时太短会在握手时就关闭连接
+        connector.setKeepAliveTimeout (1000);
+        Container container = mock (Container.class);
+        doAnswer (invocation -> {
+            //处理时间超过keepAliveTimeout，连接上这段时间没有任何读写
+            Thread.sleep (3000);
+            HttpResponseImpl response = invocation.getArgument (1);
+            response.getWriter ().write ("slow");
+            return null;
+        }).when (container).invoke (any (), any ());
+        connector.setContainer (container);
+        connector.start ();
+        NioEventLoopGroup group = new NioEventLoopGroup (1);
+        try {
+            SslContext sslContext = SslContextBuilder.forClient ()
+                    .sslProvider (SslProvider.JDK)
+                    .trustManager (InsecureTrustManagerFactory.INSTANCE)
+                    .ciphers (Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                    .applicationProtocolConfig (new ApplicationProtocolConfig (
+                            ApplicationProtocolConfig.Protocol.ALPN,
+                            ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                            ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                            ApplicationProtocolNames.HTTP_2))
+                    .build ();
+            Channel channel = new Bootstrap ()
+                    .group (group)
+                    .channel (NioSocketChannel.class)
+                    .handler (new ChannelInitializer<Channel> () {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline ().addLast (sslContext.newHandler (ch.alloc (), "localhost", 18444),
+                                    Http2FrameCodecBuilder.forClient ().build (),
+                                    new Http2MultiplexHandler (new ChannelInboundHandlerAdapter ()));
+                        }
+                    })
+                    .connect ("localhost", 18444).sync ().channel ();
+            CompletableFuture<FullHttpResponse> future = new CompletableFuture<> ();
+            Http2StreamChannel stream = new Http2StreamChannelBootstrap (channel)
+                    .handler (new ChannelInitializer<Channel> () {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline ().addLast (new Http2StreamFrameToHttpObjectCodec (false),
+                                    new HttpObjectAggregator (8192),
+                                    new SimpleChannelInboundHandler<FullHttpResponse> () {
+                                        @Override
+                                        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) {
+                                            future.complete (msg.retain ());
+                                        }
+                                    });
+                        }
+                    })
+                    .open ().sync ().getNow ();
+            FullHttpRequest request = new DefaultFullHttpRequest (HttpVersion.HTTP_1_1, HttpMethod.GET, "/slow");
+            request.headers ().set (HttpHeaderNames.HOST, "localhost");
+            stream.writeAndFlush (request);
+
+            FullHttpResponse response = future.get (10, TimeUnit.SECONDS);
+            try {
+                assertEquals (200, response.status ().code ());
+                assertEquals ("slow", response.content ().toString (StandardCharsets.UTF_8));
+            } finally {
+                response.release ();
+            }
+            //stream处理期间连接没有因为keepAliveTimeout被关闭
+            assertTrue (channel.isActive ());
+            //stream结束后连接空闲，超过keepAliveTimeout被服务端关闭
+            assertTrue (channel.closeFuture ().await (5, TimeUnit.SECONDS));
+        } finally {
+            group.shutdownGracefully ();
+            connector.stop ();
+            cert.delete ();
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        HttpConnector connector = new HttpConnector ();
+        connector.setPort (18081);
+        Container container = mock (Container.class);
+        doAnswer (invocation -> {
+            HttpRequestImpl request = invocation.getArgument (0);
+            HttpResponseImpl response = invocation.getArgument (1);
+            request.setAsyncSupported (true);
+            String uri = request.getDecodedRequestURI ();
+            if (request.getDispatcherType () == DispatcherType.ASYNC) {
+                response.getWriter ().write ("dispatched " + uri);
+            } else if (uri.equals ("/complete")) {
+                AsyncContext asyncContext = request.startAsync ();
+                asyncContext.start (() -> {
+                    try {
+                        asyncContext.getResponse ().getWriter ().write ("completed");
+                    } catch (IOException e) {
+                        throw new IllegalStateException (e);
+                    }
+                    asyncContext.complete ();
+                });
+            } else if (uri.equals ("/dispatch")) {
+                request.startAsync ().dispatch ("/target");
+            } else if (uri.equals ("/timeout")) {
+                request.startAsync ().setTimeout (200);
+            }
+            return null;
+        }).when (container).invoke (any (), any ());
+        connector.setContainer (container);
+        connector.start ();
+        try {
+            assertTrue (get (18081, "/complete").endsWith ("completed"));
+            assertTrue (get (18081, "/dispatch").endsWith ("dispatched /target"));
+            //没有complete的请求超时后回复500
+            assertTrue (get (18081, "/timeout").startsWith ("HTTP/1.1 500"));
+            //响应发出之后才回收processor，客户端读到响应时可能还没结束
+            long deadline = System.currentTimeMillis () + 1000;
+            while (connector.getActiveRequests () != 0 && System.currentTimeMillis () < deadline) {
+                Thread.sleep (10);
+            }
+            assertEquals (0, connector.getActiveRequests ());
+        } finally {
+            connector.stop ();
+        }
+    }
+
+    private String get(int port, String uri) throws IOException {
+        try (Socket socket = new Socket ("localhost", port)) {
+            socket.setSoTimeout (5000);
+            OutputStream out = socket.getOutputStream ();
+            out.write (("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes (StandardCharsets.US_ASCII));
+            out.flush ();
+            ByteArrayOutputStream response = new ByteArrayOutputStream ();
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = socket.getInputStream ().read (buf)) != -1) {
+                response.write (buf, 0, n);
+            }
+            return response.toString ("US-ASCII");
+        }
+    }
+
+    private String createKeystore(SelfSignedCertificate cert) throws Exception {
+        File keystore = File.createTempFile ("keystore", ".p12");
+        keystore.deleteOnExit ();
+        KeyStore ks = KeyStore.getInstance ("PKCS12");
+        ks.load (null, null);
+        ks.setKeyEntry ("server", cert.key (), "changeit".toCharArray (), new Certificate[]{cert.cert ()});
+        try (OutputStream out = new FileOutputStream (keystore)) {
+            ks.store (out, "changeit".toCharArray ());
+        }
+        return keystore.getAbsolutePath ();
+    }
+
+    /**
+     * 固定使用TLSv1.2，这样恢复的session id和第一次相同
+     *
+     * @return session id
+     */
+    private byte[] handshake(SSLContext client, String protocol) throws IOException {
+        try (SSLSocket socket = (SSLSocket) client.getSocketFactory ().createSocket ("localhost", 18443)) {
+            SSLParameters parameters = socket.getSSLParameters ();
+            parameters.setProtocols (new String[]{"TLSv1.2"});
+            parameters.setApplicationProtocols (new String[]{protocol});
+            socket.setSSLParameters (parameters);
+            socket.startHandshake ();
+            assertEquals (protocol, socket.getApplicationProtocol ());
+            return socket.getSession ().getId ();
+        }
+    }
 }
@@ -1,9 +1,14 @@
 package com.example.connector.http;
 
 import com.example.Container;
+import com.example.Globals;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.FileRegion;
+import io.netty.channel.unix.DomainSocketAddress;
 import io.netty.handler.codec.http.*;
 import io.netty.util.CharsetUtil;
 import org.junit.jupiter.api.BeforeEach;
@@ -14,9 +19,14 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.Cookie;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -51,6 +61,8 @@ class HttpProcessorTest {
         handlerContext = mock (ChannelHandlerContext.class);
 
         when (connector.getContainer ()).thenReturn (container);
+        //HttpProcessor通过getContainerInternal拿到container
+        when (connector.getContainerInternal ()).thenReturn (container);
         when (connector.createRequest ()).thenReturn (new HttpRequestImpl (connector));
         when (connector.createResponse ()).thenReturn (new HttpResponseImpl (connector));
 
@@ -132,12 +144,19 @@ class HttpProcessorTest {
             }
             return null;
         });
-        doAnswer (invocation -> {
-            FullHttpResponse response = invocation.getArgument (0);
-            System.out.println (response.content ().toString (Charset.defaultCharset ()));
-            assertEquals (response.content ().toString (Charset.defaultCharset ()), sf + s1);
+        //writer.flush会提交响应，header和body分开以chunk的形式发送
+        StringBuilder body = new StringBuilder ();
+        List<Object> written = new ArrayList<> ();
+        Answer<Object> collect = invocation -> {
+            Object msg = invocation.getArgument (0);
+            written.add (msg);
+            if (msg instanceof HttpContent) {
+                body.append (((HttpContent) msg).content ().toString (Charset.defaultCharset ()));
+            }
             return null;
-        }).when (handlerContext).writeAndFlush (any ());
+        };
+        doAnswer (collect).when (handlerContext).writeAndFlush (any ());
+        doAnswer (collect).when (handlerContext).write (any ());
 
         ByteBuf byteBuf = Unpooled.wrappedBuffer (sf.getBytes (Charset.defaultCharset ()));
         request = new DefaultFullHttpRequest (HttpVersion.HTTP_1_1, HttpMethod.GET, testUri2, byteBuf);
@@ -145,6 +164,15 @@ class HttpProcessorTest {
         headers.set ("Accept-Language", "fr-CH, fr;q=0.9, en;q=0.8, de;q=0.7, *;q=0.5");
         headers.set ("Cookie", "user_locale=zh-CN; oschina_new_user=false; remove_member_bulletin=gitee_member_bulletin; close_wechat_tour=true");
         httpProcessor.process (request, handlerContext);
+
+        //container没有被调用时只会写出一个空的完整响应，下面的断言都没有意义
+        verify (container).invoke (any (), any ());
+        assertEquals (sf + s1, body.toString ());
+        assertTrue (written.size () > 2);
+        assertTrue (written.get (0) instanceof HttpResponse);
+        assertEquals (HttpResponseStatus.OK, ((HttpResponse) written.get (0)).status ());
+        assertTrue (HttpUtil.isTransferEncodingChunked ((HttpResponse) written.get (0)));
+        assertTrue (written.get (written.size () - 1) instanceof LastHttpContent);
     }
 
     @Test
@@ -171,6 +199,62 @@ class HttpProcessorTest {
         httpProcessor.process (request, handlerContext);
     }
 
+    @Test
+    public void testUnixSocketRemoteAddress() throws IOException, ServletException {
+        when (connector.getRemoteIpHeader ()).thenReturn (Constants.DEFAULT_REMOTE_IP_HEADER);
+        Channel channel = mock (Channel.class);
+        when (channel.remoteAddress ()).thenReturn (new DomainSocketAddress ("/tmp/jerrymouse.sock"));
+        when (handlerContext.channel ()).thenReturn (channel);
+        containerDo (invocation -> {
+            HttpRequestImpl argument = invocation.getArgument (0);
+            //只信任直接相连的代理追加的最后一个值
+            assertEquals ("10.0.0.2", argument.getRemoteAddr ());
+            assertEquals ("localhost", argument.getServerName ());
+            return null;
+        });
+
+        request = new DefaultFullHttpRequest (HttpVersion.HTTP_1_1, HttpMethod.GET, testUri2);
+        request.headers ().set ("X-Forwarded-For", "1.1.1.1, 10.0.0.2");
+        httpProcessor.process (request, handlerContext);
+        verify (container).invoke (any (), any ());
+    }
+
+    @Test
+    public void testSendfileChunkedOnlyWhenCompressed() throws Exception {
+        File file = File.createTempFile ("sendfile", ".html");
+        file.deleteOnExit ();
+        Files.write (file.toPath (), new byte[4096]);
+        ChannelPipeline pipeline = mock (ChannelPipeline.class);
+        when (pipeline.get (HttpResponseCompressor.class))
+                .thenReturn (new HttpResponseCompressor (false, 1024, Collections.singleton ("text/html")));
+        when (handlerContext.pipeline ()).thenReturn (pipeline);
+        List<Object> written = new ArrayList<> ();
+        Answer<Object> collect = invocation -> {
+            written.add (invocation.getArgument (0));
+            return null;
+        };
+        doAnswer (collect).when (handlerContext).writeAndFlush (any ());
+        doAnswer (collect).when (handlerContext).write (any ());
+        containerDo (invocation -> {
+            HttpRequestImpl argument = invocation.getArgument (0);
+            HttpResponseImpl resp = invocation.getArgument (1);
+            resp.setContentType ("text/html");
+            argument.setAttribute (Globals.SENDFILE_FILENAME_ATTR, file.getAbsolutePath ());
+            return null;
+        });
+
+        //客户端不接受压缩，compressor不会处理这个响应，仍然可以用FileRegion
+        request = new DefaultFullHttpRequest (HttpVersion.HTTP_1_1, HttpMethod.GET, testUri2);
+        httpProcessor.process (request, handlerContext);
+        assertTrue (written.get (1) instanceof FileRegion);
+
+        written.clear ();
+        request = new DefaultFullHttpRequest (HttpVersion.HTTP_1_1, HttpMethod.GET, testUri2);
+        request.headers ().set (HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+        httpProcessor.process (request, handlerContext);
+        assertTrue (written.get (1) instanceof HttpChunkedInput);
+    }
+
     @Test
     public void testURI() {
         request = new DefaultFullHttpRequest (HttpVersion.HTTP_1_1, HttpMethod.GET, testUri5);
@@ -234,4 +318,20 @@ class HttpProcessorTest {
         headers.set ("Cookie", "JSESSIONID=0dsadaxdsax12");
         httpProcessor.process (request, handlerContext);
     }
+
+    @Test
+    public void testSessionParserUrlOverCookie() throws ServletException, IOException {
+        containerDo (invocation -> {
+            HttpRequestImpl request = invocation.getArgument (0);
+            //url中的id优先
+            assertEquals (request.getRequestedSessionId (),"0dsadaxdsax12");
+            assertTrue (request.isRequestedSessionIdFromURL ());
+            assertTrue (request.isRequestedSessionIdFromCookie ());
+            return null;
+        });
+
+        request = new DefaultFullHttpRequest (HttpVersion.HTTP_1_1, HttpMethod.GET, testUri4);
+        request.headers ().set ("Cookie", "JSESSIONID=cookieid");
+        httpProcessor.process (request, handlerContext);
+    }
 }
@@ -0,0 +1,104 @@
+package com.example.connector.http;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpResponseCompressorTest {
+    Set<String> mimeTypes = new HashSet<> (Arrays.asList ("text/html", "application/json"));
+
+    private HttpResponseCompressor compressor() {
+        return new HttpResponseCompressor (false, 1024, mimeTypes);
+    }
+
+    private static HttpResponse response(String contentType, int length) {
+        HttpResponse response = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                Unpooled.wrappedBuffer (new byte[length]));
+        if (contentType != null) {
+            response.headers ().set (HttpHeaderNames.CONTENT_TYPE, contentType);
+        }
+        HttpUtil.setContentLength (response, length);
+        return response;
+    }
+
+    /**
+     * 经过compressor发送一个请求和它的响应
+     *
+     * @return 响应的Content-Encoding，没有压缩时为null
+     */
+    private static String encode(HttpResponseCompressor compressor, String acceptEncoding, HttpResponse response) {
+        EmbeddedChannel channel = new EmbeddedChannel (compressor);
+        try {
+            HttpRequest request = new DefaultFullHttpRequest (HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+            if (acceptEncoding != null) {
+                request.headers ().set (HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+            }
+            channel.writeInbound (request);
+            channel.writeOutbound (response);
+            HttpResponse head = channel.readOutbound ();
+            return head.headers ().get (HttpHeaderNames.CONTENT_ENCODING);
+        } finally {
+            channel.finishAndReleaseAll ();
+        }
+    }
+
+    @Test
+    void testAcceptEncoding() {
+        assertEquals ("gzip", encode (compressor (), "gzip, deflate", response ("text/html", 2048)));
+        assertEquals ("deflate", encode (compressor (), "deflate", response ("text/html", 2048)));
+        assertEquals ("gzip", encode (compressor (), "*", response ("text/html", 2048)));
+        //客户端不支持或者没有声明
+        assertNull (encode (compressor (), "br", response ("text/html", 2048)));
+        assertNull (encode (compressor (), null, response ("text/html", 2048)));
+    }
+
+    @Test
+    void testMinSize() {
+        assertNull (encode (compressor (), "gzip", response ("text/html", 100)));
+        assertEquals ("gzip", encode (compressor (), "gzip", response ("text/html", 1024)));
+
+        //force模式下忽略大小和类型
+        HttpResponseCompressor force = new HttpResponseCompressor (true, 1024, mimeTypes);
+        assertEquals ("gzip", encode (force, "gzip", response ("image/png", 100)));
+        assertNull (encode (new HttpResponseCompressor (true, 1024, mimeTypes), null, response ("image/png", 100)));
+    }
+
+    @Test
+    void testContentType() {
+        assertEquals ("gzip", encode (compressor (), "gzip", response ("Application/JSON; charset=utf-8", 2048)));
+        assertNull (encode (compressor (), "gzip", response ("image/png", 2048)));
+        assertNull (encode (compressor (), "gzip", response (null, 2048)));
+    }
+
+    @Test
+    void testNotCompressible() {
+        HttpResponse range = response ("text/html", 2048);
+        range.setStatus (HttpResponseStatus.PARTIAL_CONTENT);
+        range.headers ().set (HttpHeaderNames.CONTENT_RANGE, "bytes 0-2047/4096");
+        assertFalse (compressor ().isCompressible (range));
+
+        HttpResponse encoded = response ("text/html", 2048);
+        encoded.headers ().set (HttpHeaderNames.CONTENT_ENCODING, "br");
+        assertFalse (compressor ().isCompressible (encoded));
+        assertEquals ("br", encode (compressor (), "gzip", encoded));
+    }
+
+    @Test
+    void testWillCompress() {
+        //sendfile根据这个决定能否使用FileRegion
+        HttpResponseCompressor compressor = compressor ();
+        HttpResponse file = response ("text/html", 4096);
+        assertTrue (compressor.willCompress (file, "gzip"));
+        assertFalse (compressor.willCompress (file, null));
+        assertFalse (compressor.willCompress (file, "identity"));
+        assertFalse (compressor.willCompress (file, "gzip;q=0"));
+        assertFalse (compressor.willCompress (response ("image/png", 4096), "gzip"));
+    }
+}
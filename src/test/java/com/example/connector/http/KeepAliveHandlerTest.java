@@ -0,0 +1,83 @@
+package com.example.connector.http;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class KeepAliveHandlerTest {
+    HttpConnector connector = mock (HttpConnector.class);
+
+    @BeforeEach
+    void setUp() {
+        when (connector.getMaxKeepAliveRequests ()).thenReturn (2);
+    }
+
+    private FullHttpRequest request(HttpVersion version) {
+        return new DefaultFullHttpRequest (version, HttpMethod.GET, "/test");
+    }
+
+    private FullHttpResponse response() {
+        FullHttpResponse response = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        HttpUtil.setContentLength (response, 0);
+        return response;
+    }
+
+    @Test
+    public void testKeepAlive() {
+        EmbeddedChannel channel = new EmbeddedChannel (new KeepAliveHandler (connector));
+        channel.writeInbound (request (HttpVersion.HTTP_1_1));
+        channel.writeOutbound (response ());
+
+        HttpResponse out = channel.readOutbound ();
+        assertFalse (out.headers ().contains (HttpHeaderNames.CONNECTION));
+        assertTrue (channel.isActive ());
+        channel.finishAndReleaseAll ();
+    }
+
+    @Test
+    public void testClientClose() {
+        EmbeddedChannel channel = new EmbeddedChannel (new KeepAliveHandler (connector));
+        FullHttpRequest request = request (HttpVersion.HTTP_1_1);
+        request.headers ().set (HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        channel.writeInbound (request);
+        channel.writeOutbound (response ());
+
+        HttpResponse out = channel.readOutbound ();
+        assertEquals (HttpHeaderValues.CLOSE.toString (), out.headers ().get (HttpHeaderNames.CONNECTION));
+        assertFalse (channel.isActive ());
+        verify (connector).connectionClosed (KeepAliveHandler.CloseReason.CLIENT_REQUESTED);
+        channel.finishAndReleaseAll ();
+    }
+
+    @Test
+    public void testHttp10KeepAlive() {
+        EmbeddedChannel channel = new EmbeddedChannel (new KeepAliveHandler (connector));
+        FullHttpRequest request = request (HttpVersion.HTTP_1_0);
+        request.headers ().set (HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        channel.writeInbound (request);
+        channel.writeOutbound (response ());
+
+        HttpResponse out = channel.readOutbound ();
+        assertEquals (HttpHeaderValues.KEEP_ALIVE.toString (), out.headers ().get (HttpHeaderNames.CONNECTION));
+        assertTrue (channel.isActive ());
+        channel.finishAndReleaseAll ();
+    }
+
+    @Test
+    public void testMaxKeepAliveRequests() {
+        EmbeddedChannel channel = new EmbeddedChannel (new KeepAliveHandler (connector));
+        channel.writeInbound (request (HttpVersion.HTTP_1_1));
+        channel.writeOutbound (response ());
+        assertTrue (channel.isActive ());
+
+        channel.writeInbound (request (HttpVersion.HTTP_1_1));
+        channel.writeOutbound (response ());
+        assertFalse (channel.isActive ());
+        verify (connector).connectionClosed (KeepAliveHandler.CloseReason.MAX_KEEP_ALIVE_REQUESTS);
+        channel.finishAndReleaseAll ();
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.connector.http;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultipartParserTest {
+    static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+    File location;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        location = Files.createTempDirectory ("multipart").toFile ();
+    }
+
+    @AfterEach
+    void tearDown() {
+        File[] files = location.listFiles ();
+        if (files != null) {
+            for (File file : files) {
+                file.delete ();
+            }
+        }
+        location.delete ();
+    }
+
+    private byte[] body(String fileContent) {
+        String s = "preamble\r\n" +
+                "--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"user\"\r\n" +
+                "\r\n" +
+                "张三\r\n" +
+                "--" + BOUNDARY + "\r\n" +
+                "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "\r\n" +
+                fileContent + "\r\n" +
+                "--" + BOUNDARY + "--\r\n";
+        return s.getBytes (StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 每次只返回一个字节，boundary一定会被拆开
+     */
+    private InputStream slow(byte[] bytes) {
+        return new ByteArrayInputStream (bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read (b, off, Math.min (len, 1));
+            }
+        };
+    }
+
+    private MultipartParser parser(InputStream in, long maxFileSize, int threshold) {
+        return new MultipartParser (in, BOUNDARY, StandardCharsets.UTF_8, location,
+                maxFileSize, -1, threshold);
+    }
+
+    private String read(PartImpl part) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream ();
+        try (InputStream in = part.getInputStream ()) {
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = in.read (buf)) != -1) {
+                out.write (buf, 0, n);
+            }
+        }
+        return new String (out.toByteArray (), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        String content = "line1\r\n--not a boundary\r\nline3";
+        List<PartImpl> parts = parser (slow (body (content)), -1, 1024).parse ();
+        assertEquals (2, parts.size ());
+
+        PartImpl user = parts.get (0);
+        assertEquals ("user", user.getName ());
+        assertNull (user.getSubmittedFileName ());
+        assertEquals ("张三", user.getString (StandardCharsets.UTF_8));
+
+        PartImpl file = parts.get (1);
+        assertEquals ("a.txt", file.getSubmittedFileName ());
+        assertEquals ("text/plain", file.getContentType ());
+        assertEquals (content, read (file));
+        assertTrue (file.isInMemory ());
+    }
+
+    @Test
+    public void testSpillToDisk() throws IOException {
+        StringBuilder sb = new StringBuilder ();
+        for (int i = 0; i < 10000; i++) {
+            sb.append ("0123456789");
+        }
+        List<PartImpl> parts = parser (new ByteArrayInputStream (body (sb.toString ())), -1, 1024).parse ();
+        PartImpl file = parts.get (1);
+        assertFalse (file.isInMemory ());
+        assertEquals (100000, file.getSize ());
+        assertEquals (sb.toString (), read (file));
+        assertEquals (1, location.listFiles ().length);
+
+        file.delete ();
+        assertEquals (0, location.listFiles ().length);
+    }
+
+    @Test
+    public void testMaxFileSize() {
+        assertThrows (IllegalStateException.class,
+                () -> parser (new ByteArrayInputStream (body ("0123456789")), 5, 0).parse ());
+        //已经生成的临时文件要删除
+        assertEquals (0, location.listFiles ().length);
+    }
+
+    @Test
+    public void testTruncated() {
+        byte[] bytes = body ("content");
+        byte[] truncated = new byte[bytes.length - 10];
+        System.arraycopy (bytes, 0, truncated, 0, truncated.length);
+        assertThrows (IOException.class, () -> parser (new ByteArrayInputStream (truncated), -1, 1024).parse ());
+    }
+
+    @Test
+    public void testBoundaryAndDisposition() {
+        assertEquals ("abc", MultipartParser.getBoundary ("multipart/form-data; boundary=abc"));
+        assertEquals ("a b", MultipartParser.getBoundary ("multipart/form-data; charset=utf-8; boundary=\"a b\""));
+        assertNull (MultipartParser.getBoundary ("multipart/form-data"));
+
+        Map<String, String> params = MultipartParser.parseDisposition (
+                "form-data; name=\"file\"; filename=\"C:\\dir\\a \\\"b\\\".txt\"");
+        assertEquals ("file", params.get ("name"));
+        assertEquals ("C:\\dir\\a \"b\".txt", params.get ("filename"));
+    }
+}
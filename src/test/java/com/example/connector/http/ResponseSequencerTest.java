@@ -0,0 +1,146 @@
+package com.example.connector.http;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseSequencerTest {
+    EmbeddedChannel channel;
+    ResponseSequencer sequencer;
+    int flushes;
+
+    @BeforeEach
+    void setUp() {
+        flushes = 0;
+        channel = new EmbeddedChannel (new ChannelOutboundHandlerAdapter () {
+            @Override
+            public void flush(ChannelHandlerContext ctx) {
+                flushes++;
+                ctx.flush ();
+            }
+        }, new ChannelInboundHandlerAdapter ());
+        sequencer = new ResponseSequencer (channel.pipeline ().lastContext ());
+    }
+
+    private FullHttpResponse response(String body) {
+        FullHttpResponse response = new DefaultFullHttpResponse (HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                Unpooled.copiedBuffer (body, StandardCharsets.UTF_8));
+        HttpUtil.setContentLength (response, body.length ());
+        return response;
+    }
+
+    private String body(Object msg) {
+        FullHttpResponse response = (FullHttpResponse) msg;
+        String body = response.content ().toString (StandardCharsets.UTF_8);
+        response.release ();
+        return body;
+    }
+
+    @Test
+    public void testOutOfOrder() {
+        long first = sequencer.register ();
+        long second = sequencer.register ();
+        long third = sequencer.register ();
+
+        sequencer.write (third, response ("3"), true);
+        sequencer.write (second, response ("2"), true);
+        channel.runPendingTasks ();
+        assertNull (channel.readOutbound ());
+        assertEquals (2, sequencer.heldResponses ());
+
+        sequencer.write (first, response ("1"), true);
+        channel.runPendingTasks ();
+        assertEquals ("1", body (channel.readOutbound ()));
+        assertEquals ("2", body (channel.readOutbound ()));
+        assertEquals ("3", body (channel.readOutbound ()));
+        //三个响应一次flush
+        assertEquals (1, flushes);
+        assertEquals (0, sequencer.heldResponses ());
+        assertFalse (channel.finish ());
+    }
+
+    @Test
+    public void testChunkedResponseNotInterleaved() {
+        ResponseSequencer.Slot first = sequencer.slot (sequencer.register ());
+        ResponseSequencer.Slot second = sequencer.slot (sequencer.register ());
+
+        first.write (new DefaultHttpResponse (HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+        second.writeAndFlush (response ("2"));
+        first.writeAndFlush (new DefaultHttpContent (Unpooled.copiedBuffer ("1", StandardCharsets.UTF_8)));
+        channel.runPendingTasks ();
+        assertTrue (channel.readOutbound () instanceof HttpResponse);
+        HttpContent chunk = channel.readOutbound ();
+        assertEquals ("1", chunk.content ().toString (StandardCharsets.UTF_8));
+        chunk.release ();
+        assertNull (channel.readOutbound ());
+
+        first.writeAndFlush (LastHttpContent.EMPTY_LAST_CONTENT);
+        channel.runPendingTasks ();
+        assertSame (LastHttpContent.EMPTY_LAST_CONTENT, channel.readOutbound ());
+        assertEquals ("2", body (channel.readOutbound ()));
+        assertFalse (channel.finish ());
+    }
+
+    @Test
+    public void testCloseReleasesHeld() {
+        sequencer.register ();
+        long second = sequencer.register ();
+        FullHttpResponse response = response ("2");
+        ChannelFuture future = sequencer.write (second, response, true);
+
+        sequencer.close ();
+        assertEquals (0, response.refCnt ());
+        assertFalse (future.isSuccess ());
+        assertNotNull (future.cause ());
+        channel.finishAndReleaseAll ();
+    }
+
+    @Test
+    public void testHeldBytesLimit() {
+        sequencer = new ResponseSequencer (channel.pipeline ().lastContext (), 4);
+        ResponseSequencer.Slot first = sequencer.slot (sequencer.register ());
+        ResponseSequencer.Slot second = sequencer.slot (sequencer.register ());
+        assertFalse (first.isHeld ());
+        assertTrue (second.isHeld ());
+
+        second.write (new DefaultHttpResponse (HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+        ChannelFuture ok = second.write (new DefaultHttpContent (Unpooled.copiedBuffer ("123", StandardCharsets.UTF_8)));
+        assertEquals (3, sequencer.heldBytes ());
+        assertFalse (ok.isDone ());
+
+        //超过上限，这个chunk被丢弃，连接关闭
+        HttpContent chunk = new DefaultHttpContent (Unpooled.copiedBuffer ("45", StandardCharsets.UTF_8));
+        ChannelFuture failed = second.write (chunk);
+        assertFalse (failed.isSuccess ());
+        assertEquals (0, chunk.refCnt ());
+        assertFalse (channel.isActive ());
+        assertEquals (0, sequencer.heldBytes ());
+        channel.finishAndReleaseAll ();
+    }
+
+    @Test
+    public void testHeldBytesReleasedWhenWritten() {
+        ResponseSequencer.Slot first = sequencer.slot (sequencer.register ());
+        ResponseSequencer.Slot second = sequencer.slot (sequencer.register ());
+        second.writeAndFlush (response ("22"));
+        assertEquals (2, sequencer.heldBytes ());
+
+        first.writeAndFlush (response ("1"));
+        channel.runPendingTasks ();
+        assertEquals (0, sequencer.heldBytes ());
+        assertFalse (second.isHeld ());
+        assertEquals ("1", body (channel.readOutbound ()));
+        assertEquals ("22", body (channel.readOutbound ()));
+        assertFalse (channel.finish ());
+    }
+}
@@ -4,6 +4,8 @@ import com.example.Valve;
 import com.example.connector.Request;
 import com.example.connector.Response;
 import com.example.life.LifecycleException;
+import com.example.util.LatencyHistogram;
+import com.example.util.LatencyRegistry;
 import com.example.valve.AbstractValve;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -11,8 +13,9 @@ import org.junit.jupiter.api.Test;
 import javax.servlet.ServletException;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Map;
 
-import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.*;
 
 class StandardPipelineTest {
     Valve valve1 = new AbstractValve () {
@@ -108,4 +111,92 @@ class StandardPipelineTest {
         assertThrows (IllegalStateException.class, () -> pipeline.invoke (null, null));
     }
 
+    @Test
+    @DisplayName("运行中增删valve")
+    void testModifyWhileRunning() throws ServletException, IOException, LifecycleException {
+        StringBuilder trace = new StringBuilder ();
+        StandardPipeline pipeline = new StandardPipeline ();
+        pipeline.setBasic (new AbstractValve () {
+            @Override
+            public void invoke(Request request, Response response) {
+                trace.append ("basic");
+            }
+        });
+        pipeline.addValve (valve2);
+        pipeline.start ();
+
+        //正在经过valve2的请求，valve2被移除后仍然走到basic
+        Valve removing = new AbstractValve () {
+            @Override
+            public void invoke(Request request, Response response) throws IOException, ServletException {
+                trace.append ("r,");
+                pipeline.removeValve (this);
+                super.invoke (request, response);
+            }
+        };
+        pipeline.addValve (removing);
+        assertArrayEquals (new Valve[]{valve2, removing, pipeline.getBasic ()}, pipeline.getValves ());
+        pipeline.invoke (null, null);
+        assertEquals ("r,basic", trace.toString ());
+        assertArrayEquals (new Valve[]{valve2, pipeline.getBasic ()}, pipeline.getValves ());
+
+        trace.setLength (0);
+        pipeline.invoke (null, null);
+        assertEquals ("basic", trace.toString ());
+
+        pipeline.removeValve (valve2);
+        assertSame (pipeline.getBasic (), pipeline.getFirst ());
+        pipeline.stop ();
+    }
+
+    @Test
+    @DisplayName("统计每个valve自身的耗时")
+    void testInstrumented() throws ServletException, IOException, LifecycleException {
+        StandardPipeline pipeline = new StandardPipeline ();
+        pipeline.setBasic (new AbstractValve () {
+            @Override
+            public void invoke(Request request, Response response) {
+                sleep (20);
+            }
+        });
+        pipeline.addValve (valve2);
+        pipeline.setInstrumented (true);
+        pipeline.start ();
+        pipeline.invoke (null, null);
+
+        Map<String, LatencyHistogram> histograms = LatencyRegistry.snapshot ().get ("pipeline");
+        assertEquals (3, histograms.size ());
+        LatencyHistogram total = histograms.get ("total");
+        assertEquals (1, total.getCount ());
+        assertTrue (total.getMaxMillis () >= 20);
+        //valve2自身的耗时不包括basic
+        LatencyHistogram valve2Latency = histograms.values ().toArray (new LatencyHistogram[0])[1];
+        assertEquals (1, valve2Latency.getCount ());
+        assertTrue (valve2Latency.getMaxMillis () < 20);
+        assertArrayEquals (new Valve[]{valve2, pipeline.getBasic ()}, pipeline.getValves ());
+
+        //getFirst返回的是包装，next的读写都作用在valve2上
+        Valve first = pipeline.getFirst ();
+        assertNotSame (valve2, first);
+        Valve next = first.getNext ();
+        first.setNext (valve3);
+        assertSame (valve3, valve2.getNext ());
+        first.setNext (next);
+
+        //关闭之后链表恢复原样
+        pipeline.setInstrumented (false);
+        assertNull (LatencyRegistry.snapshot ().get ("pipeline"));
+        assertSame (valve2, pipeline.getFirst ());
+        assertSame (pipeline.getBasic (), valve2.getNext ());
+        pipeline.stop ();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep (millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+        }
+    }
+
 }
@@ -1,7 +1,16 @@
 package com.example.startup;
 
+import com.example.Container;
+import com.example.Engine;
+import com.example.Service;
+import com.example.Valve;
+import com.example.core.StandardServer;
+import com.example.valve.AccessLogValve;
+import org.apache.commons.digester.Digester;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class CatalinaTest {
@@ -11,4 +20,22 @@ class CatalinaTest {
         String[] args = new String[]{"--config", "/conf/server.xml", "start"};
         new Catalina ().process (args);
     }
+
+    @Test
+    void testParseServerXml() throws Exception {
+        Catalina catalina = new Catalina ();
+        Digester digester = catalina.createStartDigester ();
+        digester.push (catalina);
+        digester.parse (new File ("conf/server.xml"));
+
+        StandardServer server = (StandardServer) catalina.getServer ();
+        Service service = server.findServices ()[0];
+        Engine engine = service.getContainer ();
+        Container host = engine.findChild ("localhost");
+        assertNotNull (host);
+        //Host下的Valve加在basic之前
+        Valve[] valves = host.getPipeline ().getValves ();
+        assertTrue (valves[0] instanceof AccessLogValve);
+        assertSame (host.getPipeline ().getBasic (), valves[valves.length - 1]);
+    }
 }
@@ -0,0 +1,42 @@
+package com.example.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void testBuckets() {
+        //相邻的值不会落到更小的桶里，桶的上界覆盖值
+        int last = 0;
+        for (long micros = 0; micros < 1_000_000; micros += 7) {
+            int index = LatencyHistogram.indexOf (micros);
+            assertTrue (index >= last);
+            assertTrue (LatencyHistogram.upperBoundOf (index) > micros);
+            assertTrue (LatencyHistogram.upperBoundOf (index) <= Math.max (micros + 1, micros * 9 / 8 + 1));
+            last = index;
+        }
+        assertEquals (LatencyHistogram.indexOf (Long.MAX_VALUE / 1000), LatencyHistogram.indexOf (Long.MAX_VALUE / 2000));
+    }
+
+    @Test
+    void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram ();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record (TimeUnit.MICROSECONDS.toNanos (i * 100));
+        }
+        assertEquals (1000, histogram.getCount ());
+        assertEquals (50.05, histogram.getMeanMillis (), 0.001);
+        assertEquals (100, histogram.getMaxMillis (), 0.001);
+        assertEquals (50, histogram.getP50Millis (), 50 * 0.125);
+        assertEquals (99, histogram.getP99Millis (), 99 * 0.125);
+        assertTrue (histogram.getP999Millis () <= histogram.getMaxMillis ());
+
+        histogram.reset ();
+        assertEquals (0, histogram.getCount ());
+        assertEquals (0.0, histogram.getP99Millis ());
+    }
+}
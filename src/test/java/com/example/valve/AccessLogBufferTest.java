@@ -0,0 +1,64 @@
+package com.example.valve;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccessLogBufferTest {
+
+    @Test
+    public void testOfferAndDrain() {
+        AccessLogBuffer buffer = new AccessLogBuffer (3);
+        assertEquals (4, buffer.capacity ());
+        assertTrue (buffer.isEmpty ());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue (buffer.offer ("line" + i));
+        }
+        //满了就丢弃
+        assertFalse (buffer.offer ("line4"));
+        assertEquals (1, buffer.getDropped ());
+
+        List<String> lines = new ArrayList<> ();
+        assertEquals (2, buffer.drain (lines::add, 2));
+        assertEquals (2, buffer.drain (lines::add, 10));
+        assertEquals ("line0", lines.get (0));
+        assertEquals ("line3", lines.get (3));
+        assertTrue (buffer.isEmpty ());
+
+        //腾出位置后可以继续放
+        assertTrue (buffer.offer ("line5"));
+        assertEquals (1, buffer.drain (lines::add, 10));
+        assertEquals ("line5", lines.get (4));
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        AccessLogBuffer buffer = new AccessLogBuffer (1024);
+        int producers = 4;
+        int perProducer = 10000;
+        CountDownLatch latch = new CountDownLatch (producers);
+        for (int p = 0; p < producers; p++) {
+            int id = p;
+            new Thread (() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    buffer.offer (id + "-" + i);
+                }
+                latch.countDown ();
+            }).start ();
+        }
+
+        Set<String> received = new HashSet<> ();
+        while (latch.getCount () > 0 || !buffer.isEmpty ()) {
+            buffer.drain (entry -> assertTrue (received.add (entry)), 256);
+        }
+        //每一条要么被取出，要么被计入丢弃
+        assertEquals (producers * perProducer, received.size () + buffer.getDropped ());
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.valve;
+
+import com.example.connector.Request;
+import com.example.connector.Response;
+import com.example.connector.http.HttpRequestImpl;
+import com.example.connector.http.HttpResponseImpl;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheValveTest {
+    CacheValve valve;
+    /**
+     * 后面的valve被调用的次数
+     */
+    AtomicInteger calls;
+    /**
+     * 后面的valve收到的If-None-Match
+     */
+    List<String> conditions;
+    /**
+     * 后面的valve回复的header，body为uri加上Accept-Language
+     */
+    String[] originHeaders;
+    File diskDirectory;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        calls = new AtomicInteger ();
+        conditions = new ArrayList<> ();
+        originHeaders = new String[]{"Cache-Control", "max-age=60"};
+        diskDirectory = Files.createTempDirectory ("cache").toFile ();
+        valve = new CacheValve ();
+        valve.setDiskDirectory (diskDirectory.getAbsolutePath ());
+        valve.setNext (new AbstractValve () {
+            @Override
+            public void invoke(Request request, Response response) throws IOException {
+                calls.incrementAndGet ();
+                HttpServletRequest req = (HttpServletRequest) request;
+                HttpServletResponse resp = (HttpServletResponse) response;
+                String etag = null;
+                for (int i = 0; i < originHeaders.length; i += 2) {
+                    resp.addHeader (originHeaders[i], originHeaders[i + 1]);
+                    if ("ETag".equals (originHeaders[i])) {
+                        etag = originHeaders[i + 1];
+                    }
+                }
+                String condition = req.getHeader ("If-None-Match");
+                conditions.add (condition);
+                if (etag != null && etag.equals (condition)) {
+                    resp.setStatus (HttpServletResponse.SC_NOT_MODIFIED);
+                    return;
+                }
+                if ("GET".equals (req.getMethod ())) {
+                    String language = req.getHeader ("Accept-Language");
+                    resp.getWriter ().write (req.getRequestURI () + (language == null ? "" : " " + language));
+                }
+            }
+        });
+        valve.start ();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        valve.stop ();
+        File[] files = diskDirectory.listFiles ();
+        if (files != null) {
+            for (File file : files) {
+                file.delete ();
+            }
+        }
+        diskDirectory.delete ();
+    }
+
+    /**
+     * @param headers 请求头，name、value交替
+     * @return 响应，body在{@link #body}中
+     */
+    private HttpResponseImpl invoke(String method, String uri, String... headers) throws Exception {
+        //和connector一样，请求头在netty的HttpHeaders中，大小写不敏感
+        HttpHeaders requestHeaders = new DefaultHttpHeaders ();
+        for (int i = 0; i < headers.length; i += 2) {
+            requestHeaders.add (headers[i], headers[i + 1]);
+        }
+        HttpRequestImpl request = new HttpRequestImpl (null) {
+            {
+                httpHeaders = requestHeaders;
+            }
+        };
+        request.setMethod (method);
+        request.setRequestURI (uri);
+        HttpResponseImpl response = new HttpResponseImpl (null);
+        response.setRequest (request);
+        response.setByteBuf (Unpooled.buffer ());
+        response.setStream (new ByteArrayOutputStream ());
+        valve.invoke (request, response);
+        response.finishResponse ();
+        return response;
+    }
+
+    private static String body(HttpResponseImpl response) {
+        return response.getStream ().toString ();
+    }
+
+    private static CapturedResponse response(String... headers) {
+        List<String[]> list = new ArrayList<> ();
+        for (int i = 0; i < headers.length; i += 2) {
+            list.add (new String[]{headers[i], headers[i + 1]});
+        }
+        return new CapturedResponse (200, list, new byte[10]);
+    }
+
+    @Test
+    void testHitAndMiss() throws Exception {
+        HttpResponseImpl first = invoke ("GET", "/a");
+        assertEquals ("/a", body (first));
+        assertNull (first.getHeader ("Age"));
+
+        HttpResponseImpl second = invoke ("GET", "/a");
+        assertEquals (200, second.getStatus ());
+        assertEquals ("/a", body (second));
+        assertEquals ("max-age=60", second.getHeader ("Cache-Control"));
+        assertNotNull (second.getHeader ("Age"));
+
+        assertEquals ("/b", body (invoke ("GET", "/b")));
+        assertEquals (2, calls.get ());
+        assertEquals (1, valve.getHits ());
+        assertEquals (2, valve.getMisses ());
+        //客户端要求不使用缓存
+        invoke ("GET", "/a", "Cache-Control", "no-cache");
+        assertEquals (3, calls.get ());
+    }
+
+    @Test
+    void testNotModifiedFromCache() throws Exception {
+        originHeaders = new String[]{"Cache-Control", "max-age=60", "ETag", "\"v1\""};
+        invoke ("GET", "/a");
+
+        HttpResponseImpl response = invoke ("GET", "/a", "If-None-Match", "\"v1\"");
+        assertEquals (304, response.getStatus ());
+        assertEquals ("\"v1\"", response.getHeader ("ETag"));
+        assertEquals ("", body (response));
+        assertEquals (1, calls.get ());
+        assertEquals (1, valve.getHits ());
+
+        //校验器不一致时回复完整的响应
+        response = invoke ("GET", "/a", "If-None-Match", "\"v0\"");
+        assertEquals (200, response.getStatus ());
+        assertEquals ("/a", body (response));
+        assertEquals (1, calls.get ());
+    }
+
+    @Test
+    void testRevalidation() throws Exception {
+        originHeaders = new String[]{"Cache-Control", "no-cache", "ETag", "\"v1\""};
+        assertEquals ("/a", body (invoke ("GET", "/a")));
+
+        //缓存不新鲜，valve带上If-None-Match去验证，后面回复304后用缓存的body回复客户端
+        HttpResponseImpl response = invoke ("GET", "/a");
+        assertEquals (2, calls.get ());
+        assertEquals (Arrays.asList (null, "\"v1\""), conditions);
+        assertEquals (200, response.getStatus ());
+        assertEquals ("/a", body (response));
+        assertEquals (1, valve.getRevalidated ());
+        assertEquals (0, valve.getHits ());
+    }
+
+    @Test
+    void testVary() throws Exception {
+        originHeaders = new String[]{"Cache-Control", "max-age=60", "Vary", "Accept-Language"};
+        assertEquals ("/a en", body (invoke ("GET", "/a", "Accept-Language", "en")));
+        assertEquals ("/a fr", body (invoke ("GET", "/a", "Accept-Language", "fr")));
+        assertEquals ("/a en", body (invoke ("GET", "/a", "Accept-Language", "en")));
+        assertEquals ("/a fr", body (invoke ("GET", "/a", "Accept-Language", "fr")));
+        assertEquals (2, calls.get ());
+        assertEquals (2, valve.getHits ());
+
+        //Vary: *的响应不缓存
+        originHeaders = new String[]{"Cache-Control", "max-age=60", "Vary", "*"};
+        invoke ("GET", "/b");
+        invoke ("GET", "/b");
+        assertEquals (4, calls.get ());
+    }
+
+    @Test
+    void testInvalidation() throws Exception {
+        invoke ("GET", "/a");
+        invoke ("GET", "/a");
+        assertEquals (1, calls.get ());
+
+        //不安全的方法成功后，缓存失效
+        invoke ("POST", "/a");
+        assertEquals (2, calls.get ());
+        assertEquals (0, valve.getMemorySize ());
+        invoke ("GET", "/a");
+        assertEquals (3, calls.get ());
+        invoke ("GET", "/a");
+        assertEquals (3, calls.get ());
+    }
+
+    @Test
+    void testDiskOverflow() throws Exception {
+        //内存里只能放下一个响应
+        valve.setMaxMemorySize (response ("Cache-Control", "max-age=60").size () + 50);
+        valve.setMaxDiskSize (1024 * 1024);
+        invoke ("GET", "/a");
+        invoke ("GET", "/b");
+        assertTrue (valve.getDiskSize () > 0);
+        assertTrue (valve.getMemorySize () <= valve.getMaxMemorySize ());
+
+        //从磁盘读回来，/b被挤到磁盘
+        HttpResponseImpl response = invoke ("GET", "/a");
+        assertEquals ("/a", body (response));
+        assertEquals ("/b", body (invoke ("GET", "/b")));
+        assertEquals (2, calls.get ());
+        assertEquals (2, valve.getHits ());
+        String[] files = diskDirectory.list ();
+        assertNotNull (files);
+        assertEquals (1, files.length);
+    }
+
+    @Test
+    void testParseCacheControl() {
+        Map<String, String> control = CacheValve.parseCacheControl (Arrays.asList ("Public, max-age=60", "s-maxage=\"120\""));
+        assertEquals ("", control.get ("public"));
+        assertEquals ("60", control.get ("max-age"));
+        assertEquals ("120", control.get ("s-maxage"));
+        assertTrue (CacheValve.parseCacheControl (Collections.emptyList ()).isEmpty ());
+    }
+
+    @Test
+    void testFreshness() {
+        long now = System.currentTimeMillis ();
+        //s-maxage优先
+        CacheValve.Entry entry = new CacheValve.Entry (response ("Cache-Control", "max-age=1, s-maxage=100"), now, 0);
+        assertTrue (entry.isFresh (now + 50_000));
+        assertFalse (entry.isFresh (now + 100_000));
+
+        entry = new CacheValve.Entry (response ("Expires", DateFormatter.format (new Date (now + 30_000))), now, 0);
+        assertTrue (entry.isFresh (now + 10_000));
+        assertFalse (entry.isFresh (now + 31_000));
+
+        entry = new CacheValve.Entry (response ("Cache-Control", "no-cache, max-age=60", "ETag", "\"a\""), now, 60);
+        assertFalse (entry.isFresh (now));
+
+        entry = new CacheValve.Entry (response (), now, 5);
+        assertTrue (entry.isFresh (now + 4_000));
+    }
+
+    @Test
+    void testRefresh() {
+        long now = System.currentTimeMillis ();
+        CacheValve.Entry entry = new CacheValve.Entry (response ("Cache-Control", "no-cache", "ETag", "\"a\"", "X-Test", "1"), now, 0);
+        assertFalse (entry.isFresh (now));
+
+        CacheValve.Entry refreshed = entry.refresh (response ("Cache-Control", "max-age=60", "Date", "x"), now, 0);
+        assertTrue (refreshed.isFresh (now + 1000));
+        CapturedResponse merged = response ("Cache-Control", "no-cache", "ETag", "\"a\"", "X-Test", "1")
+                .withHeaders (Collections.singletonList (new String[]{"cache-control", "max-age=60"}));
+        assertEquals (Collections.singletonList ("max-age=60"), merged.getHeaders ("Cache-Control"));
+        assertEquals ("1", merged.getHeader ("x-test"));
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.valve;
+
+import com.example.connector.Request;
+import com.example.connector.Response;
+import com.example.connector.http.HttpRequestImpl;
+import com.example.connector.http.HttpResponseImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class RateLimitValveTest {
+    RateLimitValve valve;
+    int passed;
+
+    @BeforeEach
+    void setUp() {
+        passed = 0;
+        valve = new RateLimitValve ();
+        valve.setNext (new AbstractValve () {
+            @Override
+            public void invoke(Request request, Response response) {
+                passed++;
+            }
+        });
+    }
+
+    private HttpRequestImpl request(String remoteAddr, String apiKey) {
+        HttpRequestImpl request = mock (HttpRequestImpl.class);
+        when (request.getRemoteAddr ()).thenReturn (remoteAddr);
+        when (request.getHeader ("X-Api-Key")).thenReturn (apiKey);
+        return request;
+    }
+
+    @Test
+    void testBurstThenReject() throws Exception {
+        valve.setRate (1);
+        valve.setBurst (2);
+        HttpRequestImpl request = request ("10.0.0.1", null);
+
+        valve.invoke (request, mock (HttpResponseImpl.class));
+        valve.invoke (request, mock (HttpResponseImpl.class));
+        HttpResponseImpl rejected = mock (HttpResponseImpl.class);
+        valve.invoke (request, rejected);
+        assertEquals (2, passed);
+        verify (rejected).setHeader ("Retry-After", "1");
+        verify (rejected).sendError (RateLimitValve.SC_TOO_MANY_REQUESTS);
+        assertEquals (1, valve.getRejected ());
+
+        //其他客户端不受影响
+        valve.invoke (request ("10.0.0.2", null), mock (HttpResponseImpl.class));
+        assertEquals (3, passed);
+    }
+
+    @Test
+    void testHeaderKey() throws Exception {
+        valve.setRate (1);
+        valve.setKeyType (RateLimitValve.KEY_HEADER);
+        valve.setKeyHeader ("X-Api-Key");
+
+        valve.invoke (request ("10.0.0.1", "a"), mock (HttpResponseImpl.class));
+        valve.invoke (request ("10.0.0.1", "b"), mock (HttpResponseImpl.class));
+        valve.invoke (request ("10.0.0.2", "a"), mock (HttpResponseImpl.class));
+        assertEquals (2, passed);
+        assertThrows (IllegalArgumentException.class, () -> valve.setKeyType ("cookie"));
+    }
+
+    @Test
+    void testEvictIdle() throws Exception {
+        valve.setRate (1000);
+        for (int i = 0; i < 10; i++) {
+            valve.invoke (request ("10.0.0." + i, null), mock (HttpResponseImpl.class));
+        }
+        assertEquals (10, valve.getTrackedKeys ());
+        Thread.sleep (20);
+        valve.backgroundProcess ();
+        assertEquals (0, valve.getTrackedKeys ());
+    }
+
+    @Test
+    void testMaxKeysOverflow() throws Exception {
+        valve.setRate (1);
+        valve.setMaxKeys (2);
+        valve.invoke (request ("10.0.0.1", null), mock (HttpResponseImpl.class));
+        valve.invoke (request ("10.0.0.2", null), mock (HttpResponseImpl.class));
+
+        //清理之后仍然满了，之后的新客户端共用一个桶，并且一秒内不会再清理
+        valve.invoke (request ("10.0.0.3", null), mock (HttpResponseImpl.class));
+        HttpResponseImpl rejected = mock (HttpResponseImpl.class);
+        valve.invoke (request ("10.0.0.4", null), rejected);
+        assertEquals (3, passed);
+        verify (rejected).sendError (RateLimitValve.SC_TOO_MANY_REQUESTS);
+        assertEquals (2, valve.getTrackedKeys ());
+    }
+
+    @Test
+    void testMaxKeysSweep() throws Exception {
+        valve.setRate (1000);
+        valve.setMaxKeys (2);
+        valve.invoke (request ("10.0.0.1", null), mock (HttpResponseImpl.class));
+        valve.invoke (request ("10.0.0.2", null), mock (HttpResponseImpl.class));
+        Thread.sleep (20);
+
+        //前两个桶已经空闲，清理后新客户端有自己的桶
+        valve.invoke (request ("10.0.0.3", null), mock (HttpResponseImpl.class));
+        assertEquals (1, valve.getTrackedKeys ());
+        assertEquals (3, passed);
+    }
+
+    @Test
+    void testDisabled() throws IOException, ServletException {
+        for (int i = 0; i < 100; i++) {
+            valve.invoke (request ("10.0.0.1", null), mock (HttpResponseImpl.class));
+        }
+        assertEquals (100, passed);
+    }
+}
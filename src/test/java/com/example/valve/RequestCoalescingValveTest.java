@@ -0,0 +1,168 @@
+package com.example.valve;
+
+import com.example.connector.Request;
+import com.example.connector.Response;
+import com.example.connector.http.HttpConnector;
+import com.example.connector.http.HttpRequestImpl;
+import com.example.connector.http.HttpResponseImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RequestCoalescingValveTest {
+    RequestCoalescingValve valve;
+    AtomicInteger calls;
+    CountDownLatch entered;
+    CountDownLatch release;
+    int status;
+
+    @BeforeEach
+    void setUp() {
+        calls = new AtomicInteger ();
+        entered = new CountDownLatch (1);
+        release = new CountDownLatch (1);
+        status = HttpServletResponse.SC_OK;
+        valve = new RequestCoalescingValve ();
+        valve.setNext (new AbstractValve () {
+            @Override
+            public void invoke(Request request, Response response) throws IOException {
+                calls.incrementAndGet ();
+                entered.countDown ();
+                try {
+                    release.await ();
+                } catch (InterruptedException e) {
+                    Thread.currentThread ().interrupt ();
+                }
+                HttpServletResponse resp = (HttpServletResponse) response;
+                resp.setStatus (status);
+                resp.setHeader ("X-Call", String.valueOf (calls.get ()));
+                resp.getWriter ().write ("report");
+            }
+        });
+    }
+
+    private HttpRequestImpl request(String cookie) {
+        HttpRequestImpl request = mock (HttpRequestImpl.class);
+        when (request.getMethod ()).thenReturn ("GET");
+        when (request.getRequestURI ()).thenReturn ("/report");
+        when (request.getHeader ("Cookie")).thenReturn (cookie);
+        return request;
+    }
+
+    /**
+     * 第一个请求进入后面的valve、第二个请求开始等待之后，才让第一个请求完成
+     */
+    private void leaderAndFollower(HttpRequestImpl leader, HttpResponseImpl leaderResponse,
+                                   HttpRequestImpl follower, HttpResponseImpl followerResponse) throws Exception {
+        Thread leaderThread = invoke (leader, leaderResponse);
+        entered.await ();
+        Thread followerThread = invoke (follower, followerResponse);
+        while (valve.getWaiting () == 0) {
+            assertTrue (followerThread.isAlive ());
+            Thread.sleep (1);
+        }
+        release.countDown ();
+        leaderThread.join ();
+        followerThread.join ();
+    }
+
+    private HttpResponseImpl response(ByteArrayOutputStream body) {
+        HttpResponseImpl response = new HttpResponseImpl (null);
+        response.setStream (body);
+        return response;
+    }
+
+    private Thread invoke(HttpRequestImpl request, HttpResponseImpl response) {
+        Thread thread = new Thread (() -> {
+            try {
+                valve.invoke (request, response);
+                response.finishResponse ();
+            } catch (Exception e) {
+                throw new IllegalStateException (e);
+            }
+        });
+        thread.start ();
+        return thread;
+    }
+
+    @Test
+    void testCoalesce() throws Exception {
+        ByteArrayOutputStream leaderBody = new ByteArrayOutputStream ();
+        ByteArrayOutputStream followerBody = new ByteArrayOutputStream ();
+        HttpResponseImpl follower = response (followerBody);
+
+        leaderAndFollower (request (null), response (leaderBody), request (null), follower);
+
+        assertEquals (1, calls.get ());
+        assertEquals (1, valve.getCoalesced ());
+        assertEquals ("report", leaderBody.toString ());
+        assertEquals ("report", followerBody.toString ());
+        assertEquals ("1", follower.getHeader ("X-Call"));
+        assertEquals (0, valve.getInFlight ());
+    }
+
+    @Test
+    void testOnlyOkShared() throws Exception {
+        status = HttpServletResponse.SC_NOT_FOUND;
+        ByteArrayOutputStream followerBody = new ByteArrayOutputStream ();
+
+        leaderAndFollower (request (null), response (new ByteArrayOutputStream ()),
+                request (null), response (followerBody));
+
+        //第一个请求的404不能给别人用，等待的请求自己执行
+        assertEquals (2, calls.get ());
+        assertEquals (0, valve.getCoalesced ());
+        assertEquals (1, valve.getFallbacks ());
+        assertEquals ("report", followerBody.toString ());
+    }
+
+    @Test
+    void testConditionalNotCoalesced() throws Exception {
+        release.countDown ();
+        for (String header : new String[]{"If-None-Match", "If-Modified-Since", "Range"}) {
+            HttpRequestImpl request = request (null);
+            when (request.getHeader (header)).thenReturn ("x");
+            valve.invoke (request, response (new ByteArrayOutputStream ()));
+        }
+        assertEquals (3, calls.get ());
+        assertEquals (0, valve.getInFlight ());
+        assertEquals (0, valve.getWaiting ());
+    }
+
+    @Test
+    void testEventLoopNotCoalesced() throws Exception {
+        HttpConnector connector = mock (HttpConnector.class);
+        when (connector.getWorkerExecutor ()).thenReturn (null);
+        HttpRequestImpl request = request (null);
+        when (request.getConnector ()).thenReturn (connector);
+
+        Thread thread = invoke (request, response (new ByteArrayOutputStream ()));
+        entered.await ();
+        //没有登记为正在执行的请求，相同的请求不会在io线程上等它
+        assertEquals (0, valve.getInFlight ());
+        release.countDown ();
+        thread.join ();
+        assertEquals (1, calls.get ());
+    }
+
+    @Test
+    void testPersonalNotCoalesced() throws Exception {
+        release.countDown ();
+        valve.invoke (request ("JSESSIONID=1"), response (new ByteArrayOutputStream ()));
+        valve.invoke (request ("JSESSIONID=2"), response (new ByteArrayOutputStream ()));
+        assertEquals (2, calls.get ());
+        assertEquals (0, valve.getInFlight ());
+
+        valve.setHeaders ("Cookie");
+        assertEquals ("cookie", valve.getHeaders ());
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WebSocketContainerTest {
+    static class Chat implements WebSocketEndpoint {
+    }
+
+    static class Push implements WebSocketEndpoint {
+    }
+
+    static class Room implements WebSocketEndpoint {
+    }
+
+    @Test
+    public void testFindEndpoint() {
+        WebSocketContainer container = new WebSocketContainer ();
+        assertTrue (container.isEmpty ());
+        container.addEndpoint ("/chat", Chat.class);
+        container.addEndpoint ("/push/*", Push.class);
+        container.addEndpoint ("/push/room/*", Room.class);
+
+        assertSame (Chat.class, container.findEndpoint ("/chat"));
+        assertNull (container.findEndpoint ("/chat/1"));
+        assertSame (Push.class, container.findEndpoint ("/push"));
+        assertSame (Push.class, container.findEndpoint ("/push/user/1"));
+        //最长的前缀优先
+        assertSame (Room.class, container.findEndpoint ("/push/room/1"));
+        assertNull (container.findEndpoint ("/pushx"));
+
+        container.removeEndpoint ("/push/room/*");
+        assertSame (Push.class, container.findEndpoint ("/push/room/1"));
+    }
+
+    @Test
+    public void testInvalidPath() {
+        WebSocketContainer container = new WebSocketContainer ();
+        assertThrows (IllegalArgumentException.class, () -> container.addEndpoint ("chat", Chat.class));
+    }
+}